@@ -0,0 +1,59 @@
+package net.thorioum;
+
+import net.thorioum.result.CompleteAudioResult;
+import net.thorioum.sound.BenchFixtures;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.SoundEffectDatabase;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * DatapackWriter.createAudioPack over a synthetic song (with repeated frames and silent runs) into a temporary
+ * directory, with and without shared frames. Scores are frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatapackWriterBenchmark {
+    static final int FRAMES = 4096;
+
+    @Param({"5", "60"})
+    public int soundsPerFrame;
+
+    @Param({"false", "true"})
+    public boolean shareFrames;
+
+    ConverterContext ctx;
+    CompleteAudioResult result;
+    File dir;
+    File pack;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ctx = BenchFixtures.context(50, 128);
+        SoundEffectDatabase db = BenchFixtures.database(ctx.frameSize(), 2048, 1);
+        result = BenchFixtures.result(db, FRAMES, soundsPerFrame, 4);
+        dir = Files.createTempDirectory("eidolon-bench").toFile();
+        pack = new File(dir, "bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(dir, "bench.zip").delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void createAudioPack() {
+        DatapackWriter.createAudioPack(ctx, pack, result, Deflater.DEFAULT_COMPRESSION, shareFrames);
+    }
+}
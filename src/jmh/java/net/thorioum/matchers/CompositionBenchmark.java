@@ -0,0 +1,117 @@
+package net.thorioum.matchers;
+
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.BenchFixtures;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+import net.thorioum.sound.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole frame on the cpu: the greedy loop of SoundMatcher.findBestComposition up to soundsPerFrame picks,
+ * once rescanning the store every step and once through the incremental Pursuit. Scores are frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompositionBenchmark {
+    static final int TARGETS = 64;
+
+    @Param({"20", "50", "100"})
+    public int frameLength;
+
+    @Param({"2048", "8192"})
+    public int candidates;
+
+    @Param({"5", "20", "60"})
+    public int soundsPerFrame;
+
+    ConverterContext ctx;
+    SoundEffectDatabase db;
+    GreedySubCpuMatcher matcher;
+    double[][] targets;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ctx = BenchFixtures.context(frameLength, 128);
+        db = BenchFixtures.database(ctx.frameSize(), candidates, 1);
+        matcher = new GreedySubCpuMatcher(new MatchSettings());
+        matcher.buildFromDatabase(db, ctx.frameSize(), List.of());
+
+        Random random = new Random(2);
+        targets = new double[TARGETS][];
+        for (int t = 0; t < TARGETS; t++) {
+            targets[t] = BenchFixtures.target(db, soundsPerFrame, random);
+            Util.highPassInPlace(targets[t], ctx.highpass_cutoff());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Frame {
+        int next = 0;
+        double[] residual;
+        float[] residualF;
+
+        double[] load(CompositionBenchmark bench) {
+            double[] target = bench.targets[next++ % TARGETS];
+            if (residual == null) {
+                residual = new double[target.length];
+                residualF = new float[target.length];
+            }
+            System.arraycopy(target, 0, residual, 0, target.length);
+            return residual;
+        }
+
+        float[] toFloat() {
+            for (int i = 0; i < residual.length; i++) residualF[i] = (float) residual[i];
+            return residualF;
+        }
+    }
+
+    @Benchmark
+    public int rescan(Frame frame) {
+        double[] residual = frame.load(this);
+        double original = Util.calculateEnergy(residual);
+        int picks = 0;
+        for (int i = 0; i < soundsPerFrame; i++) {
+            double energy = Util.calculateEnergy(residual);
+            if (energy < original * 0.05) break;
+            SingleSoundResult match = matcher.findBestMatch(ctx, frame.toFloat(), energy, 0.1f);
+            if (match == null) break;
+            subtract(residual, match);
+            picks++;
+        }
+        return picks;
+    }
+
+    @Benchmark
+    public int pursuit(Frame frame) {
+        double[] residual = frame.load(this);
+        double original = Util.calculateEnergy(residual);
+        GreedySubCpuMatcher.Pursuit pursuit = matcher.beginPursuit(frame.toFloat());
+        int picks = 0;
+        for (int i = 0; i < soundsPerFrame; i++) {
+            double energy = Util.calculateEnergy(residual);
+            if (energy < original * 0.05) break;
+            SingleSoundResult match = pursuit.next(ctx, energy, 0.1f);
+            if (match == null) break;
+            subtract(residual, match);
+            picks++;
+        }
+        return picks;
+    }
+
+    private void subtract(double[] residual, SingleSoundResult match) {
+        float[] samples = db.samples();
+        int off = match.candidate() * residual.length;
+        for (int j = 0; j < residual.length; j++) residual[j] -= samples[off + j] * match.volume();
+    }
+}
@@ -0,0 +1,83 @@
+package net.thorioum.matchers;
+
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.BenchFixtures;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+import net.thorioum.sound.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The OpenCL matcher: one greedy step, and a whole resident frame of soundsPerFrame picks. Needs an OpenCL
+ * device (-Deidolon.opencl.device picks one like in the app), setup fails without one. Frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GpuMatcherBenchmark {
+    static final int TARGETS = 64;
+
+    @Param({"20", "50", "100"})
+    public int frameLength;
+
+    @Param({"2048", "8192"})
+    public int candidates;
+
+    @Param({"5", "60"})
+    public int soundsPerFrame;
+
+    ConverterContext ctx;
+    GreedySubGpuMatcher matcher;
+    float[][] residuals;
+    double[] energies;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ctx = BenchFixtures.context(frameLength, 128);
+        SoundEffectDatabase db = BenchFixtures.database(ctx.frameSize(), candidates, 1);
+        matcher = new GreedySubGpuMatcher(new MatchSettings());
+        matcher.buildFromDatabase(db, ctx.frameSize(), List.of());
+        if (!matcher.isReady()) throw new IllegalStateException("No usable OpenCL device");
+
+        Random random = new Random(2);
+        residuals = new float[TARGETS][];
+        energies = new double[TARGETS];
+        for (int t = 0; t < TARGETS; t++) {
+            double[] target = BenchFixtures.target(db, soundsPerFrame, random);
+            Util.highPassInPlace(target, ctx.highpass_cutoff());
+            energies[t] = Util.calculateEnergy(target);
+            residuals[t] = new float[target.length];
+            for (int i = 0; i < target.length; i++) residuals[t][i] = (float) target[i];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        matcher.release();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Benchmark
+    public SingleSoundResult findBestMatch(Cursor cursor) {
+        int t = cursor.next++ % TARGETS;
+        return matcher.findBestMatch(ctx, residuals[t], energies[t], 0.1f);
+    }
+
+    @Benchmark
+    public List<SingleSoundResult> findBestComposition(Cursor cursor) {
+        int t = cursor.next++ % TARGETS;
+        return matcher.findBestComposition(ctx, residuals[t], soundsPerFrame, 0.05f, 0.1f);
+    }
+}
@@ -0,0 +1,82 @@
+package net.thorioum.matchers;
+
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.BenchFixtures;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+import net.thorioum.sound.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One greedy step of the cpu matcher: a single residual scanned against the candidate store, and a batch of
+ * residuals scored together the way batchSize > 1 does it. Scores are in frames (residuals) per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatcherBenchmark {
+    static final int TARGETS = 64;
+    static final int BATCH = 16;
+
+    @Param({"20", "50", "100"})
+    public int frameLength;
+
+    @Param({"2048", "8192"})
+    public int candidates;
+
+    ConverterContext ctx;
+    GreedySubCpuMatcher matcher;
+    float[][] residuals;
+    double[] energies;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ctx = BenchFixtures.context(frameLength, 128);
+        SoundEffectDatabase db = BenchFixtures.database(ctx.frameSize(), candidates, 1);
+        matcher = new GreedySubCpuMatcher(new MatchSettings());
+        matcher.buildFromDatabase(db, ctx.frameSize(), List.of());
+
+        Random random = new Random(2);
+        residuals = new float[TARGETS][];
+        energies = new double[TARGETS];
+        for (int t = 0; t < TARGETS; t++) {
+            double[] target = BenchFixtures.target(db, 5, random);
+            energies[t] = Util.calculateEnergy(target);
+            residuals[t] = new float[target.length];
+            for (int i = 0; i < target.length; i++) residuals[t][i] = (float) target[i];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Benchmark
+    public SingleSoundResult findBestMatch(Cursor cursor) {
+        int t = cursor.next++ % TARGETS;
+        return matcher.findBestMatch(ctx, residuals[t], energies[t], 0.1f);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void findBestMatches(Cursor cursor, Blackhole bh) {
+        int first = (cursor.next += BATCH) % (TARGETS - BATCH + 1);
+        float[][] batch = new float[BATCH][];
+        double[] batchEnergies = new double[BATCH];
+        for (int r = 0; r < BATCH; r++) {
+            batch[r] = residuals[first + r];
+            batchEnergies[r] = energies[first + r];
+        }
+        bh.consume(matcher.findBestMatches(ctx, batch, batchEnergies, 0.1f));
+    }
+}
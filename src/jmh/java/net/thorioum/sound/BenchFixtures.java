@@ -0,0 +1,209 @@
+package net.thorioum.sound;
+
+import net.thorioum.Eidolon;
+import net.thorioum.MinecraftVersion;
+import net.thorioum.result.CompleteAudioResult;
+import net.thorioum.result.SingleFrameResult;
+import net.thorioum.result.SingleSoundResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
+
+/**
+ * Synthetic stand-ins for everything the benchmarks would otherwise download: a fake minecraft version with
+ * its sound maps, candidate stores made of decaying tones and filtered noise, target frames mixed from those
+ * candidates, and tone/noise WAV files for the index build. Everything is seeded, so runs are comparable.
+ */
+public class BenchFixtures {
+    //registered under a real name, DatapackWriter looks "1.21" and "1.15" up by name to pick its layout
+    public static final String VERSION = "1.21";
+    private static final int PITCHES_PER_NAME = 64;
+
+    static {
+        Eidolon.headless = true;
+    }
+
+    public static synchronized ConverterContext context(int frameLength, int pitchesPerSound) {
+        MinecraftVersion version = SoundFilesGrabber.tryGetVersion(VERSION);
+        if (version == null) {
+            version = new MinecraftVersion(VERSION, 1718000000L);
+            SoundFilesGrabber.soundMap.put(version, new SoundFilesGrabber.SoundFilesEntry(new HashMap<>(), new HashMap<>(),
+                    new SoundFilesGrabber.SoundDataEntries(version, "")));
+        }
+        return new ConverterContext(version, frameLength, pitchesPerSound, 350.0, 1.0);
+    }
+
+    //a database of candidates rows, sorted loudest first like a real build
+    public static SoundEffectDatabase database(int frameSize, int candidates, long seed) {
+        Random random = new Random(seed);
+        float[] rows = new float[candidates * frameSize];
+        float[] rowNorms = new float[candidates];
+        double[] rowPitches = new double[candidates];
+        double[] row = new double[frameSize];
+        for (int c = 0; c < candidates; c++) {
+            double pitch = 0.5 + 1.5 * random.nextDouble();
+            if (random.nextBoolean()) tone(row, 80.0 + 4000.0 * random.nextDouble() * pitch, random);
+            else noise(row, random);
+
+            double gain = 0.05 + random.nextDouble();
+            double energy = 0.0;
+            for (int i = 0; i < frameSize; i++) {
+                rows[c * frameSize + i] = (float) (row[i] * gain);
+                energy += rows[c * frameSize + i] * rows[c * frameSize + i];
+            }
+            rowNorms[c] = (float) Math.sqrt(energy);
+            rowPitches[c] = pitch;
+        }
+
+        Integer[] order = new Integer[candidates];
+        for (int c = 0; c < candidates; c++) order[c] = c;
+        Arrays.sort(order, (a, b) -> Float.compare(rowNorms[b], rowNorms[a]));
+
+        float[] samples = new float[candidates * frameSize];
+        float[] norms = new float[candidates];
+        double[] pitches = new double[candidates];
+        int[] nameIds = new int[candidates];
+        for (int c = 0; c < candidates; c++) {
+            int src = order[c];
+            System.arraycopy(rows, src * frameSize, samples, c * frameSize, frameSize);
+            norms[c] = rowNorms[src];
+            pitches[c] = rowPitches[src];
+            nameIds[c] = src / PITCHES_PER_NAME;
+        }
+        List<String> names = new ArrayList<>();
+        for (int n = 0; n <= (candidates - 1) / PITCHES_PER_NAME; n++) names.add("bench.sound_" + n);
+
+        SoundEffectDatabase db = new SoundEffectDatabase(frameSize);
+        db.load(names, nameIds, pitches, norms, samples);
+        return db;
+    }
+
+    //a frame the greedy loop can actually take apart: a few candidates at random volumes over a little noise
+    public static double[] target(SoundEffectDatabase db, int sounds, Random random) {
+        int frameSize = db.frameSize();
+        float[] samples = db.samples();
+        double[] frame = new double[frameSize];
+        for (int s = 0; s < sounds; s++) {
+            int id = random.nextInt(db.size());
+            double volume = 0.2 + 0.8 * random.nextDouble();
+            for (int i = 0; i < frameSize; i++) frame[i] += samples[id * frameSize + i] * volume;
+        }
+        for (int i = 0; i < frameSize; i++) frame[i] += 0.01 * random.nextGaussian();
+        return frame;
+    }
+
+    //frames of about soundsPerFrame sounds each, with repeated frames and silent runs like real songs have
+    public static CompleteAudioResult result(SoundEffectDatabase db, int frames, int soundsPerFrame, long seed) {
+        Random random = new Random(seed);
+        CompleteAudioResult result = new CompleteAudioResult();
+        SingleFrameResult previous = null;
+        for (int f = 0; f < frames; f++) {
+            SingleFrameResult frame = new SingleFrameResult(f);
+            double roll = random.nextDouble();
+            if (roll < 0.1) {
+                //silent
+            } else if (roll < 0.3 && previous != null) {
+                for (SingleSoundResult match : previous.getComposition()) frame.addEffect(match);
+            } else {
+                for (int s = 0; s < soundsPerFrame; s++) {
+                    int id = random.nextInt(db.size());
+                    frame.addEffect(new SingleSoundResult(db.name(id), db.pitch(id), 0.05 + random.nextDouble() * 0.95, random.nextDouble(), id));
+                }
+            }
+            result.addFrame(frame);
+            previous = frame;
+        }
+        result.expectedFrames = frames;
+        return result;
+    }
+
+    /**
+     * Writes count mono 16 bit WAV files of the given length into dir, alternating tones and noise, and registers
+     * them with ctx's sound maps the way SoundFilesGrabber would. Returns name -> file.
+     */
+    public static Map<String, File> soundFiles(ConverterContext ctx, File dir, int count, int length, long seed) throws IOException {
+        Random random = new Random(seed);
+        Map<String, File> files = new LinkedHashMap<>();
+        double[] audio = new double[length];
+        for (int n = 0; n < count; n++) {
+            if (n % 2 == 0) tone(audio, 110.0 * (1 + n), random);
+            else noise(audio, random);
+
+            String name = "bench.file_" + n;
+            File file = new File(dir, name + ".wav");
+            writeWav(file, audio);
+            files.put(name, file);
+            ctx.soundVolumesMap().put(name, 1.0f);
+            ctx.soundPitchesMap().put(name, 1.0f);
+        }
+        return files;
+    }
+
+    //a decaying tone with a couple of harmonics, peaks near 0.5
+    private static void tone(double[] out, double hz, Random random) {
+        double decay = 2.0 + 20.0 * random.nextDouble();
+        double phase = random.nextDouble() * Math.PI * 2;
+        for (int i = 0; i < out.length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double w = 2 * Math.PI * hz * t + phase;
+            out[i] = 0.5 * Math.exp(-decay * t) * (Math.sin(w) + 0.3 * Math.sin(2 * w) + 0.1 * Math.sin(3 * w)) / 1.4;
+        }
+    }
+
+    //one pole lowpassed white noise, so the spectrum has some shape
+    private static void noise(double[] out, Random random) {
+        double a = 0.2 + 0.75 * random.nextDouble();
+        double y = 0.0;
+        for (int i = 0; i < out.length; i++) {
+            y = a * y + (1 - a) * random.nextGaussian();
+            out[i] = 0.5 * y;
+        }
+    }
+
+    private static void writeWav(File file, double[] audio) throws IOException {
+        byte[] bytes = new byte[44 + audio.length * 2];
+        ascii(bytes, 0, "RIFF");
+        int32(bytes, 4, bytes.length - 8);
+        ascii(bytes, 8, "WAVEfmt ");
+        int32(bytes, 16, 16);
+        int16(bytes, 20, 1);
+        int16(bytes, 22, 1);
+        int32(bytes, 24, SAMPLE_RATE);
+        int32(bytes, 28, SAMPLE_RATE * 2);
+        int16(bytes, 32, 2);
+        int16(bytes, 34, 16);
+        ascii(bytes, 36, "data");
+        int32(bytes, 40, audio.length * 2);
+        for (int i = 0; i < audio.length; i++) {
+            int16(bytes, 44 + i * 2, (int) Math.round(Math.max(-1.0, Math.min(1.0, audio[i])) * 32767));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(bytes);
+        }
+    }
+
+    private static void ascii(byte[] b, int off, String s) {
+        for (int i = 0; i < s.length(); i++) b[off + i] = (byte) s.charAt(i);
+    }
+
+    private static void int16(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+    }
+
+    private static void int32(byte[] b, int off, int v) {
+        int16(b, off, v);
+        int16(b, off + 2, v >>> 16);
+    }
+}
@@ -0,0 +1,59 @@
+package net.thorioum.sound;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
+
+/**
+ * SoundEffectDatabase.loadSoundAndPitches over generated tone and noise WAV files: decoding the prefix, one
+ * resampling pass per pitch, the brightness filter and the packed store. Decoding goes through ffmpeg like the
+ * app, so it has to be on the path. Scores are sounds per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBuildBenchmark {
+    static final int SOUNDS = 8;
+
+    @Param({"20", "50", "100"})
+    public int frameLength;
+
+    @Param({"32", "128"})
+    public int pitchesPerSound;
+
+    ConverterContext ctx;
+    File dir;
+    Map<String, File> files;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ctx = BenchFixtures.context(frameLength, pitchesPerSound);
+        dir = Files.createTempDirectory("eidolon-bench").toFile();
+        files = BenchFixtures.soundFiles(ctx, dir, SOUNDS, SAMPLE_RATE, 3);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : files.values()) file.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SOUNDS)
+    public int loadSoundAndPitches() {
+        SoundEffectDatabase db = new SoundEffectDatabase(ctx.frameSize());
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            db.loadSoundAndPitches(ctx, entry.getKey(), entry.getValue());
+        }
+        return db.size();
+    }
+}
@@ -0,0 +1,41 @@
+package net.thorioum.sound;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per frame spectral helpers: Util.brightness, which the index build runs once per pitch of every sound,
+ * and the power spectrum under it. Scores are frames per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpectrumBenchmark {
+
+    @Param({"20", "50", "100"})
+    public int frameLength;
+
+    double[] frame;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ConverterContext ctx = BenchFixtures.context(frameLength, 128);
+        SoundEffectDatabase db = BenchFixtures.database(ctx.frameSize(), 64, 1);
+        frame = BenchFixtures.target(db, 3, new Random(2));
+    }
+
+    @Benchmark
+    public double brightness() {
+        return Util.brightness(frame);
+    }
+
+    @Benchmark
+    public double[] powerSpectrum() {
+        return Util.powerSpectrum(frame);
+    }
+}
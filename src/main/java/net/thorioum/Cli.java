@@ -0,0 +1,249 @@
+package net.thorioum;
+
+import net.thorioum.result.CompleteAudioResult;
+import net.thorioum.result.QualityReport;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.OfflineRenderer;
+import net.thorioum.sound.SoundFilesGrabber;
+import net.thorioum.sound.SoundMatcher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import static net.thorioum.Eidolon.*;
+import static net.thorioum.sound.Util.filterString;
+
+/**
+ * Headless batch conversion: one converter context, many input files. The sound index and the matchers are
+ * built once and every input then goes through the normal pipeline and DatapackWriter, several at a time
+ * with --jobs. Started by Eidolon.main whenever it is given arguments.
+ */
+public class Cli {
+
+    private static final String USAGE = """
+            usage: eidolon [options] <audio files...>
+              --version <name>        minecraft version (required, e.g. 1.21.4)
+              --frame-length <ms>     frame length, default 50
+              --pitches <n>           pitches per sound, default 128
+              --highpass <hz>         highpass cutoff, default 350
+              --brightness <0-1>      brightness threshold, default 0.9
+              --sounds <n>            sounds per frame, default 60
+              --blacklist <a,b,...>   sounds to leave out
+              --cpu                   do not try the gpu
+              --threads <n>           matching threads, default half the cores
+              --jobs <n>              files converted at the same time, default 1
+              --batch <n>             frames matched together per task, default 1
+              --coarse <factor>       cpu: rank candidates on a copy decimated by factor (4 or 8), default off
+              --coarse-k <k>          cpu: candidates rescored exactly after the coarse ranking, default 64
+              --ann                   cpu: search an inverted file index instead of every candidate
+              --ann-lists <n>         clusters in the index, default the square root of the candidate count
+              --ann-probes <n>        clusters searched per step, default 8
+              --compress <8|16>       rank candidates on 8 bit (per row scaled, cpu and gpu) or 16 bit (half float, gpu only) rows
+              --rerank <k>            candidates rescored in full precision after a compressed ranking, default 16
+              --spectral              score candidates on mel band magnitudes instead of samples
+              --bands <n>             mel bands for --spectral, default 128
+              --offsets               let sounds start partway into their frame (fft cross-correlation of a shortlist)
+              --max-offset <ms>       latest start within the frame for --offsets, default the whole frame
+              --offset-step <n>       offset grid in samples, default 1 (rounded up to whole datapack ticks)
+              --offset-k <n>          candidates cross-correlated per step, default 32
+              --beam <width>          keep this many partial compositions per frame instead of one greedy pick, default 1
+              --beam-branch <k>       candidates each composition is extended by, default the beam width
+              --beam-budget <ms>      time per frame before the beam finishes greedily, default 100, 0 for no limit
+              --recall                compare approximate searches against exhaustive search and log the recall
+              --out <dir>             where datapacks go, default the current directory
+              --compression <0-9>     datapack deflate level, default -1 (zlib default)
+              --share-frames          share repeated frame bodies in the datapack
+              --wav                   also render each result to <name>.wav
+              --metrics               also write <name>-metrics.csv and log a quality summary
+              --stats <file>          write stage timings and throughput of the whole batch as json
+            """;
+
+    private String versionName;
+    private int frameLength = 50;
+    private int pitches = 128;
+    private double highpass = 350.0;
+    private double brightness = 0.9;
+    private int soundsPerFrame = 60;
+    private List<String> blacklist = new ArrayList<>();
+    private boolean useGpu = true;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int jobs = 1;
+    private File outDir = new File(".");
+    private int compression = Deflater.DEFAULT_COMPRESSION;
+    private boolean shareFrames = false;
+    private boolean wav = false;
+    private boolean metrics = false;
+    private File statsFile;
+    private final MatchSettings settings = new MatchSettings();
+    private final List<File> inputs = new ArrayList<>();
+
+    public static void main(String[] args) {
+        headless = true;
+        Cli cli = new Cli();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        System.exit(cli.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                inputs.add(new File(arg));
+                continue;
+            }
+            switch (arg) {
+                case "--version" -> versionName = value(args, ++i, arg);
+                case "--frame-length" -> frameLength = Integer.parseInt(value(args, ++i, arg));
+                case "--pitches" -> pitches = Integer.parseInt(value(args, ++i, arg));
+                case "--highpass" -> highpass = Double.parseDouble(value(args, ++i, arg));
+                case "--brightness" -> brightness = Double.parseDouble(value(args, ++i, arg));
+                case "--sounds" -> soundsPerFrame = Integer.parseInt(value(args, ++i, arg));
+                case "--blacklist" -> blacklist = Arrays.asList(value(args, ++i, arg).split(","));
+                case "--cpu" -> useGpu = false;
+                case "--threads" -> threads = Integer.parseInt(value(args, ++i, arg));
+                case "--jobs" -> jobs = Math.max(1, Integer.parseInt(value(args, ++i, arg)));
+                case "--batch" -> settings.batchSize = Math.max(1, Integer.parseInt(value(args, ++i, arg)));
+                case "--coarse" -> settings.coarseFactor = Integer.parseInt(value(args, ++i, arg));
+                case "--coarse-k" -> settings.coarseTopK = Integer.parseInt(value(args, ++i, arg));
+                case "--ann" -> settings.ann = true;
+                case "--ann-lists" -> settings.annLists = Integer.parseInt(value(args, ++i, arg));
+                case "--ann-probes" -> settings.annProbes = Integer.parseInt(value(args, ++i, arg));
+                case "--compress" -> settings.candidateBits = Integer.parseInt(value(args, ++i, arg));
+                case "--rerank" -> settings.rerankTopK = Integer.parseInt(value(args, ++i, arg));
+                case "--spectral" -> settings.spectral = true;
+                case "--bands" -> settings.spectralBands = Integer.parseInt(value(args, ++i, arg));
+                case "--offsets" -> settings.offsets = true;
+                case "--max-offset" -> settings.maxOffset = Integer.parseInt(value(args, ++i, arg));
+                case "--offset-step" -> settings.offsetStep = Integer.parseInt(value(args, ++i, arg));
+                case "--offset-k" -> settings.offsetShortlist = Integer.parseInt(value(args, ++i, arg));
+                case "--beam" -> settings.beamWidth = Math.max(1, Integer.parseInt(value(args, ++i, arg)));
+                case "--beam-branch" -> settings.beamBranch = Integer.parseInt(value(args, ++i, arg));
+                case "--beam-budget" -> settings.beamBudget = Integer.parseInt(value(args, ++i, arg));
+                case "--recall" -> settings.measureRecall = true;
+                case "--out" -> outDir = new File(value(args, ++i, arg));
+                case "--compression" -> compression = Integer.parseInt(value(args, ++i, arg));
+                case "--share-frames" -> shareFrames = true;
+                case "--wav" -> wav = true;
+                case "--metrics" -> metrics = true;
+                case "--stats" -> statsFile = new File(value(args, ++i, arg));
+                case "--help" -> throw new IllegalArgumentException("");
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (versionName == null) throw new IllegalArgumentException("--version is required");
+        if (inputs.isEmpty()) throw new IllegalArgumentException("No input files given");
+        if (settings.candidateBits != 8 && settings.candidateBits != 16 && settings.candidateBits != 32) {
+            throw new IllegalArgumentException("--compress takes 8 or 16");
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    private boolean run() {
+        initialize();
+        MinecraftVersion version = SoundFilesGrabber.tryGetVersion(versionName);
+        if (version == null) {
+            error("Unknown minecraft version %s", versionName);
+            return false;
+        }
+        SoundFilesGrabber.soundMap.get(version).soundFilesMap().resolveSounds();
+
+        ConverterContext ctx = new ConverterContext(version, frameLength, pitches, highpass, brightness);
+        if (soundCheck(ctx)) return false;
+        resetExecutor(threads);
+        outDir.mkdirs();
+        Stats.begin(inputs.size() == 1 ? inputs.get(0).getName() : inputs.size() + " files");
+
+        //index and matchers are shared by every input
+        processingStatus = Status.PROCESSING_SOUNDS;
+        currentContext = ctx;
+        currentDb = SoundMatcher.getDatabase(ctx);
+        currentDb.processSounds(ctx);
+        new SoundMatcher(new CompleteAudioResult(), useGpu, settings).enableMatchers(ctx, blacklist);
+        processingStatus = Status.MATCHING_AUDIO;
+
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService songs = Executors.newFixedThreadPool(jobs);
+        List<Future<?>> futures = new ArrayList<>();
+        for (File input : inputs) {
+            futures.add(songs.submit(() -> {
+                if (!convert(ctx, input)) failed.incrementAndGet();
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                e.printStackTrace();
+            }
+        }
+        songs.shutdown();
+        executor.shutdown();
+        SoundMatcher.freeCurrentGPU();
+        processingStatus = Status.COMPLETE;
+        Stats.end();
+        if (statsFile != null) {
+            try {
+                Stats.writeJson(statsFile.toPath(), Stats.settings(ctx, soundsPerFrame, useGpu, threads, settings));
+            } catch (Exception e) {
+                error("Failed to write stats to %s: %s", statsFile, e.getMessage());
+            }
+        }
+
+        info("Converted %d of %d files", inputs.size() - failed.get(), inputs.size());
+        return failed.get() == 0;
+    }
+
+    private boolean convert(ConverterContext ctx, File input) {
+        if (!input.isFile()) {
+            error("No such file %s", input);
+            return false;
+        }
+        String base = input.getName().contains(".") ? input.getName().substring(0, input.getName().lastIndexOf('.')) : input.getName();
+        String name = filterString(base) + "-" + ctx.frameLength();
+
+        long start = System.nanoTime();
+        CompleteAudioResult result = new CompleteAudioResult();
+        new SoundMatcher(result, useGpu, settings).processAudioFile(ctx, soundsPerFrame, input, r -> {});
+        if (result.expectedFrames < 0 || !result.complete()) {
+            error("Failed to convert %s", input);
+            return false;
+        }
+
+        DatapackWriter.createAudioPack(ctx, new File(outDir, name), result, compression, shareFrames);
+        try {
+            if (wav) OfflineRenderer.writeWav(ctx, result, new File(outDir, name + ".wav"));
+            if (metrics) {
+                QualityReport report = OfflineRenderer.measure(ctx, result, input);
+                report.writeCsv(new File(outDir, name + "-metrics.csv").toPath());
+                info("%s: %s", name, report.summary());
+            }
+        } catch (Exception e) {
+            error("%s: %s", name, e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        info("%s: %d frames in %.1fs", name, result.completedFrames(), (System.nanoTime() - start) / 1e9);
+        return true;
+    }
+}
@@ -5,189 +5,321 @@ import net.thorioum.result.SingleFrameResult;
 import net.thorioum.result.SingleSoundResult;
 import net.thorioum.sound.ConverterContext;
 import net.thorioum.sound.SoundFilesGrabber;
+import net.thorioum.Stats.Stage;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Objects;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 
 import static net.thorioum.Eidolon.error;
 
 public class DatapackWriter {
 
-    public static void createAudioPack(ConverterContext ctx, File file, CompleteAudioResult result) {
-        try {
-            String name = file.getName();
-
-            File unzippedFile = new File(file.getParentFile().getAbsolutePath() + "/datatmp" + name);
-            unzippedFile.mkdirs();
-
-            File framerateFile = new File(unzippedFile.getAbsolutePath() + "/framerate.txt");
-            framerateFile.createNewFile();
-            writeFile(framerateFile, String.valueOf(ctx.frameLength()));
-
-            File mcmeta = new File(unzippedFile.getAbsolutePath() + "/pack.mcmeta");
-            mcmeta.createNewFile();
-            writeFile(mcmeta,"{\"pack\":{\"description\":[\"[https://github.com/Thorioum/eidolon] " + name + "\",\"Audio pack provided graciously and created meticulously by the eidolon project. For more information contact 'thorioum' on discord.\"],\"pack_format\":1}}");
-
-            File dataDir = new File(unzippedFile.getAbsolutePath() + "/data");
-            dataDir.mkdirs();
-
-
-            File dataSubDir = new File(dataDir.getAbsolutePath() + "/" + name);
-            dataSubDir.mkdirs();
-            dataSubDir = new File(dataSubDir.getAbsolutePath() + "/" + (ctx.version().isAfterOrEqual(SoundFilesGrabber.tryGetVersion("1.21")) ? "function" : "functions"));
-            dataSubDir.mkdirs();
+    private static final String FRAME_HEADER = "# https://github.com/Thorioum/eidolon\n\nexecute run stopsound @a[tag=!nomusic,tag=!nm] record\n";
 
+    public static void createAudioPack(ConverterContext ctx, File file, CompleteAudioResult result) {
+        createAudioPack(ctx, file, result, Deflater.DEFAULT_COMPRESSION);
+    }
 
-            File playFuncFile = new File(dataSubDir.getAbsolutePath() + "/play.mcfunction");
-            playFuncFile.createNewFile();
-            writeFile(playFuncFile, "schedule function " + name + ":_/0 1t append");
-
-            File frameDir = new File(dataSubDir.getAbsolutePath() + "/_");
-            frameDir.mkdirs();
+    public static void createAudioPack(ConverterContext ctx, File file, CompleteAudioResult result, int compressionLevel) {
+        createAudioPack(ctx, file, result, compressionLevel, false);
+    }
 
-            //create frames
-            for(int i = 0; i < result.composition().size() + 1; i++) {
-                if(i == result.composition().size()) {
-                    String frameStringData = "# https://github.com/Thorioum/eidolon\n\nexecute run stopsound @a[tag=!nomusic,tag=!nm] record\n";
-                    File frameFile = new File(frameDir.getAbsolutePath() + "/" + i + ".mcfunction");
-                    frameFile.createNewFile();
-                    writeFile(frameFile, frameStringData);
-                    break;
-                }
-                SingleFrameResult soundEffectComposition = result.composition().get(i);
-                File frameFile = new File(frameDir.getAbsolutePath() + "/" + i + ".mcfunction");
-                frameFile.createNewFile();
-
-                String frameStringData = "# https://github.com/Thorioum/eidolon\n\nexecute run stopsound @a[tag=!nomusic,tag=!nm] record\n";
-                for(SingleSoundResult match : soundEffectComposition.getComposition()) {
-                    String cmd = match.asCommand();
-                    if(cmd.startsWith("/")) cmd = cmd.substring(1);
-                    frameStringData += cmd + "\n";
+    //frames per serialization task
+    private static final int CHUNK_FRAMES = 512;
+
+    /**
+     * compressionLevel is a java.util.zip.Deflater level (0-9, or -1 for the default). With shareFrames, frame bodies
+     * that occur more than once are written once as _s/{id} and called from each frame, and runs of empty frames
+     * collapse into one stopsound frame scheduled with the whole run's delay. Sounds that start a whole number of ticks
+     * (ConverterContext.tickSamples()) into their frame go into {frame}_{ticks} functions the frame schedules, what an
+     * offset has past its last whole tick is dropped.
+     */
+    public static void createAudioPack(ConverterContext ctx, File file, CompleteAudioResult result, int compressionLevel, boolean shareFrames) {
+        long start = Stats.now();
+        String name = file.getName();
+        Path zippedFile = Paths.get(file.getParentFile().getAbsolutePath(), name + ".zip");
+
+        try (ZipAssembler zip = new ZipAssembler(Files.newOutputStream(zippedFile))) {
+            ZipAssembler.Encoder enc = new ZipAssembler.Encoder(compressionLevel);
+            ZipAssembler.Entries header = new ZipAssembler.Entries();
+            String functionDir = "data/" + name + "/" + (ctx.version().isAfterOrEqual(SoundFilesGrabber.tryGetVersion("1.21")) ? "function" : "functions") + "/";
+            try {
+                enc.begin("framerate.txt").append(ctx.frameLength());
+                enc.finish(header);
+                enc.begin("pack.mcmeta").append("{\"pack\":{\"description\":[\"[https://github.com/Thorioum/eidolon] " + name + "\",\"Audio pack provided graciously and created meticulously by the eidolon project. For more information contact 'thorioum' on discord.\"],\"pack_format\":1}}");
+                enc.finish(header);
+                enc.begin(functionDir + "play.mcfunction").append("schedule function ").append(name).append(":_/0 1t append");
+                enc.finish(header);
+            } finally {
+                enc.end();
+            }
+            zip.write(header);
+            zip.directory("data/");
+            zip.directory("data/" + name + "/");
+            zip.directory(functionDir);
+            zip.directory(functionDir + "_/");
+
+            int delayTicks = ctx.delayTicks();
+            int tickSamples = ctx.tickSamples();
+            String scheduleMode = ctx.version().isAfterOrEqual(SoundFilesGrabber.tryGetVersion("1.15")) ? " append" : "";
+            Plan plan = shareFrames ? Plan.of(result, tickSamples) : null;
+            FrameEncoder frames = new FrameEncoder(result, plan, name, functionDir, delayTicks, tickSamples, scheduleMode, compressionLevel);
+
+            //frames are serialized and deflated in chunks on the fork/join pool, and written in order as they finish.
+            //a few chunks run ahead of the writer, so memory stays bounded however long the song is
+            int count = result.size() + 1;
+            int chunks = (count + CHUNK_FRAMES - 1) / CHUNK_FRAMES;
+            int ahead = Math.max(2, 2 * ForkJoinPool.getCommonPoolParallelism());
+            ArrayDeque<ForkJoinTask<ZipAssembler.Entries>> running = new ArrayDeque<>();
+            int submitted = 0;
+            try {
+                while (submitted < chunks || !running.isEmpty()) {
+                    while (submitted < chunks && running.size() < ahead) {
+                        int from = submitted * CHUNK_FRAMES;
+                        int to = Math.min(count, from + CHUNK_FRAMES);
+                        running.add(ForkJoinPool.commonPool().submit(() -> frames.encode(from, to)));
+                        submitted++;
+                    }
+                    zip.write(running.poll().join());
                 }
-                frameStringData += "\nschedule function " + name + ":_/" + (i+1) + " " + (ctx.frameLength() % 50 != 0 ? ctx.frameLength()/10 : (ctx.frameLength() / 50)) + "t" + (ctx.version().isAfterOrEqual(SoundFilesGrabber.tryGetVersion("1.15")) ? " append" : "");
-
-                writeFile(frameFile, frameStringData);
+            } finally {
+                for (ForkJoinTask<?> task : running) task.cancel(false);
             }
 
-            Path zippedFile = Paths.get(file.getParentFile().getAbsolutePath() + "/" + name + ".zip");
-            zipDirectoryAndDeleteSource(unzippedFile.toPath(), zippedFile);
-            unzippedFile.delete();
+            if (plan != null && plan.sharedCount > 0) {
+                zip.directory(functionDir + "_s/");
+                zip.write(frames.encodeShared());
+            }
         } catch (Exception e) {
             e.printStackTrace();
             error(e.getMessage());
         }
+        Stage.EXPORT.record(start, result.size() + 1);
     }
-    private static void writeFile(File mcmeta, String str) {
-        try (FileWriter fileWriter = new FileWriter(mcmeta);
-             BufferedWriter bufferedWriter = new BufferedWriter(fileWriter)) {
 
-            bufferedWriter.write(str);
+    //the playsound lines of a frame, empty when nothing plays. sounds delayed by whole ticks of tickSamples are scheduled as function_{ticks} instead
+    private static void appendBody(StringBuilder sb, SingleFrameResult frame, String function, String scheduleMode, int tickSamples) {
+        if (frame == null) return;
+        for (SingleSoundResult match : frame.getComposition()) {
+            if (ticks(match, tickSamples) == 0) match.appendCommand(sb).append('\n');
+        }
+        int maxTicks = maxTicks(frame, tickSamples);
+        for (int t = 1; t <= maxTicks; t++) {
+            if (!hasDelay(frame, t, tickSamples)) continue;
+            sb.append("schedule function ").append(function).append('_').append(t)
+                    .append(' ').append(t).append('t').append(scheduleMode).append('\n');
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            error(e.getMessage());
+    //the function_{ticks} files appendBody schedules, written next to the function whose body it was
+    private static void encodeDelayed(ZipAssembler.Encoder enc, ZipAssembler.Entries entries, String path, SingleFrameResult frame, int tickSamples) {
+        int maxTicks = maxTicks(frame, tickSamples);
+        for (int t = 1; t <= maxTicks; t++) {
+            if (!hasDelay(frame, t, tickSamples)) continue;
+            StringBuilder sb = enc.begin(path + "_" + t + ".mcfunction");
+            for (SingleSoundResult match : frame.getComposition()) {
+                if (ticks(match, tickSamples) == t) match.appendCommand(sb).append('\n');
+            }
+            enc.finish(entries);
         }
     }
 
-    public static void zipDirectoryAndDeleteSource(Path sourceDir, Path zipFile) throws IOException {
-        Objects.requireNonNull(sourceDir, "sourceDir");
-        Objects.requireNonNull(zipFile, "zipFile");
+    private static int ticks(SingleSoundResult match, int tickSamples) {
+        return match.offset() / tickSamples;
+    }
 
-        if (!Files.isDirectory(sourceDir)) {
-            throw new IllegalArgumentException("sourceDir must be a directory: " + sourceDir);
-        }
+    private static int maxTicks(SingleFrameResult frame, int tickSamples) {
+        int max = 0;
+        if (frame == null) return max;
+        for (SingleSoundResult match : frame.getComposition()) max = Math.max(max, ticks(match, tickSamples));
+        return max;
+    }
 
-        final Path sourceReal = sourceDir.toRealPath(LinkOption.NOFOLLOW_LINKS);
-        if (sourceReal.getParent() == null) {
-            throw new IllegalArgumentException("Refusing to delete a filesystem root: " + sourceReal);
+    private static boolean hasDelay(SingleFrameResult frame, int ticks, int tickSamples) {
+        for (SingleSoundResult match : frame.getComposition()) {
+            if (ticks(match, tickSamples) == ticks) return true;
         }
+        return false;
+    }
 
-        final Path zipAbs = zipFile.toAbsolutePath().normalize();
-        if (zipAbs.startsWith(sourceReal)) {
-            throw new IllegalArgumentException("zipFile must NOT be inside sourceDir when deletion is requested.");
+    private static final class FrameEncoder {
+        private final CompleteAudioResult result;
+        private final Plan plan;
+        private final String name;
+        private final String functionDir;
+        private final int delayTicks;
+        private final int tickSamples;
+        private final String scheduleMode;
+        private final int compressionLevel;
+
+        FrameEncoder(CompleteAudioResult result, Plan plan, String name, String functionDir, int delayTicks, int tickSamples, String scheduleMode, int compressionLevel) {
+            this.result = result;
+            this.plan = plan;
+            this.name = name;
+            this.functionDir = functionDir;
+            this.delayTicks = delayTicks;
+            this.tickSamples = tickSamples;
+            this.scheduleMode = scheduleMode;
+            this.compressionLevel = compressionLevel;
         }
 
-        if (zipAbs.getParent() != null) {
-            Files.createDirectories(zipAbs.getParent());
+        //frames [from, to), the frame at result.size() is the extra one past the end that only stops the sound
+        ZipAssembler.Entries encode(int from, int to) {
+            ZipAssembler.Entries entries = new ZipAssembler.Entries();
+            ZipAssembler.Encoder enc = new ZipAssembler.Encoder(compressionLevel);
+            int last = result.size();
+            try {
+                for (int i = from; i < to; i++) {
+                    if (plan != null && !plan.emitted(i)) continue;
+
+                    StringBuilder sb = enc.begin(functionDir + "_/" + i + ".mcfunction").append(FRAME_HEADER);
+                    boolean inline = false;
+                    if (i != last) {
+                        int next = i + 1;
+                        if (plan == null) {
+                            inline = true;
+                        } else {
+                            int body = plan.body[i];
+                            if (body >= 0) sb.append("function ").append(name).append(":_s/").append(body).append('\n');
+                            else inline = body == Plan.INLINE;
+                            next = plan.next(i);
+                        }
+                        if (inline) appendBody(sb, result.get(i), name + ":_/" + i, scheduleMode, tickSamples);
+                        sb.append("\nschedule function ").append(name).append(":_/").append(next)
+                                .append(' ').append((next - i) * delayTicks).append('t').append(scheduleMode);
+                    }
+                    enc.finish(entries);
+                    if (inline) encodeDelayed(enc, entries, functionDir + "_/" + i, result.get(i), tickSamples);
+                }
+            } finally {
+                enc.end();
+            }
+            return entries;
         }
 
-        zipDirectory(sourceReal, zipAbs);
-
-        if (!Files.exists(zipAbs) || Files.size(zipAbs) == 0L) {
-            throw new IOException("Zip creation appears to have failed: " + zipAbs);
+        ZipAssembler.Entries encodeShared() {
+            ZipAssembler.Entries entries = new ZipAssembler.Entries();
+            ZipAssembler.Encoder enc = new ZipAssembler.Encoder(compressionLevel);
+            try {
+                for (int id = 0; id < plan.sharedCount; id++) {
+                    SingleFrameResult frame = result.get(plan.sharedFrom[id]);
+                    appendBody(enc.begin(functionDir + "_s/" + id + ".mcfunction"), frame, name + ":_s/" + id, scheduleMode, tickSamples);
+                    enc.finish(entries);
+                    encodeDelayed(enc, entries, functionDir + "_s/" + id, frame, tickSamples);
+                }
+            } finally {
+                enc.end();
+            }
+            return entries;
         }
-        try (java.util.zip.ZipFile ignored = new java.util.zip.ZipFile(zipAbs.toFile())) {
+    }
 
+    /**
+     * Which frame bodies are shared and which frames are written at all. Bodies are compared by a 64 bit hash of
+     * their text (plus its length), computed in parallel, so only the hashes of the whole song are kept around.
+     */
+    private static final class Plan {
+        static final int EMPTY = -1;
+        static final int INLINE = -2;
+
+        //per frame: EMPTY, INLINE, or the id of its shared body
+        final int[] body;
+        //first frame of each shared body, its text is regenerated from there
+        final int[] sharedFrom;
+        final int sharedCount;
+
+        private Plan(int[] body, int[] sharedFrom, int sharedCount) {
+            this.body = body;
+            this.sharedFrom = sharedFrom;
+            this.sharedCount = sharedCount;
         }
 
-        Files.walkFileTree(sourceReal, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Files.delete(file);
-                return FileVisitResult.CONTINUE;
-            }
+        static Plan of(CompleteAudioResult result, int tickSamples) {
+            int frames = result.size();
+            long[] hashes = new long[frames];
+            boolean[] empty = new boolean[frames];
+            int chunks = (frames + CHUNK_FRAMES - 1) / CHUNK_FRAMES;
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                StringBuilder sb = new StringBuilder(4096);
+                for (int i = c * CHUNK_FRAMES; i < Math.min(frames, (c + 1) * CHUNK_FRAMES); i++) {
+                    sb.setLength(0);
+                    //without a function name the delayed lines read the same in every frame that could share this body
+                    appendBody(sb, result.get(i), "", "", tickSamples);
+                    empty[i] = sb.length() == 0;
+                    hashes[i] = hash(sb);
+                }
+            });
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                if (exc != null) throw exc;
-                Files.delete(dir);
-                return FileVisitResult.CONTINUE;
+            Map<Long, Integer> firstFrame = new HashMap<>();
+            Map<Long, Integer> sharedIds = new HashMap<>();
+            int[] body = new int[frames];
+            int[] sharedFrom = new int[16];
+            int sharedCount = 0;
+            StringBuilder firstText = new StringBuilder(4096);
+            StringBuilder text = new StringBuilder(4096);
+            for (int i = 0; i < frames; i++) {
+                if (empty[i]) {
+                    body[i] = EMPTY;
+                    continue;
+                }
+                Integer first = firstFrame.putIfAbsent(hashes[i], i);
+                //the hash only finds the frame that probably reads the same, the text decides.
+                //a frame that only collides keeps its own body
+                if (first == null || !sameBody(result, first, i, tickSamples, firstText, text)) {
+                    body[i] = INLINE;
+                    continue;
+                }
+                Integer id = sharedIds.get(hashes[i]);
+                if (id == null) {
+                    id = sharedCount++;
+                    sharedIds.put(hashes[i], id);
+                    if (id == sharedFrom.length) sharedFrom = Arrays.copyOf(sharedFrom, id * 2);
+                    sharedFrom[id] = first;
+                    body[first] = id;
+                }
+                body[i] = id;
             }
-        });
-    }
-    public static void zipDirectory(Path sourceDir, Path zipFile) throws IOException {
-        Objects.requireNonNull(sourceDir, "sourceDir");
-        Objects.requireNonNull(zipFile, "zipFile");
-        if (!Files.isDirectory(sourceDir)) {
-            throw new IllegalArgumentException("sourceDir must be a directory: " + sourceDir);
-        }
-        if (zipFile.getParent() != null) {
-            Files.createDirectories(zipFile.getParent());
+            return new Plan(body, sharedFrom, sharedCount);
         }
 
-        final Path normalizedZip = zipFile.toAbsolutePath().normalize();
-
-        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zipFile))) {
-            Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+        //a frame is written when it plays something, when it has to stop what the frame before it played,
+        //or when it is the entry point or the final stop frame. every other empty frame is skipped over
+        boolean emitted(int frame) {
+            if (frame == 0 || frame >= body.length) return true;
+            return body[frame] != EMPTY || body[frame - 1] != EMPTY;
+        }
 
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    if (Files.isSymbolicLink(dir)) return FileVisitResult.SKIP_SUBTREE;
+        int next(int frame) {
+            int next = frame + 1;
+            while (!emitted(next)) next++;
+            return next;
+        }
 
-                    Path rel = sourceDir.relativize(dir);
-                    if (!rel.toString().isEmpty()) {
-                        String entryName = rel.toString().replace('\\', '/') + "/";
-                        ZipEntry entry = new ZipEntry(entryName);
-                        entry.setTime(attrs.lastModifiedTime().toMillis());
-                        zos.putNextEntry(entry);
-                        zos.closeEntry();
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
+        private static boolean sameBody(CompleteAudioResult result, int a, int b, int tickSamples, StringBuilder aText, StringBuilder bText) {
+            aText.setLength(0);
+            bText.setLength(0);
+            appendBody(aText, result.get(a), "", "", tickSamples);
+            appendBody(bText, result.get(b), "", "", tickSamples);
+            return aText.compareTo(bText) == 0;
+        }
 
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    if (Files.isSymbolicLink(file)) return FileVisitResult.CONTINUE;
-                    if (file.toAbsolutePath().normalize().equals(normalizedZip)) return FileVisitResult.CONTINUE;
-
-                    Path rel = sourceDir.relativize(file);
-                    String entryName = rel.toString().replace('\\', '/');
-                    ZipEntry entry = new ZipEntry(entryName);
-                    entry.setTime(attrs.lastModifiedTime().toMillis());
-                    zos.putNextEntry(entry);
-                    Files.copy(file, zos);
-                    zos.closeEntry();
-                    return FileVisitResult.CONTINUE;
-                }
-            });
+        private static long hash(CharSequence s) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h ^ ((long) s.length() << 32);
         }
     }
-
 }
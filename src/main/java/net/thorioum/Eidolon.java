@@ -4,12 +4,15 @@ import net.thorioum.gui.Theme;
 import net.thorioum.gui.Window;
 import net.thorioum.result.CompleteAudioResult;
 import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
 import net.thorioum.sound.SoundEffectDatabase;
 import net.thorioum.sound.SoundFilesGrabber;
 import net.thorioum.sound.SoundMatcher;
+import net.thorioum.sound.Util;
 
 import javax.swing.*;
 import java.io.File;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -22,6 +25,10 @@ public class Eidolon {
     private static Window window;
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            Cli.main(args);
+            return;
+        }
         initialize();
 
         List<MinecraftVersion> supportedVersions = SoundFilesGrabber.soundMap.keySet().stream().toList();
@@ -40,6 +47,9 @@ public class Eidolon {
 
 
 
+    //set by the command line entry point, logging then skips the gui console
+    public static volatile boolean headless = false;
+
     public static ExecutorService executor = null;
     private static int lastNum = -1;
     static {
@@ -49,7 +59,8 @@ public class Eidolon {
         resetExecutor(lastNum == -1 ? Runtime.getRuntime().availableProcessors()/2 : lastNum);
     }
     public static void resetExecutor(int numProcessors) {
-        int num = Math.min(Runtime.getRuntime().availableProcessors(),numProcessors);
+        //at least one thread, half of a single core machine would otherwise be an empty pool
+        int num = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),numProcessors));
         lastNum = num;
         if(executor != null) executor.shutdownNow();
         executor = Executors.newFixedThreadPool(num);
@@ -57,16 +68,16 @@ public class Eidolon {
 
     public static void info(String message, Object... args) {
         String str = "[INFO]: " + String.format(message,args) + "\n";
-        Window.consoleArea.append(str);
+        if (!headless) Window.consoleArea.append(str);
         System.out.println(str);
     }
     public static void error(String message, Object... args) {
         String str = "[ERROR]: " + String.format(message,args) + "\n";
-        Window.consoleArea.append(str);
+        if (!headless) Window.consoleArea.append(str);
         System.err.println(str);
     }
 
-    private static boolean soundCheck(ConverterContext ctx) {
+    static boolean soundCheck(ConverterContext ctx) {
         if(ctx.sounds() == null) {
             error("this shouldnt happen");
         }
@@ -85,28 +96,43 @@ public class Eidolon {
     public static ConverterContext currentContext = null;
     public static SoundMatcher currentMatcher = null;
 
-    public static Status processingStatus = Status.IDLE;
+    public static volatile Status processingStatus = Status.IDLE;
     public static boolean process(ConverterContext ctx, int soundsPerFrame, boolean useGpu, List<String> blacklistedSounds, File file) {
         if(soundCheck(ctx)) return false;
         resetExecutor();
         resultBuffer.clear();
         currentContext = ctx;
+        Stats.begin(file.getName());
 
-        processingStatus = Status.PROCESSING_SOUNDS;
-        currentDb = SoundMatcher.getDatabase(ctx);
-        currentDb.processSounds(ctx);
-        if(processingStatus == Status.IDLE) return false;
+        try {
+            processingStatus = Status.PROCESSING_SOUNDS;
+            currentDb = SoundMatcher.getDatabase(ctx);
+            currentDb.processSounds(ctx);
+            if(processingStatus == Status.IDLE) return false;
 
-        currentMatcher = new SoundMatcher(resultBuffer, useGpu);
+            currentMatcher = new SoundMatcher(resultBuffer, useGpu);
 
-        currentMatcher.enableMatchers(ctx,blacklistedSounds);
+            currentMatcher.enableMatchers(ctx,blacklistedSounds);
 
-        processingStatus = Status.MATCHING_AUDIO;
-        currentMatcher.processAudioFile(ctx,soundsPerFrame,file,(result)->{
+            processingStatus = Status.MATCHING_AUDIO;
+            currentMatcher.processAudioFile(ctx,soundsPerFrame,file,(result)->{
 
-        });
-        processingStatus = Status.COMPLETE;
-        return true;
+            });
+            processingStatus = Status.COMPLETE;
+            return true;
+        } finally {
+            Stats.end();
+            //-Deidolon.stats.dir=<dir> keeps a json report of every run
+            String statsDir = System.getProperty("eidolon.stats.dir");
+            if (statsDir != null) {
+                Path path = Path.of(statsDir, Util.filterString(file.getName()) + "-" + System.currentTimeMillis() + ".json");
+                try {
+                    Stats.writeJson(path, Stats.settings(ctx, soundsPerFrame, useGpu, lastNum, new MatchSettings()));
+                } catch (Exception e) {
+                    error("Failed to write stats to %s: %s", path, e.getMessage());
+                }
+            }
+        }
     }
 
     public static void cancelCurrentProcess() {
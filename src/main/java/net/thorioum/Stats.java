@@ -0,0 +1,305 @@
+package net.thorioum;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.thorioum.Eidolon.info;
+
+/**
+ * Process wide stage timers and counters. Hot paths only add to LongAdders, and every timed section is also
+ * committed as a JFR event (net.thorioum.Stage) when a recording has it enabled. Between begin and end a
+ * summary of what changed is logged every eidolon.stats.interval seconds (10 by default, 0 turns it off),
+ * and the totals can be written out as JSON.
+ *
+ * Stage times are summed over every thread that ran the stage, so with several matching threads match time
+ * is larger than wall time.
+ */
+public final class Stats {
+
+    public enum Stage {
+        DOWNLOAD("download"),
+        DECODE("decode"),
+        RESAMPLE("resample"),
+        BRIGHTNESS("brightness"),
+        INDEX_IO("index io"),
+        PIPELINE_WAIT("pipeline wait"),
+        MATCH("match"),
+        GPU_LOCK_WAIT("gpu lock wait"),
+        GPU_QUEUE_WAIT("gpu queue wait"),
+        GPU_DEVICE("gpu device"),
+        EXPORT("export");
+
+        public final String label;
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private long lastNanos = 0;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        //start is a Stats.now() taken when the stage began
+        public void record(long start) {
+            add(System.nanoTime() - start, 1);
+        }
+
+        public void record(long start, long items) {
+            add(System.nanoTime() - start, items);
+        }
+
+        public void add(long elapsedNanos, long items) {
+            nanos.add(elapsedNanos);
+            calls.increment();
+            this.items.add(items);
+
+            StageEvent event = new StageEvent();
+            if (event.isEnabled()) {
+                event.stage = label;
+                event.elapsed = elapsedNanos;
+                event.items = items;
+                event.commit();
+            }
+        }
+
+        public double seconds() {
+            return nanos.sum() / 1e9;
+        }
+    }
+
+    public enum Counter {
+        FRAMES("frames"),
+        CANDIDATES_SCORED("candidates scored"),
+        SOUNDS_INDEXED("sounds indexed"),
+        CANDIDATES_INDEXED("candidates indexed"),
+        GPU_BYTES("gpu bytes");
+
+        public final String label;
+        private final LongAdder count = new LongAdder();
+        private long lastCount = 0;
+        private double lastRate = 0;
+
+        Counter(String label) {
+            this.label = label;
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    @Name("net.thorioum.Stage")
+    @Label("Eidolon Stage")
+    @Category("Eidolon")
+    @Description("Time spent in one pass of a pipeline stage")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+        @Label("Items")
+        long items;
+    }
+
+    @Name("net.thorioum.Throughput")
+    @Label("Eidolon Throughput")
+    @Category("Eidolon")
+    @Description("Rates over one summary interval")
+    @StackTrace(false)
+    static final class ThroughputEvent extends Event {
+        @Label("Frames Per Second")
+        double framesPerSecond;
+        @Label("Candidates Scored Per Second")
+        double candidatesPerSecond;
+    }
+
+    private static final long INTERVAL_SECONDS = Long.getLong("eidolon.stats.interval", 10);
+
+    private static ScheduledExecutorService summaries;
+    private static ScheduledFuture<?> summaryTask;
+    private static String run = "";
+    private static long runStart = System.nanoTime();
+    private static long runEnd = -1;
+    private static long lastSummary = runStart;
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    //clears every timer and counter and starts logging summaries for a new run
+    public static synchronized void begin(String name) {
+        stopSummaries();
+        for (Stage stage : Stage.values()) {
+            stage.nanos.reset();
+            stage.calls.reset();
+            stage.items.reset();
+            stage.lastNanos = 0;
+        }
+        for (Counter counter : Counter.values()) {
+            counter.count.reset();
+            counter.lastCount = 0;
+        }
+        run = name;
+        runStart = lastSummary = System.nanoTime();
+        runEnd = -1;
+
+        if (INTERVAL_SECONDS > 0) {
+            if (summaries == null) {
+                summaries = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "eidolon-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            summaryTask = summaries.scheduleAtFixedRate(Stats::summary, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    //stops the summaries and logs the totals of the run
+    public static synchronized void end() {
+        if (runEnd >= 0) return;
+        stopSummaries();
+        runEnd = System.nanoTime();
+        double wall = (runEnd - runStart) / 1e9;
+        info("[stats] %s done in %.1fs: %s", run, wall, describe(wall, false));
+    }
+
+    private static void stopSummaries() {
+        if (summaryTask != null) summaryTask.cancel(false);
+        summaryTask = null;
+    }
+
+    private static synchronized void summary() {
+        long time = System.nanoTime();
+        double interval = (time - lastSummary) / 1e9;
+        lastSummary = time;
+        if (interval <= 0) return;
+
+        String line = describe(interval, true);
+
+        ThroughputEvent event = new ThroughputEvent();
+        if (event.isEnabled()) {
+            event.framesPerSecond = Counter.FRAMES.lastRate;
+            event.candidatesPerSecond = Counter.CANDIDATES_SCORED.lastRate;
+            event.commit();
+        }
+        for (Stage stage : Stage.values()) stage.lastNanos = stage.nanos.sum();
+        for (Counter counter : Counter.values()) counter.lastCount = counter.count.sum();
+
+        if (!line.isEmpty()) info("[stats] %s", line);
+    }
+
+    //rates over seconds, and the stages that took any time. since the last summary when delta is set
+    private static String describe(double seconds, boolean delta) {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : new Counter[]{Counter.FRAMES, Counter.CANDIDATES_SCORED, Counter.SOUNDS_INDEXED}) {
+            long n = counter.count.sum() - (delta ? counter.lastCount : 0);
+            counter.lastRate = n / seconds;
+            if (n == 0) continue;
+            if (!sb.isEmpty()) sb.append(", ");
+            sb.append(String.format("%s %s/s", compact(counter.lastRate), counter.label));
+        }
+
+        boolean first = true;
+        for (Stage stage : Stage.values()) {
+            long nanos = stage.nanos.sum() - (delta ? stage.lastNanos : 0);
+            if (nanos < 1_000_000) continue;
+            sb.append(first ? (sb.isEmpty() ? "" : " | ") : ", ");
+            sb.append(String.format("%s %.1fs", stage.label, nanos / 1e9));
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    private static String compact(double v) {
+        if (v >= 1e9) return String.format("%.2fG", v / 1e9);
+        if (v >= 1e6) return String.format("%.2fM", v / 1e6);
+        if (v >= 1e4) return String.format("%.1fk", v / 1e3);
+        return String.format("%.1f", v);
+    }
+
+    //the settings a run was made with, for the settings object of toJson
+    public static JsonObject settings(ConverterContext ctx, int soundsPerFrame, boolean useGpu, int threads, MatchSettings matchSettings) {
+        JsonObject settings = new JsonObject();
+        settings.addProperty("version", ctx.version().str());
+        settings.addProperty("frameLength", ctx.frameLength());
+        settings.addProperty("pitchesPerSound", ctx.pitchesPerSound());
+        settings.addProperty("highpass", ctx.highpass_cutoff());
+        settings.addProperty("brightness", ctx.brightnessThreshold());
+        settings.addProperty("soundsPerFrame", soundsPerFrame);
+        settings.addProperty("useGpu", useGpu);
+        settings.addProperty("threads", threads);
+        JsonElement match = new GsonBuilder().create().toJsonTree(matchSettings);
+        for (Map.Entry<String, JsonElement> entry : match.getAsJsonObject().entrySet()) settings.add(entry.getKey(), entry.getValue());
+        return settings;
+    }
+
+    public static synchronized JsonObject toJson(JsonObject settings) {
+        long end = runEnd >= 0 ? runEnd : System.nanoTime();
+        double wall = (end - runStart) / 1e9;
+
+        JsonObject json = new JsonObject();
+        json.addProperty("run", run);
+        json.addProperty("wallSeconds", wall);
+        if (settings != null) json.add("settings", settings);
+
+        JsonObject stages = new JsonObject();
+        for (Stage stage : Stage.values()) {
+            JsonObject s = new JsonObject();
+            s.addProperty("seconds", stage.seconds());
+            s.addProperty("calls", stage.calls.sum());
+            s.addProperty("items", stage.items.sum());
+            stages.add(stage.name().toLowerCase(), s);
+        }
+        json.add("stages", stages);
+
+        JsonObject counters = new JsonObject();
+        JsonObject rates = new JsonObject();
+        for (Counter counter : Counter.values()) {
+            counters.addProperty(counter.name().toLowerCase(), counter.get());
+            rates.addProperty(counter.name().toLowerCase() + "PerSecond", wall > 0 ? counter.get() / wall : 0.0);
+        }
+        json.add("counters", counters);
+        json.add("rates", rates);
+        return json;
+    }
+
+    public static void writeJson(Path path, JsonObject settings) throws IOException {
+        JsonObject json = toJson(settings);
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(json, writer);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package net.thorioum;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip from entries that were already compressed elsewhere (see {@link Encoder}), so entries can be
+ * deflated on many threads and still be laid out in order. ZipOutputStream always compresses what it is given,
+ * which is why the headers are written here by hand. Uses the zip64 end records once there are more than
+ * 65535 entries.
+ */
+final class ZipAssembler implements Closeable {
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int UTF8_NAMES = 0x0800;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private final OutputStream out;
+    private final int dosTime;
+    private final int dosDate;
+    private long offset = 0;
+    private long entries = 0;
+    private final ByteSink central = new ByteSink(1 << 16);
+    private final ByteSink header = new ByteSink(256);
+
+    ZipAssembler(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        this.dosDate = (Math.max(0, now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+    }
+
+    void directory(String name) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        writeEntry(nameBytes, STORED, 0, 0, 0, null, 0, 0x10);
+    }
+
+    void write(Entries batch) throws IOException {
+        for (int i = 0; i < batch.count; i++) {
+            writeEntry(batch.names[i], batch.methods[i], batch.crcs[i], batch.lengths[i], batch.sizes[i],
+                    batch.data.bytes, batch.offsets[i], 0);
+        }
+    }
+
+    private void writeEntry(byte[] name, int method, long crc, int compressed, int size, byte[] data, int dataOffset, int externalAttributes) throws IOException {
+        if (offset > MAX_32) throw new IOException("Datapack is larger than 4GB");
+
+        header.reset();
+        header.int32(0x04034b50);
+        header.int16(20);
+        header.int16(UTF8_NAMES);
+        header.int16(method);
+        header.int16(dosTime);
+        header.int16(dosDate);
+        header.int32(crc);
+        header.int32(compressed);
+        header.int32(size);
+        header.int16(name.length);
+        header.int16(0);
+        header.put(name, 0, name.length);
+        out.write(header.bytes, 0, header.length);
+        if (compressed > 0) out.write(data, dataOffset, compressed);
+
+        central.int32(0x02014b50);
+        central.int16(45);
+        central.int16(20);
+        central.int16(UTF8_NAMES);
+        central.int16(method);
+        central.int16(dosTime);
+        central.int16(dosDate);
+        central.int32(crc);
+        central.int32(compressed);
+        central.int32(size);
+        central.int16(name.length);
+        central.int16(0);
+        central.int16(0);
+        central.int16(0);
+        central.int16(0);
+        central.int32(externalAttributes);
+        central.int32(offset);
+        central.put(name, 0, name.length);
+
+        offset += header.length + compressed;
+        entries++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long centralOffset = offset;
+        out.write(central.bytes, 0, central.length);
+        long centralSize = central.length;
+        long end = centralOffset + centralSize;
+
+        ByteSink tail = new ByteSink(128);
+        boolean zip64 = entries > 0xFFFF || centralOffset > MAX_32 || centralSize > MAX_32;
+        if (zip64) {
+            tail.int32(0x06064b50);
+            tail.int64(44);
+            tail.int16(45);
+            tail.int16(45);
+            tail.int32(0);
+            tail.int32(0);
+            tail.int64(entries);
+            tail.int64(entries);
+            tail.int64(centralSize);
+            tail.int64(centralOffset);
+
+            tail.int32(0x07064b50);
+            tail.int32(0);
+            tail.int64(end);
+            tail.int32(1);
+        }
+        tail.int32(0x06054b50);
+        tail.int16(0);
+        tail.int16(0);
+        tail.int16((int) Math.min(entries, 0xFFFF));
+        tail.int16((int) Math.min(entries, 0xFFFF));
+        tail.int32(Math.min(centralSize, MAX_32));
+        tail.int32(Math.min(centralOffset, MAX_32));
+        tail.int16(0);
+        out.write(tail.bytes, 0, tail.length);
+        out.close();
+    }
+
+    //a batch of encoded entries, their payloads packed back to back in one buffer
+    static final class Entries {
+        private final ByteSink data = new ByteSink(1 << 16);
+        private byte[][] names = new byte[64][];
+        private int[] methods = new int[64];
+        private long[] crcs = new long[64];
+        private int[] offsets = new int[64];
+        private int[] lengths = new int[64];
+        private int[] sizes = new int[64];
+        private int count = 0;
+
+        private void add(byte[] name, int method, long crc, int offset, int length, int size) {
+            if (count == names.length) {
+                int capacity = count * 2;
+                names = Arrays.copyOf(names, capacity);
+                methods = Arrays.copyOf(methods, capacity);
+                crcs = Arrays.copyOf(crcs, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+            names[count] = name;
+            methods[count] = method;
+            crcs[count] = crc;
+            offsets[count] = offset;
+            lengths[count] = length;
+            sizes[count] = size;
+            count++;
+        }
+    }
+
+    /**
+     * Turns text entries into compressed payloads. Each entry is built in one reused StringBuilder, encoded
+     * through one reused byte buffer and deflated with one reused Deflater. Not thread safe, one per task.
+     */
+    static final class Encoder {
+        final StringBuilder text = new StringBuilder(4096);
+        private final int level;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] bytes = new byte[4096];
+        private byte[] name;
+
+        //level is a java.util.zip.Deflater level, 0 stores every entry
+        Encoder(int level) {
+            this.level = level;
+            this.deflater = new Deflater(level, true);
+        }
+
+        StringBuilder begin(String name) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            text.setLength(0);
+            return text;
+        }
+
+        void finish(Entries into) {
+            int size = encode();
+            crc.reset();
+            crc.update(bytes, 0, size);
+
+            ByteSink data = into.data;
+            int start = data.length;
+            int method = STORED;
+            if (level != 0 && size > 0) {
+                deflater.reset();
+                deflater.setInput(bytes, 0, size);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    data.ensure(Math.max(256, size / 2));
+                    data.length += deflater.deflate(data.bytes, data.length, data.bytes.length - data.length);
+                }
+                method = DEFLATED;
+                //tiny entries can come out larger than they went in, those are stored instead
+                if (data.length - start >= size) {
+                    data.length = start;
+                    method = STORED;
+                }
+            }
+            if (method == STORED) data.put(bytes, 0, size);
+            into.add(name, method, crc.getValue(), start, data.length - start, size);
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private int encode() {
+            int length = text.length();
+            if (bytes.length < length) bytes = new byte[Math.max(length, bytes.length * 2)];
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    //names are plain ascii in practice, anything else goes through the real encoder
+                    byte[] utf8 = text.toString().getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length < utf8.length) bytes = new byte[utf8.length];
+                    System.arraycopy(utf8, 0, bytes, 0, utf8.length);
+                    return utf8.length;
+                }
+                bytes[i] = (byte) c;
+            }
+            return length;
+        }
+    }
+
+    //little endian growable byte buffer
+    private static final class ByteSink {
+        byte[] bytes;
+        int length = 0;
+
+        ByteSink(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        void ensure(int extra) {
+            if (bytes.length - length < extra) {
+                long capacity = Math.max((long) bytes.length * 2, (long) length + extra);
+                if (capacity > Integer.MAX_VALUE - 8) throw new IllegalStateException("Zip buffer too large");
+                bytes = Arrays.copyOf(bytes, (int) capacity);
+            }
+        }
+
+        void put(byte[] src, int off, int len) {
+            ensure(len);
+            System.arraycopy(src, off, bytes, length, len);
+            length += len;
+        }
+
+        void int16(int v) {
+            ensure(2);
+            bytes[length++] = (byte) v;
+            bytes[length++] = (byte) (v >>> 8);
+        }
+
+        void int32(long v) {
+            ensure(4);
+            bytes[length++] = (byte) v;
+            bytes[length++] = (byte) (v >>> 8);
+            bytes[length++] = (byte) (v >>> 16);
+            bytes[length++] = (byte) (v >>> 24);
+        }
+
+        void int64(long v) {
+            int32(v);
+            int32(v >>> 32);
+        }
+    }
+}
@@ -18,6 +18,7 @@ import java.io.File;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.prefs.Preferences;
+import java.util.zip.Deflater;
 
 import static net.thorioum.Eidolon.*;
 import static net.thorioum.gui.Theme.*;
@@ -65,7 +66,8 @@ public class Window extends JFrame {
     private final JFormattedTextField highpassField = NumericFields.doubleField(Double.parseDouble(prefs.get("highpass","350.0")), 0.0, Double.MAX_VALUE);
     private final JFormattedTextField brightnessField = NumericFields.doubleField(Double.parseDouble(prefs.get("brightness","0.9")), 0.0, 1.0);
     private final ToggleSwitch tryUseGpuField = new ToggleSwitch(Boolean.parseBoolean(prefs.get("tryUseGpu", String.valueOf(true))));
-    private final JSpinner numProcessorsField = NumericFields.intSpinner(Integer.parseInt(prefs.get("numProcessors", String.valueOf(Runtime.getRuntime().availableProcessors()/2))), 1, Runtime.getRuntime().availableProcessors(),1);
+    private final ToggleSwitch shareFramesField = new ToggleSwitch(Boolean.parseBoolean(prefs.get("shareFrames", String.valueOf(false))));
+    private final JSpinner numProcessorsField = NumericFields.intSpinner(Integer.parseInt(prefs.get("numProcessors", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors()/2)))), 1, Runtime.getRuntime().availableProcessors(),1);
 
     public static final JTextArea consoleArea = new JTextArea();
 
@@ -228,6 +230,12 @@ public class Window extends JFrame {
                 "The amount of cores this program can try to use when matching. With each increment, you CPU and or GPU usage will begin to climb AKA more computer lag, or heat. The more you give, the faster the processing."
         );
 
+        JComponent shareFrames = settingRow(
+                "Share Frames",
+                shareFramesField,
+                "When saving, frames with identical sounds are written once and called from every frame that uses them, and runs of silent frames are skipped with one longer delay. Makes the datapack smaller and faster for the server to load. No effect on processing."
+        );
+
         int y = 0;
 
         // Row 1
@@ -258,6 +266,8 @@ public class Window extends JFrame {
         gc.gridy = y;
         gc.gridx = 0; gc.insets = new Insets(0, 0, 0, 10);
         stack.add(numProcessors, gc);
+        gc.gridx = 1; gc.insets = new Insets(0, 10, 0, 0);
+        stack.add(shareFrames, gc);
 
 
         y++;
@@ -443,6 +453,7 @@ public class Window extends JFrame {
             prefs.put("brightness", String.valueOf(brightnessField.getValue()));
             prefs.put("tryUseGpu", String.valueOf(tryUseGpuField.isSelected()));
             prefs.put("numProcessors", String.valueOf(numProcessorsField.getValue()));
+            prefs.put("shareFrames", String.valueOf(shareFramesField.isSelected()));
 
         });
         uiTick.start();
@@ -515,7 +526,7 @@ public class Window extends JFrame {
                         loadingBar.setProgress((int) (((float) currentDb.metaProcessedSounds() / (float) currentDb.metaExpectedSounds) * 100));
                     } else if (Eidolon.processingStatus == Eidolon.Status.MATCHING_AUDIO && Eidolon.currentContext != null && Eidolon.currentDb != null) {
 
-                        long currentTime = (long) Eidolon.getCurrentResult().composition().size() * Eidolon.currentContext.frameLength();
+                        long currentTime = (long) Eidolon.getCurrentResult().completedFrames() * Eidolon.currentContext.frameLength();
                         long totalTime = (long) Eidolon.getCurrentResult().expectedFrames * Eidolon.currentContext.frameLength();
                         String time = String.format("%s/%s", formatTime(currentTime), formatTime(totalTime));
 
@@ -523,7 +534,7 @@ public class Window extends JFrame {
                         loadingBar.setProgress((int) (((float)currentTime / (float)totalTime) * 100));
 
                     } else if (processingStatus == Status.COMPLETE) {
-                        long currentTime = (long) Eidolon.getCurrentResult().composition().size() * Eidolon.currentContext.frameLength();
+                        long currentTime = (long) Eidolon.getCurrentResult().completedFrames() * Eidolon.currentContext.frameLength();
                         long totalTime = (long) Eidolon.getCurrentResult().expectedFrames * Eidolon.currentContext.frameLength();
                         String time = String.format("%s/%s", formatTime(currentTime), formatTime(totalTime));
 
@@ -547,7 +558,7 @@ public class Window extends JFrame {
                 if(output.getName().endsWith(".zip")) {
                     output = new File(output.getParentFile(), output.getName().replace(".zip",""));
                 }
-                DatapackWriter.createAudioPack(currentContext,output,getCurrentResult());
+                DatapackWriter.createAudioPack(currentContext,output,getCurrentResult(),Deflater.DEFAULT_COMPRESSION,shareFramesField.isSelected());
             }
         });
 
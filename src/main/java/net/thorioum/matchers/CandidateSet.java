@@ -0,0 +1,55 @@
+package net.thorioum.matchers;
+
+import net.thorioum.sound.SoundEffectDatabase;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+//the rows of a database a matcher scores against. without a blacklist this is the database store itself,
+//otherwise the allowed rows are packed into a matrix of their own and ids maps them back to database ids
+final class CandidateSet {
+    final float[] matrix;
+    final float[] norms;
+    final int[] ids;
+    final int size;
+
+    private CandidateSet(float[] matrix, float[] norms, int[] ids, int size) {
+        this.matrix = matrix;
+        this.norms = norms;
+        this.ids = ids;
+        this.size = size;
+    }
+
+    static CandidateSet of(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds) {
+        if (db.frameSize() != frameSize) throw new IllegalArgumentException("Database frame size " + db.frameSize() + " does not match " + frameSize);
+
+        Set<String> blocked = new HashSet<>(blacklistedSounds);
+        int total = db.size();
+        boolean[] allowed = new boolean[total];
+        int size = 0;
+        for (int id = 0; id < total; id++) {
+            allowed[id] = !blocked.contains(db.name(id));
+            if (allowed[id]) size++;
+        }
+        if (size == total) return new CandidateSet(db.samples(), db.norms(), null, size);
+
+        float[] matrix = new float[size * frameSize];
+        float[] norms = new float[size];
+        int[] ids = new int[size];
+        float[] samples = db.samples();
+        int c = 0;
+        for (int id = 0; id < total; id++) {
+            if (!allowed[id]) continue;
+            System.arraycopy(samples, id * frameSize, matrix, c * frameSize, frameSize);
+            norms[c] = db.norm(id);
+            ids[c] = id;
+            c++;
+        }
+        return new CandidateSet(matrix, norms, ids, size);
+    }
+
+    int id(int row) {
+        return ids == null ? row : ids[row];
+    }
+}
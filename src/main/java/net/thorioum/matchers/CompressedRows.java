@@ -0,0 +1,98 @@
+package net.thorioum.matchers;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the candidate rows at 8 or 16 bits a sample, for ranking candidates with a quarter or half of the memory
+ * traffic. 8 bit rows are scaled per row so their loudest sample maps to 127, 16 bit rows are IEEE half floats.
+ * The dot kernel widens 8 bit rows as it loads them. Half float rows are decoded one at a time into a scratch row
+ * for the regular dot kernel, the scratch row stays in L1 so the matrix itself is only ever read in its compressed form.
+ */
+final class CompressedRows {
+    private static final DotKernel KERNEL = DotKernel.select();
+
+    final int bits;
+    final int frameSize;
+    final int size;
+    //one of these holds the samples, scales is all ones for half floats
+    final byte[] bytes;
+    final short[] halves;
+    final float[] scales;
+
+    private CompressedRows(int bits, int frameSize, int size, byte[] bytes, short[] halves, float[] scales) {
+        this.bits = bits;
+        this.frameSize = frameSize;
+        this.size = size;
+        this.bytes = bytes;
+        this.halves = halves;
+        this.scales = scales;
+    }
+
+    static CompressedRows of(float[] matrix, int frameSize, int size, int bits) {
+        if (bits != 8 && bits != 16) throw new IllegalArgumentException("Candidates can be stored at 8 or 16 bits, not " + bits);
+
+        float[] scales = new float[size];
+        if (bits == 16) {
+            short[] halves = new short[size * frameSize];
+            for (int i = 0; i < halves.length; i++) halves[i] = Float.floatToFloat16(matrix[i]);
+            Arrays.fill(scales, 1.0f);
+            return new CompressedRows(bits, frameSize, size, null, halves, scales);
+        }
+
+        byte[] bytes = new byte[size * frameSize];
+        for (int c = 0; c < size; c++) {
+            int off = c * frameSize;
+            float peak = 0.0f;
+            for (int i = 0; i < frameSize; i++) peak = Math.max(peak, Math.abs(matrix[off + i]));
+            scales[c] = peak > 0.0f ? peak / 127.0f : 1.0f;
+            float inv = 1.0f / scales[c];
+            for (int i = 0; i < frameSize; i++) bytes[off + i] = (byte) Math.round(matrix[off + i] * inv);
+        }
+        return new CompressedRows(bits, frameSize, size, bytes, null, scales);
+    }
+
+    long bytes() {
+        return (long) size * frameSize * (bits / 8) + (bits == 8 ? (long) size * Float.BYTES : 0);
+    }
+
+    //out[outOff + (c - from)] = decoded row c . vec, scratch is at least frameSize long (only used for half floats)
+    void dots(int from, int to, float[] vec, float[] out, int outOff, float[] scratch) {
+        if (bytes != null) {
+            KERNEL.dots(bytes, frameSize, from, to, vec, 0, out, outOff);
+            for (int c = from; c < to; c++) out[outOff + (c - from)] *= scales[c];
+            return;
+        }
+        for (int c = from; c < to; c++) {
+            decode(c, scratch);
+            KERNEL.dots(scratch, frameSize, 0, 1, vec, 0, out, outOff + (c - from));
+        }
+    }
+
+    //row c without its scale, the loops are plain conversions so they vectorize
+    private void decode(int c, float[] dst) {
+        int off = c * frameSize;
+        if (bytes != null) {
+            for (int i = 0; i < frameSize; i++) dst[i] = bytes[off + i];
+        } else {
+            for (int i = 0; i < frameSize; i++) dst[i] = Float.float16ToFloat(halves[off + i]);
+        }
+    }
+
+    //quantization noise relative to the rows themselves, in dB
+    double snr(float[] matrix) {
+        double signal = 0.0;
+        double noise = 0.0;
+        float[] row = new float[frameSize];
+        for (int c = 0; c < size; c++) {
+            decode(c, row);
+            int off = c * frameSize;
+            for (int i = 0; i < frameSize; i++) {
+                float x = matrix[off + i];
+                float e = x - row[i] * scales[c];
+                signal += x * x;
+                noise += e * e;
+            }
+        }
+        return noise <= 0.0 ? Double.POSITIVE_INFINITY : 10.0 * Math.log10(signal / noise);
+    }
+}
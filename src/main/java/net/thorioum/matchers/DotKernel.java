@@ -0,0 +1,91 @@
+package net.thorioum.matchers;
+
+import java.util.Random;
+
+import static net.thorioum.Eidolon.info;
+
+/**
+ * Dot products of a run of candidate rows against one vector, the hot loop of the cpu matcher.
+ */
+interface DotKernel {
+
+    /**
+     * out[outOff + (c - from)] = row c of matrix . vec[vecOff .. vecOff + frameSize)
+     */
+    void dots(float[] matrix, int frameSize, int from, int to, float[] vec, int vecOff, float[] out, int outOff);
+
+    //the same over rows of bytes, for the 8 bit candidate copy (row scales are applied by the caller)
+    void dots(byte[] matrix, int frameSize, int from, int to, float[] vec, int vecOff, float[] out, int outOff);
+
+    String name();
+
+    //chosen (and checked) once per process, every matcher shares it
+    static DotKernel select() {
+        return Selected.KERNEL;
+    }
+
+    final class Selected {
+        private static final DotKernel KERNEL = choose();
+
+        private Selected() {
+        }
+    }
+
+    private static DotKernel choose() {
+        DotKernel scalar = new ScalarDotKernel();
+        if (!Boolean.parseBoolean(System.getProperty("eidolon.simd", "true"))) return scalar;
+        //java -jar does not resolve incubator modules on its own, the start scripts pass this flag
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            info("jdk.incubator.vector is not available (start java with --add-modules jdk.incubator.vector), using the scalar dot kernel");
+            return scalar;
+        }
+
+        DotKernel vector;
+        try {
+            vector = new VectorDotKernel();
+        } catch (Throwable t) {
+            info("Vector dot kernel unavailable (%s), using the scalar dot kernel", t);
+            return scalar;
+        }
+        if (!agrees(vector, scalar)) {
+            info("Vector dot kernel disagrees with the scalar path, falling back to scalar");
+            return scalar;
+        }
+        return vector;
+    }
+
+    //the vector path sums in a different order, so it can only be held to a relative tolerance
+    private static boolean agrees(DotKernel a, DotKernel b) {
+        Random random = new Random(0x5eed);
+        int frameSize = 2400 + 3;
+        int rows = 11;
+        float[] matrix = new float[rows * frameSize];
+        float[] vec = new float[frameSize];
+        for (int i = 0; i < matrix.length; i++) matrix[i] = (float) random.nextGaussian();
+        for (int i = 0; i < vec.length; i++) vec[i] = (float) random.nextGaussian();
+
+        byte[] bytes = new byte[rows * frameSize];
+        random.nextBytes(bytes);
+
+        float[] outA = new float[rows];
+        float[] outB = new float[rows];
+        float[] bytesA = new float[rows];
+        float[] bytesB = new float[rows];
+        a.dots(matrix, frameSize, 0, rows, vec, 0, outA, 0);
+        b.dots(matrix, frameSize, 0, rows, vec, 0, outB, 0);
+        a.dots(bytes, frameSize, 0, rows, vec, 0, bytesA, 0);
+        b.dots(bytes, frameSize, 0, rows, vec, 0, bytesB, 0);
+
+        for (int c = 0; c < rows; c++) {
+            double scale = 0.0;
+            double bytesScale = 0.0;
+            for (int i = 0; i < frameSize; i++) {
+                scale += Math.abs(matrix[c * frameSize + i] * vec[i]);
+                bytesScale += Math.abs(bytes[c * frameSize + i] * vec[i]);
+            }
+            if (Math.abs(outA[c] - outB[c]) > 1e-5 * scale) return false;
+            if (Math.abs(bytesA[c] - bytesB[c]) > 1e-5 * bytesScale) return false;
+        }
+        return true;
+    }
+}
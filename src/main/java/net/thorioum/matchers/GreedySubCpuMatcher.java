@@ -1,91 +1,130 @@
 package net.thorioum.matchers;
 
+import net.thorioum.Stats.Counter;
 import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
 import net.thorioum.sound.SoundEffectDatabase;
 import net.thorioum.result.SingleSoundResult;
-import net.thorioum.sound.SoundMatcher;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.thorioum.Eidolon.info;
 
 public class GreedySubCpuMatcher implements Matcher {
 
+    private static final DotKernel KERNEL = DotKernel.select();
+    private static final int BLOCK = 4;
+    //rows of the candidate matrix kept hot in cache while every residual of a batch is scored against them
+    private static final int GEMM_BLOCK_BYTES = 256 * 1024;
+
     private int frameSize;
     private int numCandidates;
 
+    private SoundEffectDatabase db;
+    private CandidateSet candidates;
     private float[] candidateMatrix;
     private float[] norms;
-    private String[] names;
-    private double[] pitches;
 
     private boolean ready = false;
 
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder prunedRows = new LongAdder();
+
+    //coarse-to-fine search: every row decimated by coarseFactor ranks the candidates, the best coarseTopK are rescored exactly
+    private final int coarseFactor;
+    private final int coarseTopK;
+    private float[] coarseMatrix;
+    private int coarseSize;
+    private final RecallStats recall;
+
+    //compressed search: every row ranked on an 8 bit copy, the best rerankTopK rescored in full precision.
+    //half floats have no cheaper dot than full ones here, so 16 bits only applies to the gpu upload
+    private final int candidateBits;
+    private final boolean halfFloatsIgnored;
+    private final int rerankTopK;
+    private CompressedRows compressed;
+
+    //columns of the candidate gram matrix, only computed for candidates that actually get picked
+    private final int gramCacheColumns;
+    private final Map<Integer, float[]> gramColumns;
+
+    public GreedySubCpuMatcher() {
+        this(new MatchSettings());
+    }
+
+    public GreedySubCpuMatcher(MatchSettings settings) {
+        this.coarseFactor = Math.max(1, settings.coarseFactor);
+        this.coarseTopK = Math.max(1, settings.coarseTopK);
+        this.recall = settings.measureRecall ? new RecallStats() : null;
+        this.halfFloatsIgnored = settings.candidateBits == 16;
+        this.candidateBits = halfFloatsIgnored ? 32 : settings.candidateBits;
+        this.rerankTopK = Math.max(1, settings.rerankTopK);
+        this.gramCacheColumns = Math.max(1, settings.gramCacheColumns);
+        this.gramColumns = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+                return size() > gramCacheColumns;
+            }
+        };
+    }
+
     @Override
     public boolean isReady() {
         return ready;
     }
 
+    public int numCandidates() {
+        return numCandidates;
+    }
+
     @Override
     public void buildFromDatabase(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds) {
         this.frameSize = frameSize;
-
-        List<float[]> rows = new ArrayList<>();
-        List<Float> normList = new ArrayList<>();
-        List<String> nameList = new ArrayList<>();
-        List<Double> pitchList = new ArrayList<>();
-
-        for (Map.Entry<String, Map<Double, double[]>> e : db.pitchShiftedEffects.entrySet()) {
-            String name = e.getKey();
-            if(blacklistedSounds.contains(name)) continue;
-
-            Map<Double, double[]> pitches = e.getValue();
-            Map<Double, Double> normMap = db.effectNorms.get(name);
-            if (normMap == null) continue;
-
-            for (Map.Entry<Double, double[]> p : pitches.entrySet()) {
-                double pitch = p.getKey();
-                double[] hp = p.getValue();
-                if (hp == null || hp.length != frameSize) continue;
-                Double n = normMap.get(pitch);
-                if (n == null || n <= 0) continue;
-
-                float[] row = new float[frameSize];
-                for (int i = 0; i < frameSize; i++) {
-                    row[i] = (float) hp[i];
-                }
-                rows.add(row);
-                normList.add((float) (double) n);
-                nameList.add(name);
-                pitchList.add(pitch);
-            }
+        synchronized (gramColumns) {
+            gramColumns.clear();
         }
 
-        this.numCandidates = rows.size();
+        //the database is already sorted loudest first, a row's norm bounds its score so the scan can stop early
+        this.db = db;
+        this.candidates = CandidateSet.of(db, frameSize, blacklistedSounds);
+        this.candidateMatrix = candidates.matrix;
+        this.norms = candidates.norms;
+        this.numCandidates = candidates.size;
         if (numCandidates == 0) {
             ready = false;
             return;
         }
 
-        this.candidateMatrix = new float[numCandidates * frameSize];
-        for (int c = 0; c < numCandidates; c++) {
-            System.arraycopy(rows.get(c), 0, candidateMatrix, c * frameSize, frameSize);
-        }
-
-        this.norms = new float[numCandidates];
-        for (int i = 0; i < numCandidates; i++) {
-            norms[i] = normList.get(i);
-        }
-
-        this.names = nameList.toArray(new String[0]);
-        this.pitches = new double[pitchList.size()];
-        for (int i = 0; i < pitchList.size(); i++) {
-            pitches[i] = pitchList.get(i);
+        //below a few dozen coarse samples the ranking is too rough to be worth it
+        coarseMatrix = null;
+        compressed = null;
+        coarseSize = frameSize / coarseFactor;
+        if (halfFloatsIgnored) info("CPU matcher ignoring 16 bit rows, they are only used by the GPU matcher");
+        if (candidateBits < 32) {
+            compressed = CompressedRows.of(candidateMatrix, frameSize, numCandidates, candidateBits);
+            info(String.format("CPU matcher ranking on %d bit rows (%.1f MB instead of %.1f MB, %.1f dB SNR), rescoring the best %d",
+                    candidateBits, compressed.bytes() / 1e6, (double) numCandidates * frameSize * Float.BYTES / 1e6,
+                    compressed.snr(candidateMatrix), rerankTopK));
+        } else if (coarseFactor > 1 && coarseSize >= 32 && coarseTopK < numCandidates) {
+            coarseMatrix = new float[numCandidates * coarseSize];
+            for (int c = 0; c < numCandidates; c++) {
+                decimate(candidateMatrix, c * frameSize, coarseMatrix, c * coarseSize);
+            }
+            info("CPU matcher ranking on a " + coarseFactor + "x decimated copy, rescoring the best " + coarseTopK);
         }
 
+        info("CPU matcher using " + KERNEL.name() + " dot kernel over " + numCandidates + " candidates");
         ready = true;
     }
 
+    //whether picks can differ from an exhaustive search, the incremental pursuit is always exhaustive so it is skipped then
+    public boolean approximate() {
+        return coarseMatrix != null || compressed != null;
+    }
+
     @Override
     public SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim) {
         if (!ready) return null;
@@ -93,41 +132,453 @@ public class GreedySubCpuMatcher implements Matcher {
         float residualNorm = (float) Math.sqrt(residualEnergy);
         if (residualNorm <= 1e-20f) return null;
 
+        //best[0] similarity, best[1] volume
+        float[] best = new float[2];
+        int bestIdx;
+        if (approximate()) {
+            bestIdx = coarseScan(residual, residualNorm, minSim, best);
+            if (recall != null) {
+                float[] exact = new float[2];
+                recall.record(bestIdx, best[0], exactScan(residual, residualNorm, minSim, exact), exact[0]);
+            }
+        } else {
+            bestIdx = exactScan(residual, residualNorm, minSim, best);
+        }
+
+        if (bestIdx < 0) return null;
+
+        return toResult(ctx, bestIdx, best[1], best[0]);
+    }
+
+    private int exactScan(float[] residual, float residualNorm, float minSim, float[] best) {
         float bestSim = minSim;
         int bestIdx = -1;
         float bestVol = 0.0f;
 
-        int offset = 0;
-        for (int c = 0; c < numCandidates; c++) {
-            float dot = 0.0f;
-            int end = offset + frameSize;
-            for (int i = offset; i < end; i++) {
-                dot += candidateMatrix[i] * residual[i - offset];
+        float[] block = new float[BLOCK];
+        int c = 0;
+        for (; c < numCandidates; c += BLOCK) {
+            //sim = cs * n with cs <= 1, nothing past here can beat bestSim
+            if (norms[c] <= bestSim) break;
+
+            int to = Math.min(c + BLOCK, numCandidates);
+            KERNEL.dots(candidateMatrix, frameSize, c, to, residual, 0, block, 0);
+
+            for (int k = c; k < to; k++) {
+                float dot = block[k - c];
+                float n = norms[k];
+                if (n <= 1e-20f) continue;
+
+                float cs = dot / (n * residualNorm);
+                if (cs < 0.0f) cs = 0.0f;
+                float sim = cs * n;
+
+                if (sim <= bestSim) continue;
+
+                float vol = dot / (n * n + 1e-10f);
+                if (vol < 0.0f) vol = 0.0f;
+                if (vol > 1.0f) vol = 1.0f;
+
+                bestSim = sim;
+                bestIdx = k;
+                bestVol = vol;
             }
-            offset = end;
+        }
+        c = Math.min(c, numCandidates);
+        countPruned(numCandidates - c);
+
+        best[0] = bestSim;
+        best[1] = bestVol;
+        return bestIdx;
+    }
 
-            float n = norms[c];
-            if (n <= 1e-20f) continue;
+    /**
+     * The k best rows of an exact scan, best first. A min-heap keeps the k best similarities so far, and once it is
+     * full the norm cutoff applies against the smallest of them. The decimated and compressed copies are not used,
+     * top-k is for searches that look past the greedy pick and want those picks exact.
+     */
+    @Override
+    public List<SingleSoundResult> findTopMatches(ConverterContext ctx, float[] residual, double residualEnergy, float minSim, int k) {
+        if (!ready || k <= 0) return List.of();
+        float residualNorm = (float) Math.sqrt(residualEnergy);
+        if (residualNorm <= 1e-20f) return List.of();
 
-            float cs = dot / (n * residualNorm);
-            if (cs < 0.0f) cs = 0.0f;
-            float sim = cs * n;
+        float[] heapScore = new float[k];
+        int[] heapRow = new int[k];
+        int heapSize = 0;
 
-            if (sim <= bestSim) continue;
+        float[] block = new float[BLOCK];
+        int c = 0;
+        for (; c < numCandidates; c += BLOCK) {
+            if (norms[c] <= (heapSize == k ? heapScore[0] : minSim)) break;
 
-            float vol = dot / (n * n + 1e-10f);
-            if (vol < 0.0f) vol = 0.0f;
-            if (vol > 1.0f) vol = 1.0f;
+            int to = Math.min(c + BLOCK, numCandidates);
+            KERNEL.dots(candidateMatrix, frameSize, c, to, residual, 0, block, 0);
 
-            bestSim = sim;
-            bestIdx = c;
-            bestVol = vol;
+            for (int r = c; r < to; r++) {
+                if (norms[r] <= 1e-20f) continue;
+                float sim = Math.max(0.0f, block[r - c]) / residualNorm;
+                if (sim <= minSim) continue;
+                if (heapSize < k) {
+                    heapScore[heapSize] = sim;
+                    heapRow[heapSize] = r;
+                    siftUp(heapScore, heapRow, heapSize++);
+                } else if (sim > heapScore[0]) {
+                    heapScore[0] = sim;
+                    heapRow[0] = r;
+                    siftDown(heapScore, heapRow, heapSize);
+                }
+            }
         }
+        countPruned(numCandidates - Math.min(c, numCandidates));
 
-        if (bestIdx < 0) return null;
+        //popping the min-heap fills the list from its end
+        SingleSoundResult[] top = new SingleSoundResult[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            int r = heapRow[0];
+            float sim = heapScore[0];
+            float n = norms[r];
+            float vol = Math.min(1.0f, sim * residualNorm / (n * n + 1e-10f));
+            top[i] = toResult(ctx, r, vol, sim);
+            swap(heapScore, heapRow, 0, i);
+            siftDown(heapScore, heapRow, i);
+        }
+        return List.of(top);
+    }
+
+    /**
+     * Ranks rows by their dot product on the decimated (or compressed) copy, keeping the best coarseTopK (rerankTopK)
+     * in a min-heap, then rescores only those at full resolution. sim = max(dot, 0) / |residual|, so the coarse dot
+     * orders candidates like the exact score up to the detail the copy lost. The best coarse row of every block is
+     * scored exactly right away, which gives a real lower bound on the winner's similarity, so the norm cutoff of
+     * the exact scan still applies.
+     */
+    private int coarseScan(float[] residual, float residualNorm, float minSim, float[] best) {
+        float[] coarseResidual = residual;
+        float[] scratch = null;
+        if (compressed != null) {
+            scratch = new float[frameSize];
+        } else {
+            coarseResidual = new float[coarseSize];
+            decimate(residual, 0, coarseResidual, 0);
+        }
+
+        int topK = compressed != null ? rerankTopK : coarseTopK;
+        float[] heapScore = new float[topK];
+        int[] heapRow = new int[topK];
+        int heapSize = 0;
+
+        best[0] = minSim;
+        best[1] = 0.0f;
+        int bestIdx = -1;
+        int exactScored = 0;
+
+        int blockRows = gemmBlockRows() * (compressed != null ? Float.SIZE / candidateBits : coarseFactor);
+        float[] block = new float[blockRows];
+        int c = 0;
+        for (; c < numCandidates; c += blockRows) {
+            if (norms[c] <= best[0]) break;
+            int to = Math.min(c + blockRows, numCandidates);
+            if (compressed != null) compressed.dots(c, to, residual, block, 0, scratch);
+            else KERNEL.dots(coarseMatrix, coarseSize, c, to, coarseResidual, 0, block, 0);
+
+            int blockBest = -1;
+            float blockBestScore = 0.0f;
+            for (int k = c; k < to; k++) {
+                float score = block[k - c];
+                if (score > blockBestScore) {
+                    blockBestScore = score;
+                    blockBest = k;
+                }
+                if (heapSize < topK) {
+                    heapScore[heapSize] = score;
+                    heapRow[heapSize] = k;
+                    siftUp(heapScore, heapRow, heapSize++);
+                } else if (score > heapScore[0]) {
+                    heapScore[0] = score;
+                    heapRow[0] = k;
+                    siftDown(heapScore, heapRow, heapSize);
+                }
+            }
+            if (blockBest >= 0 && rescore(blockBest, residual, residualNorm, best)) bestIdx = blockBest;
+            exactScored++;
+        }
+        c = Math.min(c, numCandidates);
+        countPruned(numCandidates - c);
+
+        for (int h = 0; h < heapSize; h++) {
+            int k = heapRow[h];
+            if (norms[k] <= best[0]) continue;
+            if (rescore(k, residual, residualNorm, best)) bestIdx = k;
+            exactScored++;
+        }
+        Counter.CANDIDATES_SCORED.add(exactScored);
+        return bestIdx;
+    }
+
+    //exact score of one row, replaces best (similarity, volume) and returns true when it beats it
+    private boolean rescore(int k, float[] residual, float residualNorm, float[] best) {
+        float n = norms[k];
+        if (n <= best[0] || n <= 1e-20f) return false;
+        float[] dot = new float[1];
+        KERNEL.dots(candidateMatrix, frameSize, k, k + 1, residual, 0, dot, 0);
+
+        float cs = dot[0] / (n * residualNorm);
+        if (cs < 0.0f) cs = 0.0f;
+        float sim = cs * n;
+        if (sim <= best[0]) return false;
+
+        float vol = dot[0] / (n * n + 1e-10f);
+        if (vol < 0.0f) vol = 0.0f;
+        if (vol > 1.0f) vol = 1.0f;
+
+        best[0] = sim;
+        best[1] = vol;
+        return true;
+    }
+
+    //block sums scaled by 1/sqrt(factor), so a dot product of two decimated rows approximates the full one for content below the new nyquist
+    private void decimate(float[] src, int srcOff, float[] dst, int dstOff) {
+        float scale = (float) (1.0 / Math.sqrt(coarseFactor));
+        for (int j = 0; j < coarseSize; j++) {
+            float sum = 0.0f;
+            int base = srcOff + j * coarseFactor;
+            for (int i = 0; i < coarseFactor; i++) sum += src[base + i];
+            dst[dstOff + j] = sum * scale;
+        }
+    }
+
+    private static void siftUp(float[] score, int[] row, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (score[parent] <= score[i]) break;
+            swap(score, row, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(float[] score, int[] row, int size) {
+        int i = 0;
+        while (true) {
+            int l = 2 * i + 1;
+            if (l >= size) break;
+            int smallest = l + 1 < size && score[l + 1] < score[l] ? l + 1 : l;
+            if (score[i] <= score[smallest]) break;
+            swap(score, row, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(float[] score, int[] row, int a, int b) {
+        float s = score[a];
+        score[a] = score[b];
+        score[b] = s;
+        int r = row[a];
+        row[a] = row[b];
+        row[b] = r;
+    }
+
+    @Override
+    public SingleSoundResult[] findBestMatches(ConverterContext ctx, float[][] residuals, double[] residualEnergies, float minSim) {
+        int count = residuals.length;
+        SingleSoundResult[] out = new SingleSoundResult[count];
+        if (!ready) return out;
+        //the decimated or compressed copy is small enough to stay in cache without batching
+        if (approximate()) return Matcher.super.findBestMatches(ctx, residuals, residualEnergies, minSim);
+
+        float[] residualNorms = new float[count];
+        float[] bestSim = new float[count];
+        int[] bestIdx = new int[count];
+        float[] bestVol = new float[count];
+        int[] stoppedAt = new int[count];
+        boolean[] live = new boolean[count];
+        for (int r = 0; r < count; r++) {
+            residualNorms[r] = (float) Math.sqrt(residualEnergies[r]);
+            bestSim[r] = minSim;
+            bestIdx[r] = -1;
+            stoppedAt[r] = numCandidates;
+            live[r] = residualNorms[r] > 1e-20f;
+        }
+
+        int blockRows = gemmBlockRows();
+        float[] block = new float[blockRows];
+        for (int c = 0; c < numCandidates; c += blockRows) {
+            int to = Math.min(c + blockRows, numCandidates);
+            boolean any = false;
+
+            for (int r = 0; r < count; r++) {
+                if (!live[r]) continue;
+                if (norms[c] <= bestSim[r]) {
+                    live[r] = false;
+                    stoppedAt[r] = c;
+                    continue;
+                }
+                any = true;
+
+                KERNEL.dots(candidateMatrix, frameSize, c, to, residuals[r], 0, block, 0);
+
+                float residualNorm = residualNorms[r];
+                for (int k = c; k < to; k++) {
+                    float dot = block[k - c];
+                    float n = norms[k];
+                    if (n <= 1e-20f) continue;
+
+                    float cs = dot / (n * residualNorm);
+                    if (cs < 0.0f) cs = 0.0f;
+                    float sim = cs * n;
+
+                    if (sim <= bestSim[r]) continue;
+
+                    float vol = dot / (n * n + 1e-10f);
+                    if (vol < 0.0f) vol = 0.0f;
+                    if (vol > 1.0f) vol = 1.0f;
+
+                    bestSim[r] = sim;
+                    bestIdx[r] = k;
+                    bestVol[r] = vol;
+                }
+            }
+            if (!any) break;
+        }
+
+        for (int r = 0; r < count; r++) {
+            if (residualNorms[r] <= 1e-20f) continue;
+            countPruned(numCandidates - stoppedAt[r]);
+            if (bestIdx[r] >= 0) out[r] = toResult(ctx, bestIdx[r], bestVol[r], bestSim[r]);
+        }
+        return out;
+    }
+
+    private int gemmBlockRows() {
+        int rows = GEMM_BLOCK_BYTES / (frameSize * Float.BYTES);
+        return Math.max(BLOCK, rows - rows % BLOCK);
+    }
+
+    private void countPruned(int pruned) {
+        scans.increment();
+        prunedRows.add(pruned);
+        Counter.CANDIDATES_SCORED.add(numCandidates - pruned);
+    }
+
+    public long scans() {
+        return scans.sum();
+    }
+
+    public long prunedRows() {
+        return prunedRows.sum();
+    }
+
+    public double averagePrunedRows() {
+        long n = scans.sum();
+        return n == 0 ? 0.0 : (double) prunedRows.sum() / n;
+    }
+
+    //null unless MatchSettings.measureRecall is set and the search is approximate
+    public String recallReport() {
+        return recall != null && approximate() ? recall.describe() : null;
+    }
+
+    /**
+     * Starts an orthogonal-matching-pursuit style search over one frame. The residual is scored against
+     * every candidate once, and each pick afterwards only updates those scores through the gram matrix,
+     * so every sound after the first costs O(numCandidates) once its gram column is cached.
+     */
+    public Pursuit beginPursuit(float[] residual) {
+        if (!ready) return null;
+
+        float[] dots = new float[numCandidates];
+        KERNEL.dots(candidateMatrix, frameSize, 0, numCandidates, residual, 0, dots, 0);
+        Counter.CANDIDATES_SCORED.add(numCandidates);
+        return new Pursuit(dots);
+    }
+
+    //pursuits for a batch of frames, the initial scores come from one cache-blocked candidates x residuals product
+    public Pursuit[] beginPursuits(float[][] residuals) {
+        if (!ready) return null;
+
+        int count = residuals.length;
+        float[][] dots = new float[count][numCandidates];
+        int blockRows = gemmBlockRows();
+        for (int c = 0; c < numCandidates; c += blockRows) {
+            int to = Math.min(c + blockRows, numCandidates);
+            for (int r = 0; r < count; r++) {
+                KERNEL.dots(candidateMatrix, frameSize, c, to, residuals[r], 0, dots[r], c);
+            }
+        }
+
+        Counter.CANDIDATES_SCORED.add((long) count * numCandidates);
+        Pursuit[] pursuits = new Pursuit[count];
+        for (int r = 0; r < count; r++) pursuits[r] = new Pursuit(dots[r]);
+        return pursuits;
+    }
+
+    public class Pursuit {
+        private final float[] dots;
+
+        private Pursuit(float[] dots) {
+            this.dots = dots;
+        }
+
+        public SingleSoundResult next(ConverterContext ctx, double residualEnergy, float minSim) {
+            float residualNorm = (float) Math.sqrt(residualEnergy);
+            if (residualNorm <= 1e-20f) return null;
+
+            float bestSim = minSim;
+            int bestIdx = -1;
+            float bestVol = 0.0f;
+
+            int c = 0;
+            for (; c < numCandidates; c++) {
+                float n = norms[c];
+                if (n <= bestSim) break;
+                if (n <= 1e-20f) continue;
+
+                float dot = dots[c];
+                float cs = dot / (n * residualNorm);
+                if (cs < 0.0f) cs = 0.0f;
+                float sim = cs * n;
+
+                if (sim <= bestSim) continue;
+
+                float vol = dot / (n * n + 1e-10f);
+                if (vol < 0.0f) vol = 0.0f;
+                if (vol > 1.0f) vol = 1.0f;
+
+                bestSim = sim;
+                bestIdx = c;
+                bestVol = vol;
+            }
+            countPruned(numCandidates - c);
+
+            if (bestIdx < 0) return null;
+
+            //residual -= vol * candidate, so every score drops by vol * <candidate, picked>
+            float[] column = gramColumn(bestIdx);
+            for (c = 0; c < numCandidates; c++) {
+                dots[c] -= bestVol * column[c];
+            }
+
+            return toResult(ctx, bestIdx, bestVol, bestSim);
+        }
+    }
+
+    private float[] gramColumn(int picked) {
+        synchronized (gramColumns) {
+            float[] cached = gramColumns.get(picked);
+            if (cached != null) return cached;
+        }
+
+        float[] column = new float[numCandidates];
+        KERNEL.dots(candidateMatrix, frameSize, 0, numCandidates, candidateMatrix, picked * frameSize, column, 0);
+
+        synchronized (gramColumns) {
+            gramColumns.put(picked, column);
+        }
+        return column;
+    }
 
-        String name = names[bestIdx];
-        double pitch = pitches[bestIdx];
-        return new SingleSoundResult(name, pitch, bestVol, bestSim, SoundMatcher.getDatabase(ctx).pitchShiftedEffects.get(name).get(pitch));
+    private SingleSoundResult toResult(ConverterContext ctx, int idx, float vol, float sim) {
+        int id = candidates.id(idx);
+        return new SingleSoundResult(db.name(id), db.pitch(id), vol, sim, id);
     }
 }
@@ -1,55 +1,105 @@
 package net.thorioum.matchers;
 
+import net.thorioum.Stats;
+import net.thorioum.Stats.Counter;
+import net.thorioum.Stats.Stage;
 import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
 import net.thorioum.sound.SoundEffectDatabase;
 import net.thorioum.result.SingleSoundResult;
-import net.thorioum.sound.SoundMatcher;
 import org.jocl.*;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
+import static net.thorioum.Eidolon.info;
 import static org.jocl.CL.*;
 
 public class GreedySubGpuMatcher implements Matcher {
 
     private cl_context context;
-    private cl_command_queue queue;
+    private cl_device_id device;
     private cl_program program;
-    private cl_kernel kernelDotSim;
 
+    //shared and read only, every lane scores against the same copy
     private cl_mem dCandidates;
     private cl_mem dNorms;
-    private cl_mem dResidual;
-    private cl_mem dSims;
-    private cl_mem dVols;
+    //per row factor the kernels apply to every dot product, all ones unless the rows are 8 bit
+    private cl_mem dScales;
 
     private int frameSize;
     private int numCandidates;
-    private float[] hSims;
-    private float[] hVols;
-    private CandidateMeta[] meta;
-    private boolean ready = false;
+    private int localSize = 256;
+    private SoundEffectDatabase db;
+    private CandidateSet candidates;
+    private volatile boolean ready = false;
+
+    //each matching thread borrows a lane (own queue, kernels and scratch buffers) for the duration of a call
+    private final int numLanes;
+    private final List<Lane> allLanes = new ArrayList<>();
+    private final BlockingQueue<Lane> lanes = new LinkedBlockingQueue<>();
+    //matching holds the read side, build and release hold the write side
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //below 32 bits the device holds compressed rows, single step results are reranked on the host in full precision
+    private static final DotKernel KERNEL = DotKernel.select();
+    private final int candidateBits;
+    private final int rerankTopK;
+    private final boolean measureRecall;
+    private final RecallStats recall;
+    private GreedySubCpuMatcher reference;
+
+    public GreedySubGpuMatcher() {
+        this(new MatchSettings());
+    }
 
-    private final Object lock = new Object();
+    public GreedySubGpuMatcher(MatchSettings settings) {
+        this.numLanes = Math.max(1, settings.gpuQueues);
+        this.candidateBits = settings.candidateBits;
+        this.rerankTopK = Math.max(1, settings.rerankTopK);
+        this.measureRecall = settings.measureRecall;
+        this.recall = settings.measureRecall ? new RecallStats() : null;
+    }
 
     static {
         CL.setExceptionsEnabled(true);
     }
 
-    record CandidateMeta(String name, double pitch) {}
+
+    //residuals scored per launch of dotSimVolBatch, must match MAX_BATCH in the kernel source
+    private static final int MAX_BATCH = 16;
+
+    //how the kernels read a candidate sample, 16 bit rows are half floats and 8 bit rows still need their row scale
+    private static String candidateDefines(int bits) {
+        return switch (bits) {
+            case 16 -> "#define CAND_T half\n#define LOAD(p, i) vload_half((i), (p))\n";
+            case 8 -> "#define CAND_T char\n#define LOAD(p, i) ((float) (p)[i])\n";
+            default -> "#define CAND_T float\n#define LOAD(p, i) ((p)[i])\n";
+        };
+    }
 
     private static final String KERNEL_SRC =
             "__kernel void dotSimVol(\n" +
-                    "    __global const float* candidates,\n" +
+                    "    __global const CAND_T* candidates,\n" +
                     "    __global const float* norms,\n" +
                     "    __global const float* residual,\n" +
                     "    const int frameSize,\n" +
                     "    const float residualNorm,\n" +
                     "    __global float* outSims,\n" +
                     "    __global float* outVols,\n" +
-                    "    __local float* cache)\n" +
+                    "    __local float* cache,\n" +
+                    "    __global const float* scales)\n" +
                     "{\n" +
                     "    int cid = get_group_id(0);\n" +
                     "    int lid = get_local_id(0);\n" +
@@ -57,7 +107,7 @@ public class GreedySubGpuMatcher implements Matcher {
                     "    float sum = 0.0f;\n" +
                     "    int base = cid * frameSize;\n" +
                     "    for (int i = lid; i < frameSize; i += lsz) {\n" +
-                    "        sum += candidates[base + i] * residual[i];\n" +
+                    "        sum += LOAD(candidates, base + i) * residual[i];\n" +
                     "    }\n" +
                     "    cache[lid] = sum;\n" +
                     "    barrier(CLK_LOCAL_MEM_FENCE);\n" +
@@ -66,7 +116,7 @@ public class GreedySubGpuMatcher implements Matcher {
                     "        barrier(CLK_LOCAL_MEM_FENCE);\n" +
                     "    }\n" +
                     "    if (lid == 0) {\n" +
-                    "        float dot = cache[0];\n" +
+                    "        float dot = cache[0] * scales[cid];\n" +
                     "        float n   = fmax(norms[cid], 1e-20f);\n" +
                     "        float rn  = fmax(residualNorm, 1e-20f);\n" +
                     "        float cs  = dot / (n * rn);\n" +
@@ -78,6 +128,194 @@ public class GreedySubGpuMatcher implements Matcher {
                     "        outSims[cid] = sim;\n" +
                     "        outVols[cid] = vol;\n" +
                     "    }\n" +
+                    "}\n" +
+                    "\n" +
+                    "#define MAX_BATCH " + MAX_BATCH + "\n" +
+                    "__kernel void dotSimVolBatch(\n" +
+                    "    __global const CAND_T* candidates,\n" +
+                    "    __global const float* norms,\n" +
+                    "    __global const float* residuals,\n" +
+                    "    __global const float* residualNorms,\n" +
+                    "    const int frameSize,\n" +
+                    "    const int numCandidates,\n" +
+                    "    const int batch,\n" +
+                    "    __global float* outSims,\n" +
+                    "    __global float* outVols,\n" +
+                    "    __local float* cache,\n" +
+                    "    __global const float* scales)\n" +
+                    "{\n" +
+                    "    int cid = get_group_id(0);\n" +
+                    "    int lid = get_local_id(0);\n" +
+                    "    int lsz = get_local_size(0);\n" +
+                    "    float sums[MAX_BATCH];\n" +
+                    "    for (int r = 0; r < batch; r++) sums[r] = 0.0f;\n" +
+                    "    int base = cid * frameSize;\n" +
+                    "    for (int i = lid; i < frameSize; i += lsz) {\n" +
+                    "        float c = LOAD(candidates, base + i);\n" +
+                    "        for (int r = 0; r < batch; r++) sums[r] += c * residuals[r * frameSize + i];\n" +
+                    "    }\n" +
+                    "    float n = fmax(norms[cid], 1e-20f);\n" +
+                    "    for (int r = 0; r < batch; r++) {\n" +
+                    "        cache[lid] = sums[r];\n" +
+                    "        barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "        for (int offset = lsz >> 1; offset > 0; offset >>= 1) {\n" +
+                    "            if (lid < offset) cache[lid] += cache[lid + offset];\n" +
+                    "            barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "        }\n" +
+                    "        if (lid == 0) {\n" +
+                    "            float dot = cache[0] * scales[cid];\n" +
+                    "            float rn  = fmax(residualNorms[r], 1e-20f);\n" +
+                    "            float cs  = dot / (n * rn);\n" +
+                    "            if (cs < 0.0f) cs = 0.0f;\n" +
+                    "            float sim = cs * n;\n" +
+                    "            float vol = dot / (n*n + 1e-10f);\n" +
+                    "            if (vol < 0.0f) vol = 0.0f;\n" +
+                    "            if (vol > 1.0f) vol = 1.0f;\n" +
+                    "            outSims[r * numCandidates + cid] = sim;\n" +
+                    "            outVols[r * numCandidates + cid] = vol;\n" +
+                    "        }\n" +
+                    "        barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    }\n" +
+                    "}\n" +
+                    "\n" +
+                    // device resident greedy pursuit, state = {original energy, energy, stopped}
+                    "__kernel void residualEnergy(\n" +
+                    "    __global const float* residual,\n" +
+                    "    const int frameSize,\n" +
+                    "    const int step,\n" +
+                    "    const float minEnergyRatio,\n" +
+                    "    __global float* state,\n" +
+                    "    __local float* cache)\n" +
+                    "{\n" +
+                    "    int lid = get_local_id(0);\n" +
+                    "    int lsz = get_local_size(0);\n" +
+                    "    if (state[2] != 0.0f) return;\n" +
+                    "    float sum = 0.0f;\n" +
+                    "    for (int i = lid; i < frameSize; i += lsz) {\n" +
+                    "        float r = residual[i];\n" +
+                    "        sum += r * r;\n" +
+                    "    }\n" +
+                    "    cache[lid] = sum;\n" +
+                    "    barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    for (int offset = lsz >> 1; offset > 0; offset >>= 1) {\n" +
+                    "        if (lid < offset) cache[lid] += cache[lid + offset];\n" +
+                    "        barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    }\n" +
+                    "    if (lid == 0) {\n" +
+                    "        float e = cache[0];\n" +
+                    "        if (step == 0) state[0] = e;\n" +
+                    "        state[1] = e;\n" +
+                    "        if (e < state[0] * minEnergyRatio || e <= 1e-40f) state[2] = 1.0f;\n" +
+                    "    }\n" +
+                    "}\n" +
+                    "\n" +
+                    "__kernel void dotSimVolResident(\n" +
+                    "    __global const CAND_T* candidates,\n" +
+                    "    __global const float* norms,\n" +
+                    "    __global const float* residual,\n" +
+                    "    const int frameSize,\n" +
+                    "    __global const float* state,\n" +
+                    "    __global float* outSims,\n" +
+                    "    __global float* outVols,\n" +
+                    "    __local float* cache,\n" +
+                    "    __global const float* scales)\n" +
+                    "{\n" +
+                    "    if (state[2] != 0.0f) return;\n" +
+                    "    int cid = get_group_id(0);\n" +
+                    "    int lid = get_local_id(0);\n" +
+                    "    int lsz = get_local_size(0);\n" +
+                    "    float sum = 0.0f;\n" +
+                    "    int base = cid * frameSize;\n" +
+                    "    for (int i = lid; i < frameSize; i += lsz) {\n" +
+                    "        sum += LOAD(candidates, base + i) * residual[i];\n" +
+                    "    }\n" +
+                    "    cache[lid] = sum;\n" +
+                    "    barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    for (int offset = lsz >> 1; offset > 0; offset >>= 1) {\n" +
+                    "        if (lid < offset) cache[lid] += cache[lid + offset];\n" +
+                    "        barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    }\n" +
+                    "    if (lid == 0) {\n" +
+                    "        float dot = cache[0] * scales[cid];\n" +
+                    "        float n   = fmax(norms[cid], 1e-20f);\n" +
+                    "        float rn  = fmax(sqrt(state[1]), 1e-20f);\n" +
+                    "        float cs  = dot / (n * rn);\n" +
+                    "        if (cs < 0.0f) cs = 0.0f;\n" +
+                    "        float sim = cs * n;\n" +
+                    "        float vol = dot / (n*n + 1e-10f);\n" +
+                    "        if (vol < 0.0f) vol = 0.0f;\n" +
+                    "        if (vol > 1.0f) vol = 1.0f;\n" +
+                    "        outSims[cid] = sim;\n" +
+                    "        outVols[cid] = vol;\n" +
+                    "    }\n" +
+                    "}\n" +
+                    "\n" +
+                    "__kernel void argmaxPick(\n" +
+                    "    __global const float* sims,\n" +
+                    "    __global const float* vols,\n" +
+                    "    const int numCandidates,\n" +
+                    "    const int step,\n" +
+                    "    const float minSim,\n" +
+                    "    __global float* state,\n" +
+                    "    __global int* pickIdx,\n" +
+                    "    __global float* pickVals,\n" +
+                    "    __local float* cacheSim,\n" +
+                    "    __local int* cacheIdx)\n" +
+                    "{\n" +
+                    "    int lid = get_local_id(0);\n" +
+                    "    int lsz = get_local_size(0);\n" +
+                    "    if (state[2] != 0.0f) {\n" +
+                    "        if (lid == 0) pickIdx[step] = -1;\n" +
+                    "        return;\n" +
+                    "    }\n" +
+                    "    float best = -FLT_MAX;\n" +
+                    "    int bestIdx = -1;\n" +
+                    "    for (int i = lid; i < numCandidates; i += lsz) {\n" +
+                    "        float s = sims[i];\n" +
+                    "        if (s > best) { best = s; bestIdx = i; }\n" +
+                    "    }\n" +
+                    "    cacheSim[lid] = best;\n" +
+                    "    cacheIdx[lid] = bestIdx;\n" +
+                    "    barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    for (int offset = lsz >> 1; offset > 0; offset >>= 1) {\n" +
+                    "        if (lid < offset) {\n" +
+                    "            float o = cacheSim[lid + offset];\n" +
+                    "            int oi = cacheIdx[lid + offset];\n" +
+                    "            if (oi >= 0 && (o > cacheSim[lid] || (o == cacheSim[lid] && (cacheIdx[lid] < 0 || oi < cacheIdx[lid])))) {\n" +
+                    "                cacheSim[lid] = o;\n" +
+                    "                cacheIdx[lid] = oi;\n" +
+                    "            }\n" +
+                    "        }\n" +
+                    "        barrier(CLK_LOCAL_MEM_FENCE);\n" +
+                    "    }\n" +
+                    "    if (lid == 0) {\n" +
+                    "        int idx = cacheIdx[0];\n" +
+                    "        float sim = cacheSim[0];\n" +
+                    "        if (idx < 0 || sim < minSim) {\n" +
+                    "            pickIdx[step] = -1;\n" +
+                    "            state[2] = 1.0f;\n" +
+                    "        } else {\n" +
+                    "            pickIdx[step] = idx;\n" +
+                    "            pickVals[2 * step] = vols[idx];\n" +
+                    "            pickVals[2 * step + 1] = sim;\n" +
+                    "        }\n" +
+                    "    }\n" +
+                    "}\n" +
+                    "\n" +
+                    "__kernel void residualUpdate(\n" +
+                    "    __global const CAND_T* candidates,\n" +
+                    "    __global float* residual,\n" +
+                    "    const int frameSize,\n" +
+                    "    const int step,\n" +
+                    "    __global const int* pickIdx,\n" +
+                    "    __global const float* pickVals,\n" +
+                    "    __global const float* scales)\n" +
+                    "{\n" +
+                    "    int i = get_global_id(0);\n" +
+                    "    if (i >= frameSize) return;\n" +
+                    "    int idx = pickIdx[step];\n" +
+                    "    if (idx < 0) return;\n" +
+                    "    residual[i] -= LOAD(candidates, idx * frameSize + i) * scales[idx] * pickVals[2 * step];\n" +
                     "}\n";
 
     @Override
@@ -85,63 +323,25 @@ public class GreedySubGpuMatcher implements Matcher {
 
     @Override
     public void buildFromDatabase(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds) {
-        synchronized (lock) {
+        lock.writeLock().lock();
+        try {
             release();
 
             this.frameSize = frameSize;
-            List<float[]> rows = new ArrayList<>();
-            List<Float> norms = new ArrayList<>();
-            List<CandidateMeta> metas = new ArrayList<>();
-
-            for (Map.Entry<String, Map<Double, double[]>> e : db.pitchShiftedEffects.entrySet()) {
-                String name = e.getKey();
-                if(blacklistedSounds.contains(name)) continue;
-
-                Map<Double, double[]> pitches = e.getValue();
-                Map<Double, Double> normMap = db.effectNorms.get(name);
-                if (normMap == null) continue;
-
-                for (Map.Entry<Double, double[]> p : pitches.entrySet()) {
-                    double pitch = p.getKey();
-                    double[] hp = p.getValue();
-                    if (hp == null || hp.length != frameSize) continue;
-                    Double n = normMap.get(pitch);
-                    if (n == null || n <= 0) continue;
-
-                    float[] row = new float[frameSize];
-                    for (int i = 0; i < frameSize; i++) row[i] = (float) hp[i];
-                    rows.add(row);
-                    norms.add((float) (double) n);
-                    metas.add(new CandidateMeta(name, pitch));
-                }
-            }
-
-            this.numCandidates = rows.size();
+            this.db = db;
+            this.candidates = CandidateSet.of(db, frameSize, blacklistedSounds);
+            this.numCandidates = candidates.size;
             if (numCandidates == 0) { ready = false; return; }
 
-            float[] candidateMatrix = new float[numCandidates * frameSize];
-            for (int c = 0; c < numCandidates; c++) {
-                System.arraycopy(rows.get(c), 0, candidateMatrix, c * frameSize, frameSize);
-            }
-
-            float[] normsArr = new float[numCandidates];
-            for (int i = 0; i < numCandidates; i++) normsArr[i] = norms.get(i);
-
-            this.meta  = metas.toArray(new CandidateMeta[0]);
-            this.hSims = new float[numCandidates];
-            this.hVols = new float[numCandidates];
-
-            cl_platform_id[] platforms = new cl_platform_id[1];
-            clGetPlatformIDs(1, platforms, null);
-            cl_device_id device = pickDevice(platforms[0]);
+            cl_platform_id platform = pickPlatform();
+            device = pickDevice(platform);
 
             cl_context_properties props = new cl_context_properties();
-            props.addProperty(CL_CONTEXT_PLATFORM, platforms[0]);
+            props.addProperty(CL_CONTEXT_PLATFORM, platform);
 
             context = clCreateContext(props, 1, new cl_device_id[]{device}, null, null, null);
-            queue   = clCreateCommandQueue(context, device, 0, null);
 
-            program = clCreateProgramWithSource(context, 1, new String[]{KERNEL_SRC}, null, null);
+            program = clCreateProgramWithSource(context, 1, new String[]{candidateDefines(candidateBits) + KERNEL_SRC}, null, null);
             int err = clBuildProgram(program, 0, null, null, null, null);
             if (err != CL_SUCCESS) {
                 long[] logSize = new long[1];
@@ -150,28 +350,220 @@ public class GreedySubGpuMatcher implements Matcher {
                 clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG, logSize[0], Pointer.to(logData), null);
                 throw new RuntimeException("OpenCL build failed:\n" + new String(logData));
             }
-            kernelDotSim = clCreateKernel(program, "dotSimVol", null);
 
-            dCandidates = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                    (long) candidateMatrix.length * Sizeof.cl_float, Pointer.to(candidateMatrix), null);
+            long[] maxWorkGroup = new long[1];
+            clGetDeviceInfo(device, CL_DEVICE_MAX_WORK_GROUP_SIZE, Sizeof.size_t, Pointer.to(maxWorkGroup), null);
+            localSize = 1;
+            while (localSize * 2 <= Math.min(256, maxWorkGroup[0])) localSize *= 2;
+
+            //uploaded straight from the database store (or its blacklist-filtered copy), no host side staging matrix
+            long elements = (long) numCandidates * frameSize;
+            float[] scales;
+            if (candidateBits < 32) {
+                CompressedRows compressed = CompressedRows.of(candidates.matrix, frameSize, numCandidates, candidateBits);
+                Pointer rows = compressed.bytes != null ? Pointer.to(compressed.bytes) : Pointer.to(compressed.halves);
+                dCandidates = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, elements * (candidateBits / 8), rows, null);
+                scales = compressed.scales;
+                info(String.format("GPU matcher holding %d bit rows (%.1f MB instead of %.1f MB, %.1f dB SNR), rescoring the best %d on the host",
+                        candidateBits, compressed.bytes() / 1e6, elements * Sizeof.cl_float / 1e6, compressed.snr(candidates.matrix), rerankTopK));
+            } else {
+                dCandidates = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                        elements * Sizeof.cl_float, Pointer.to(candidates.matrix), null);
+                scales = new float[numCandidates];
+                Arrays.fill(scales, 1.0f);
+            }
             dNorms = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                    (long) normsArr.length * Sizeof.cl_float, Pointer.to(normsArr), null);
-            dResidual = clCreateBuffer(context, CL_MEM_READ_ONLY, (long) frameSize * Sizeof.cl_float, null, null);
-            dSims = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) numCandidates * Sizeof.cl_float, null, null);
-            dVols = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) numCandidates * Sizeof.cl_float, null, null);
+                    (long) numCandidates * Sizeof.cl_float, Pointer.to(candidates.norms), null);
+            dScales = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                    (long) numCandidates * Sizeof.cl_float, Pointer.to(scales), null);
+            Counter.GPU_BYTES.add(elements * (candidateBits / 8) + 2L * numCandidates * Sizeof.cl_float);
+
+            reference = null;
+            if (measureRecall && candidateBits < 32) {
+                reference = new GreedySubCpuMatcher();
+                reference.buildFromDatabase(db, frameSize, blacklistedSounds);
+            }
+
+            for (int i = 0; i < numLanes; i++) {
+                Lane lane = new Lane();
+                allLanes.add(lane);
+                lanes.add(lane);
+            }
 
+            info("GPU matcher on " + deviceName(device) + " with " + numLanes + " queues over " + numCandidates + " candidates");
             ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private <T> T withLane(Function<Lane, T> work, T fallback) {
+        long lockStart = Stats.now();
+        lock.readLock().lock();
+        Stage.GPU_LOCK_WAIT.record(lockStart);
+        try {
+            if (!ready) return fallback;
+            long queueStart = Stats.now();
+            Lane lane = lanes.take();
+            Stage.GPU_QUEUE_WAIT.record(queueStart);
+            try {
+                return work.apply(lane);
+            } finally {
+                lanes.add(lane);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fallback;
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim) {
-        synchronized (lock) {
-            if (!ready) return null;
+        SingleSoundResult result = withLane(lane -> lane.findBestMatch(ctx, residual, residualEnergy, minSim), null);
+        if (reference != null && ready) measure(ctx, result, residual, residualEnergy, minSim);
+        return result;
+    }
+
+    @Override
+    public SingleSoundResult[] findBestMatches(ConverterContext ctx, float[][] residuals, double[] residualEnergies, float minSim) {
+        SingleSoundResult[] results = withLane(lane -> lane.findBestMatches(ctx, residuals, residualEnergies, minSim), new SingleSoundResult[residuals.length]);
+        if (reference != null && ready) {
+            for (int r = 0; r < residuals.length; r++) measure(ctx, results[r], residuals[r], residualEnergies[r], minSim);
+        }
+        return results;
+    }
+
+    private void measure(ConverterContext ctx, SingleSoundResult result, float[] residual, double residualEnergy, float minSim) {
+        SingleSoundResult exact = reference.findBestMatch(ctx, residual, residualEnergy, minSim);
+        recall.record(result == null ? -1 : result.candidate(), result == null ? 0.0f : (float) result.similarity(),
+                exact == null ? -1 : exact.candidate(), exact == null ? 0.0f : (float) exact.similarity());
+    }
+
+    //null unless MatchSettings.measureRecall is set and the rows are compressed
+    public String recallReport() {
+        return reference != null ? recall.describe() : null;
+    }
+
+    /**
+     * Runs the whole greedy loop of one frame on the device: energy check, scoring, argmax and residual
+     * update are all enqueued back to back, so the frame costs one residual upload and one read of the
+     * picked (index, volume, similarity) tuples.
+     */
+    public List<SingleSoundResult> findBestComposition(ConverterContext ctx, float[] residual, int totalSounds, float minEnergyRatio, float minSim) {
+        return withLane(lane -> lane.findBestComposition(ctx, residual, totalSounds, minEnergyRatio, minSim), null);
+    }
+
+    /**
+     * Rescores the rerankTopK rows with the highest compressed similarity against the host's full precision rows.
+     * Returns the best row at or above minSim, or -1, with its similarity and volume in best.
+     */
+    private int rerank(FloatBuffer sims, int base, float[] residual, float residualNorm, float minSim, float[] best) {
+        int k = Math.min(rerankTopK, numCandidates);
+        int[] top = new int[k];
+        int size = 0;
+        for (int i = 0; i < numCandidates; i++) {
+            float s = sims.get(base + i);
+            if (size == k && s <= sims.get(base + top[size - 1])) continue;
+            int at = size < k ? size++ : size - 1;
+            while (at > 0 && sims.get(base + top[at - 1]) < s) {
+                top[at] = top[at - 1];
+                at--;
+            }
+            top[at] = i;
+        }
+
+        best[0] = minSim;
+        best[1] = 0.0f;
+        int bestIdx = -1;
+        float[] score = new float[2];
+        for (int t = 0; t < size; t++) {
+            exact(top[t], residual, residualNorm, score);
+            if (score[0] < best[0] || (score[0] == best[0] && bestIdx >= 0)) continue;
+            best[0] = score[0];
+            best[1] = score[1];
+            bestIdx = top[t];
+        }
+        return bestIdx;
+    }
+
+    //full precision similarity and volume of row idx against residual, into out[0] and out[1]
+    private void exact(int idx, float[] residual, float residualNorm, float[] out) {
+        float[] dot = new float[1];
+        KERNEL.dots(candidates.matrix, frameSize, idx, idx + 1, residual, 0, dot, 0);
+        float n = Math.max(candidates.norms[idx], 1e-20f);
+        float cs = dot[0] / (n * Math.max(residualNorm, 1e-20f));
+        if (cs < 0.0f) cs = 0.0f;
+        out[0] = cs * n;
+        out[1] = Math.max(0.0f, Math.min(1.0f, dot[0] / (n * n + 1e-10f)));
+    }
 
+    private SingleSoundResult toResult(ConverterContext ctx, int idx, double volume, double sim) {
+        int id = candidates.id(idx);
+        return new SingleSoundResult(db.name(id), db.pitch(id), volume, sim, id);
+    }
+
+    private final class Lane {
+        private final cl_command_queue queue;
+        private final cl_kernel kernelDotSim;
+        private final cl_kernel kernelDotSimBatch;
+        private final cl_kernel kernelEnergy;
+        private final cl_kernel kernelDotSimResident;
+        private final cl_kernel kernelArgmax;
+        private final cl_kernel kernelUpdate;
+
+        private final cl_mem dResidual;
+        private final cl_mem dSims;
+        private final cl_mem dVols;
+        private final cl_mem dState;
+        private cl_mem dResidualBatch;
+        private cl_mem dResidualNormsBatch;
+        private cl_mem dSimsBatch;
+        private cl_mem dVolsBatch;
+        private cl_mem dPickIdx;
+        private cl_mem dPickVals;
+        private int pickCapacity = 0;
+
+        //direct buffers so transfers can be enqueued without blocking, they belong to the lane until its call returns
+        private final FloatBuffer hResidual;
+        private final FloatBuffer hSims;
+        private final FloatBuffer hVols;
+        private final FloatBuffer hState;
+        private FloatBuffer hResidualBatch;
+        private FloatBuffer hResidualNormsBatch;
+        private FloatBuffer hSimsBatch;
+        private FloatBuffer hVolsBatch;
+        private IntBuffer hPickIdx;
+        private FloatBuffer hPickVals;
+
+        private Lane() {
+            queue = clCreateCommandQueue(context, device, 0, null);
+
+            kernelDotSim = clCreateKernel(program, "dotSimVol", null);
+            kernelDotSimBatch = clCreateKernel(program, "dotSimVolBatch", null);
+            kernelEnergy = clCreateKernel(program, "residualEnergy", null);
+            kernelDotSimResident = clCreateKernel(program, "dotSimVolResident", null);
+            kernelArgmax = clCreateKernel(program, "argmaxPick", null);
+            kernelUpdate = clCreateKernel(program, "residualUpdate", null);
+
+            dResidual = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) frameSize * Sizeof.cl_float, null, null);
+            dSims = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) numCandidates * Sizeof.cl_float, null, null);
+            dVols = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) numCandidates * Sizeof.cl_float, null, null);
+            dState = clCreateBuffer(context, CL_MEM_READ_WRITE, 4L * Sizeof.cl_float, null, null);
+
+            hResidual = floats(frameSize);
+            hSims = floats(numCandidates);
+            hVols = floats(numCandidates);
+            hState = floats(4);
+        }
+
+        SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim) {
             float residualNorm = (float) Math.sqrt(residualEnergy);
-            clEnqueueWriteBuffer(queue, dResidual, CL_TRUE, 0L,
-                    (long) frameSize * Sizeof.cl_float, Pointer.to(residual), 0, null, null);
+            hResidual.clear();
+            hResidual.put(residual, 0, frameSize).rewind();
+            clEnqueueWriteBuffer(queue, dResidual, CL_FALSE, 0L,
+                    (long) frameSize * Sizeof.cl_float, Pointer.to(hResidual), 0, null, null);
 
             int arg = 0;
             clSetKernelArg(kernelDotSim, arg++, Sizeof.cl_mem, Pointer.to(dCandidates));
@@ -181,64 +573,340 @@ public class GreedySubGpuMatcher implements Matcher {
             clSetKernelArg(kernelDotSim, arg++, Sizeof.cl_float, Pointer.to(new float[]{residualNorm}));
             clSetKernelArg(kernelDotSim, arg++, Sizeof.cl_mem, Pointer.to(dSims));
             clSetKernelArg(kernelDotSim, arg++, Sizeof.cl_mem, Pointer.to(dVols));
-
-            int localSize = 256;
             clSetKernelArg(kernelDotSim, arg++, (long) localSize * Sizeof.cl_float, null);
+            clSetKernelArg(kernelDotSim, arg++, Sizeof.cl_mem, Pointer.to(dScales));
 
             long[] global = new long[]{(long) numCandidates * localSize};
             long[] local  = new long[]{localSize};
             clEnqueueNDRangeKernel(queue, kernelDotSim, 1, null, global, local, 0, null, null);
 
-            clEnqueueReadBuffer(queue, dSims, CL_TRUE, 0L,
+            clEnqueueReadBuffer(queue, dSims, CL_FALSE, 0L,
                     (long) numCandidates * Sizeof.cl_float, Pointer.to(hSims), 0, null, null);
-            clEnqueueReadBuffer(queue, dVols, CL_TRUE, 0L,
-                    (long) numCandidates * Sizeof.cl_float, Pointer.to(hVols), 0, null, null);
+            await(readAsync(dVols, hVols, (long) numCandidates * Sizeof.cl_float));
+
+            Counter.CANDIDATES_SCORED.add(numCandidates);
+            Counter.GPU_BYTES.add((frameSize + 2L * numCandidates) * Sizeof.cl_float);
+            if (candidateBits < 32) {
+                float[] exact = new float[2];
+                int best = rerank(hSims, 0, residual, residualNorm, minSim, exact);
+                return best < 0 ? null : toResult(ctx, best, exact[1], exact[0]);
+            }
 
             int best = -1;
             float bestSim = -Float.MAX_VALUE;
             for (int i = 0; i < numCandidates; i++) {
-                float s = hSims[i];
+                float s = hSims.get(i);
                 if (s > bestSim) { bestSim = s; best = i; }
             }
             if (best < 0 || bestSim < minSim) return null;
 
-            CandidateMeta m = meta[best];
-            double volume = hVols[best];
-            return new SingleSoundResult(m.name, m.pitch, volume, bestSim, SoundMatcher.getDatabase(ctx).pitchShiftedEffects.get(m.name).get(m.pitch));
+            return toResult(ctx, best, hVols.get(best), bestSim);
+        }
+
+        SingleSoundResult[] findBestMatches(ConverterContext ctx, float[][] residuals, double[] residualEnergies, float minSim) {
+            SingleSoundResult[] out = new SingleSoundResult[residuals.length];
+            ensureBatchBuffers();
+
+            for (int start = 0; start < residuals.length; start += MAX_BATCH) {
+                int batch = Math.min(MAX_BATCH, residuals.length - start);
+
+                hResidualBatch.clear();
+                hResidualNormsBatch.clear();
+                for (int r = 0; r < batch; r++) {
+                    hResidualBatch.put(residuals[start + r], 0, frameSize);
+                    hResidualNormsBatch.put((float) Math.sqrt(residualEnergies[start + r]));
+                }
+                hResidualBatch.rewind();
+                hResidualNormsBatch.rewind();
+                clEnqueueWriteBuffer(queue, dResidualBatch, CL_FALSE, 0L,
+                        (long) batch * frameSize * Sizeof.cl_float, Pointer.to(hResidualBatch), 0, null, null);
+                clEnqueueWriteBuffer(queue, dResidualNormsBatch, CL_FALSE, 0L,
+                        (long) batch * Sizeof.cl_float, Pointer.to(hResidualNormsBatch), 0, null, null);
+
+                int arg = 0;
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dCandidates));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dNorms));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dResidualBatch));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dResidualNormsBatch));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_int, Pointer.to(new int[]{frameSize}));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_int, Pointer.to(new int[]{numCandidates}));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_int, Pointer.to(new int[]{batch}));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dSimsBatch));
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dVolsBatch));
+                clSetKernelArg(kernelDotSimBatch, arg++, (long) localSize * Sizeof.cl_float, null);
+                clSetKernelArg(kernelDotSimBatch, arg++, Sizeof.cl_mem, Pointer.to(dScales));
+
+                long[] global = new long[]{(long) numCandidates * localSize};
+                long[] local  = new long[]{localSize};
+                clEnqueueNDRangeKernel(queue, kernelDotSimBatch, 1, null, global, local, 0, null, null);
+
+                clEnqueueReadBuffer(queue, dSimsBatch, CL_FALSE, 0L,
+                        (long) batch * numCandidates * Sizeof.cl_float, Pointer.to(hSimsBatch), 0, null, null);
+                await(readAsync(dVolsBatch, hVolsBatch, (long) batch * numCandidates * Sizeof.cl_float));
+                Counter.CANDIDATES_SCORED.add((long) batch * numCandidates);
+                Counter.GPU_BYTES.add(batch * (frameSize + 1 + 2L * numCandidates) * Sizeof.cl_float);
+
+                for (int r = 0; r < batch; r++) {
+                    int base = r * numCandidates;
+                    if (candidateBits < 32) {
+                        float[] exact = new float[2];
+                        int best = rerank(hSimsBatch, base, residuals[start + r], (float) Math.sqrt(residualEnergies[start + r]), minSim, exact);
+                        if (best >= 0) out[start + r] = toResult(ctx, best, exact[1], exact[0]);
+                        continue;
+                    }
+                    int best = -1;
+                    float bestSim = -Float.MAX_VALUE;
+                    for (int i = 0; i < numCandidates; i++) {
+                        float s = hSimsBatch.get(base + i);
+                        if (s > bestSim) { bestSim = s; best = i; }
+                    }
+                    if (best < 0 || bestSim < minSim) continue;
+
+                    out[start + r] = toResult(ctx, best, hVolsBatch.get(base + best), bestSim);
+                }
+            }
+            return out;
+        }
+
+        List<SingleSoundResult> findBestComposition(ConverterContext ctx, float[] residual, int totalSounds, float minEnergyRatio, float minSim) {
+            List<SingleSoundResult> picks = new ArrayList<>();
+            if (totalSounds <= 0) return picks;
+            ensurePickCapacity(totalSounds);
+
+            hResidual.clear();
+            hResidual.put(residual, 0, frameSize).rewind();
+            hState.clear();
+            hState.put(new float[4]).rewind();
+            clEnqueueWriteBuffer(queue, dResidual, CL_FALSE, 0L,
+                    (long) frameSize * Sizeof.cl_float, Pointer.to(hResidual), 0, null, null);
+            clEnqueueWriteBuffer(queue, dState, CL_FALSE, 0L,
+                    4L * Sizeof.cl_float, Pointer.to(hState), 0, null, null);
+
+            long[] local = new long[]{localSize};
+            long[] single = new long[]{localSize};
+            long[] perCandidate = new long[]{(long) numCandidates * localSize};
+            long[] perSample = new long[]{(long) ((frameSize + localSize - 1) / localSize) * localSize};
+
+            clSetKernelArg(kernelEnergy, 0, Sizeof.cl_mem, Pointer.to(dResidual));
+            clSetKernelArg(kernelEnergy, 1, Sizeof.cl_int, Pointer.to(new int[]{frameSize}));
+            clSetKernelArg(kernelEnergy, 3, Sizeof.cl_float, Pointer.to(new float[]{minEnergyRatio}));
+            clSetKernelArg(kernelEnergy, 4, Sizeof.cl_mem, Pointer.to(dState));
+            clSetKernelArg(kernelEnergy, 5, (long) localSize * Sizeof.cl_float, null);
+
+            clSetKernelArg(kernelDotSimResident, 0, Sizeof.cl_mem, Pointer.to(dCandidates));
+            clSetKernelArg(kernelDotSimResident, 1, Sizeof.cl_mem, Pointer.to(dNorms));
+            clSetKernelArg(kernelDotSimResident, 2, Sizeof.cl_mem, Pointer.to(dResidual));
+            clSetKernelArg(kernelDotSimResident, 3, Sizeof.cl_int, Pointer.to(new int[]{frameSize}));
+            clSetKernelArg(kernelDotSimResident, 4, Sizeof.cl_mem, Pointer.to(dState));
+            clSetKernelArg(kernelDotSimResident, 5, Sizeof.cl_mem, Pointer.to(dSims));
+            clSetKernelArg(kernelDotSimResident, 6, Sizeof.cl_mem, Pointer.to(dVols));
+            clSetKernelArg(kernelDotSimResident, 7, (long) localSize * Sizeof.cl_float, null);
+            clSetKernelArg(kernelDotSimResident, 8, Sizeof.cl_mem, Pointer.to(dScales));
+
+            clSetKernelArg(kernelArgmax, 0, Sizeof.cl_mem, Pointer.to(dSims));
+            clSetKernelArg(kernelArgmax, 1, Sizeof.cl_mem, Pointer.to(dVols));
+            clSetKernelArg(kernelArgmax, 2, Sizeof.cl_int, Pointer.to(new int[]{numCandidates}));
+            clSetKernelArg(kernelArgmax, 4, Sizeof.cl_float, Pointer.to(new float[]{minSim}));
+            clSetKernelArg(kernelArgmax, 5, Sizeof.cl_mem, Pointer.to(dState));
+            clSetKernelArg(kernelArgmax, 6, Sizeof.cl_mem, Pointer.to(dPickIdx));
+            clSetKernelArg(kernelArgmax, 7, Sizeof.cl_mem, Pointer.to(dPickVals));
+            clSetKernelArg(kernelArgmax, 8, (long) localSize * Sizeof.cl_float, null);
+            clSetKernelArg(kernelArgmax, 9, (long) localSize * Sizeof.cl_int, null);
+
+            clSetKernelArg(kernelUpdate, 0, Sizeof.cl_mem, Pointer.to(dCandidates));
+            clSetKernelArg(kernelUpdate, 1, Sizeof.cl_mem, Pointer.to(dResidual));
+            clSetKernelArg(kernelUpdate, 2, Sizeof.cl_int, Pointer.to(new int[]{frameSize}));
+            clSetKernelArg(kernelUpdate, 4, Sizeof.cl_mem, Pointer.to(dPickIdx));
+            clSetKernelArg(kernelUpdate, 5, Sizeof.cl_mem, Pointer.to(dPickVals));
+            clSetKernelArg(kernelUpdate, 6, Sizeof.cl_mem, Pointer.to(dScales));
+
+            for (int step = 0; step < totalSounds; step++) {
+                Pointer stepArg = Pointer.to(new int[]{step});
+                clSetKernelArg(kernelEnergy, 2, Sizeof.cl_int, stepArg);
+                clSetKernelArg(kernelArgmax, 3, Sizeof.cl_int, stepArg);
+                clSetKernelArg(kernelUpdate, 3, Sizeof.cl_int, stepArg);
+
+                clEnqueueNDRangeKernel(queue, kernelEnergy, 1, null, single, local, 0, null, null);
+                clEnqueueNDRangeKernel(queue, kernelDotSimResident, 1, null, perCandidate, local, 0, null, null);
+                clEnqueueNDRangeKernel(queue, kernelArgmax, 1, null, single, local, 0, null, null);
+                clEnqueueNDRangeKernel(queue, kernelUpdate, 1, null, perSample, local, 0, null, null);
+            }
+
+            clEnqueueReadBuffer(queue, dPickIdx, CL_FALSE, 0L,
+                    (long) totalSounds * Sizeof.cl_int, Pointer.to(hPickIdx), 0, null, null);
+            await(readAsync(dPickVals, hPickVals, 2L * totalSounds * Sizeof.cl_float));
+
+            //the device picked and subtracted on compressed rows, the volumes handed out are refit in full precision
+            float[] replay = candidateBits < 32 ? residual.clone() : null;
+            float[] exact = new float[2];
+            for (int step = 0; step < totalSounds; step++) {
+                int idx = hPickIdx.get(step);
+                if (idx < 0) break;
+                if (replay == null) {
+                    picks.add(toResult(ctx, idx, hPickVals.get(2 * step), hPickVals.get(2 * step + 1)));
+                    continue;
+                }
+                double energy = 0.0;
+                for (float v : replay) energy += v * v;
+                exact(idx, replay, (float) Math.sqrt(energy), exact);
+                int off = idx * frameSize;
+                for (int i = 0; i < frameSize; i++) replay[i] -= candidates.matrix[off + i] * exact[1];
+                picks.add(toResult(ctx, idx, exact[1], exact[0]));
+            }
+            //steps after the one that found nothing return straight away on the device
+            Counter.CANDIDATES_SCORED.add((long) Math.min(totalSounds, picks.size() + 1) * numCandidates);
+            Counter.GPU_BYTES.add((frameSize + 4L + 3L * totalSounds) * Sizeof.cl_float);
+            return picks;
+        }
+
+        //the queue is in order, so the last read completing means everything enqueued before it has too
+        private cl_event readAsync(cl_mem mem, Buffer dst, long bytes) {
+            cl_event done = new cl_event();
+            clEnqueueReadBuffer(queue, mem, CL_FALSE, 0L, bytes, Pointer.to(dst), 0, null, done);
+            return done;
+        }
+
+        //time blocked here is the device working through the kernels and transfers queued before the event
+        private void await(cl_event event) {
+            long start = Stats.now();
+            clWaitForEvents(1, new cl_event[]{event});
+            Stage.GPU_DEVICE.record(start);
+            clReleaseEvent(event);
+        }
+
+        private void ensureBatchBuffers() {
+            if (dResidualBatch != null) return;
+            dResidualBatch = clCreateBuffer(context, CL_MEM_READ_ONLY, (long) MAX_BATCH * frameSize * Sizeof.cl_float, null, null);
+            dResidualNormsBatch = clCreateBuffer(context, CL_MEM_READ_ONLY, (long) MAX_BATCH * Sizeof.cl_float, null, null);
+            dSimsBatch = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) MAX_BATCH * numCandidates * Sizeof.cl_float, null, null);
+            dVolsBatch = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) MAX_BATCH * numCandidates * Sizeof.cl_float, null, null);
+            hResidualBatch = floats(MAX_BATCH * frameSize);
+            hResidualNormsBatch = floats(MAX_BATCH);
+            hSimsBatch = floats(MAX_BATCH * numCandidates);
+            hVolsBatch = floats(MAX_BATCH * numCandidates);
+        }
+
+        private void ensurePickCapacity(int totalSounds) {
+            if (pickCapacity >= totalSounds) return;
+            if (dPickIdx != null)  clReleaseMemObject(dPickIdx);
+            if (dPickVals != null) clReleaseMemObject(dPickVals);
+            dPickIdx = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) totalSounds * Sizeof.cl_int, null, null);
+            dPickVals = clCreateBuffer(context, CL_MEM_READ_WRITE, 2L * totalSounds * Sizeof.cl_float, null, null);
+            hPickIdx = ByteBuffer.allocateDirect(totalSounds * Sizeof.cl_int).order(ByteOrder.nativeOrder()).asIntBuffer();
+            hPickVals = floats(2 * totalSounds);
+            pickCapacity = totalSounds;
+        }
+
+        private void release() {
+            clFinish(queue);
+            for (cl_mem mem : new cl_mem[]{dResidual, dSims, dVols, dState, dResidualBatch, dResidualNormsBatch, dSimsBatch, dVolsBatch, dPickIdx, dPickVals}) {
+                if (mem != null) clReleaseMemObject(mem);
+            }
+            for (cl_kernel kernel : new cl_kernel[]{kernelDotSim, kernelDotSimBatch, kernelEnergy, kernelDotSimResident, kernelArgmax, kernelUpdate}) {
+                if (kernel != null) clReleaseKernel(kernel);
+            }
+            clReleaseCommandQueue(queue);
         }
     }
 
+    private static FloatBuffer floats(int count) {
+        return ByteBuffer.allocateDirect(count * Sizeof.cl_float).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
     public void release() {
-        if (dCandidates != null) clReleaseMemObject(dCandidates);
-        if (dNorms != null)      clReleaseMemObject(dNorms);
-        if (dResidual != null)   clReleaseMemObject(dResidual);
-        if (dSims != null)       clReleaseMemObject(dSims);
-        if (dVols != null)       clReleaseMemObject(dVols);
-        if (kernelDotSim != null) clReleaseKernel(kernelDotSim);
-        if (program != null)      clReleaseProgram(program);
-        if (queue != null)        clReleaseCommandQueue(queue);
-        if (context != null)      clReleaseContext(context);
-        dCandidates = dNorms = dResidual = dSims = dVols = null;
-        kernelDotSim = null;
-        program = null;
-        queue = null;
-        context = null;
-        ready = false;
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            lanes.clear();
+            for (Lane lane : allLanes) lane.release();
+            allLanes.clear();
+            if (dCandidates != null) clReleaseMemObject(dCandidates);
+            if (dNorms != null)      clReleaseMemObject(dNorms);
+            if (dScales != null)     clReleaseMemObject(dScales);
+            if (program != null)     clReleaseProgram(program);
+            if (context != null)     clReleaseContext(context);
+            dCandidates = dNorms = dScales = null;
+            program = null;
+            context = null;
+            device = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //whether the eidolon.opencl.* properties pick a device at all, without building anything on it
+    static boolean deviceAvailable() {
+        try {
+            pickDevice(pickPlatform());
+            return true;
+        } catch (RuntimeException | LinkageError e) {
+            return false;
+        }
+    }
+
+    //-Deidolon.opencl.platform=<part of the platform name> and -Deidolon.opencl.device=gpu|cpu|all
+    //pick what runs the kernels, e.g. a cpu runtime like POCL on machines without a gpu
+    private static cl_platform_id pickPlatform() {
+        int[] num = new int[1];
+        clGetPlatformIDs(0, null, num);
+        if (num[0] == 0) throw new RuntimeException("No OpenCL platform found");
+        cl_platform_id[] platforms = new cl_platform_id[num[0]];
+        clGetPlatformIDs(num[0], platforms, null);
+
+        String wanted = System.getProperty("eidolon.opencl.platform");
+        long type = deviceType();
+        for (cl_platform_id platform : platforms) {
+            if (wanted != null && !platformName(platform).toLowerCase(Locale.ROOT).contains(wanted.toLowerCase(Locale.ROOT))) continue;
+            if (devices(platform, type).length > 0 || (type == CL_DEVICE_TYPE_GPU && devices(platform, CL_DEVICE_TYPE_CPU).length > 0)) {
+                return platform;
+            }
+        }
+        throw new RuntimeException("No OpenCL platform matching " + (wanted == null ? "any" : wanted));
     }
 
     private static cl_device_id pickDevice(cl_platform_id platform) {
-        cl_device_id[] devs = devices(platform, CL_DEVICE_TYPE_GPU);
-        if (devs.length == 0) devs = devices(platform, CL_DEVICE_TYPE_CPU);
+        long type = deviceType();
+        cl_device_id[] devs = devices(platform, type);
+        if (devs.length == 0 && type == CL_DEVICE_TYPE_GPU) devs = devices(platform, CL_DEVICE_TYPE_CPU);
         if (devs.length == 0) throw new RuntimeException("No OpenCL device found");
         return devs[0];
     }
 
+    private static long deviceType() {
+        return switch (System.getProperty("eidolon.opencl.device", "gpu").toLowerCase(Locale.ROOT)) {
+            case "cpu" -> CL_DEVICE_TYPE_CPU;
+            case "all" -> CL_DEVICE_TYPE_ALL;
+            default -> CL_DEVICE_TYPE_GPU;
+        };
+    }
+
     private static cl_device_id[] devices(cl_platform_id platform, long type) {
         int[] num = new int[1];
-        clGetDeviceIDs(platform, type, 0, null, num);
+        try {
+            clGetDeviceIDs(platform, type, 0, null, num);
+        } catch (CLException e) {
+            //CL_DEVICE_NOT_FOUND is reported as an exception while exceptions are enabled
+            return new cl_device_id[0];
+        }
         if (num[0] == 0) return new cl_device_id[0];
         cl_device_id[] arr = new cl_device_id[num[0]];
         clGetDeviceIDs(platform, type, num[0], arr, null);
         return arr;
     }
+
+    private static String platformName(cl_platform_id platform) {
+        long[] size = new long[1];
+        clGetPlatformInfo(platform, CL_PLATFORM_NAME, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetPlatformInfo(platform, CL_PLATFORM_NAME, buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, Math.max(0, buffer.length - 1));
+    }
+
+    private static String deviceName(cl_device_id device) {
+        long[] size = new long[1];
+        clGetDeviceInfo(device, CL_DEVICE_NAME, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetDeviceInfo(device, CL_DEVICE_NAME, buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, Math.max(0, buffer.length - 1));
+    }
 }
@@ -0,0 +1,305 @@
+package net.thorioum.matchers;
+
+import net.thorioum.Stats.Counter;
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static net.thorioum.Eidolon.info;
+
+/**
+ * Approximate matcher over an inverted file index. The candidate rows are clustered by direction (spherical
+ * k-means over their normalized, decimated shape) into annLists lists. A query ranks the list centroids against
+ * the residual and only scores the rows of the best annProbes lists, exactly and at full rate, so the winner's
+ * volume and similarity are the real ones. Within a list rows keep the database's loudest-first order, so the
+ * norm cutoff of the exhaustive scan applies per list.
+ *
+ * With MatchSettings.measureRecall every query is also answered by an exhaustive GreedySubCpuMatcher.
+ */
+public class IvfMatcher implements Matcher {
+
+    private static final DotKernel KERNEL = DotKernel.select();
+    //rows are clustered on a copy decimated by this much, plenty to tell directions apart and far cheaper to train
+    private static final int ROUTING_FACTOR = 8;
+    private static final int TRAIN_ROWS_PER_LIST = 32;
+    private static final int ITERATIONS = 10;
+
+    private final MatchSettings settings;
+    private final RecallStats recall;
+    private GreedySubCpuMatcher reference;
+
+    private int frameSize;
+    private int numCandidates;
+    private SoundEffectDatabase db;
+    private CandidateSet candidates;
+    private float[] matrix;
+    private float[] norms;
+
+    private int routeSize;
+    private int routeFactor;
+    private int numLists;
+    private int probes;
+    private float[] centroids;
+    //rows of list l are listRows[listStart[l] .. listStart[l + 1]), loudest first
+    private int[] listStart;
+    private int[] listRows;
+
+    private volatile boolean ready = false;
+
+    public IvfMatcher(MatchSettings settings) {
+        this.settings = settings;
+        this.recall = settings.measureRecall ? new RecallStats() : null;
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void buildFromDatabase(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds) {
+        ready = false;
+        this.frameSize = frameSize;
+        this.db = db;
+        this.candidates = CandidateSet.of(db, frameSize, blacklistedSounds);
+        this.matrix = candidates.matrix;
+        this.norms = candidates.norms;
+        this.numCandidates = candidates.size;
+        if (numCandidates == 0) return;
+
+        long start = System.nanoTime();
+        routeFactor = frameSize / ROUTING_FACTOR >= 32 ? ROUTING_FACTOR : 1;
+        routeSize = frameSize / routeFactor;
+        numLists = settings.annLists > 0 ? settings.annLists : (int) Math.round(Math.sqrt(numCandidates));
+        numLists = Math.max(1, Math.min(numLists, numCandidates));
+        probes = Math.max(1, Math.min(settings.annProbes, numLists));
+
+        train();
+        assign();
+
+        if (recall != null) {
+            reference = new GreedySubCpuMatcher();
+            reference.buildFromDatabase(db, frameSize, blacklistedSounds);
+        }
+
+        info(String.format("IVF matcher over %d candidates in %d lists, probing %d (built in %.1fs)",
+                numCandidates, numLists, probes, (System.nanoTime() - start) / 1e9));
+        ready = true;
+    }
+
+    //spherical k-means on a sample of the rows, centroids start as random sample rows
+    private void train() {
+        Random random = new Random(0x1f5eed);
+        int sampleSize = Math.min(numCandidates, numLists * TRAIN_ROWS_PER_LIST);
+        int[] sample = random.ints(0, numCandidates).distinct().limit(sampleSize).toArray();
+        float[] routes = new float[sampleSize * routeSize];
+        IntStream.range(0, sampleSize).parallel().forEach(s -> route(matrix, sample[s] * frameSize, routes, s * routeSize));
+
+        centroids = new float[numLists * routeSize];
+        for (int l = 0; l < numLists; l++) System.arraycopy(routes, l * routeSize, centroids, l * routeSize, routeSize);
+
+        int[] assignment = new int[sampleSize];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            IntStream.range(0, sampleSize).parallel().forEach(s -> assignment[s] = nearest(routes, s * routeSize));
+
+            float[] sums = new float[numLists * routeSize];
+            int[] counts = new int[numLists];
+            for (int s = 0; s < sampleSize; s++) {
+                int l = assignment[s];
+                counts[l]++;
+                for (int i = 0; i < routeSize; i++) sums[l * routeSize + i] += routes[s * routeSize + i];
+            }
+            for (int l = 0; l < numLists; l++) {
+                //an empty list takes over a random sample row so every list stays in use
+                if (counts[l] == 0) System.arraycopy(routes, random.nextInt(sampleSize) * routeSize, sums, l * routeSize, routeSize);
+                normalize(sums, l * routeSize, routeSize);
+            }
+            centroids = sums;
+        }
+    }
+
+    //every row goes to its nearest centroid, grouped by list with the database order kept inside each list
+    private void assign() {
+        int[] list = new int[numCandidates];
+        IntStream.range(0, numCandidates).parallel().forEach(c -> {
+            float[] route = new float[routeSize];
+            route(matrix, c * frameSize, route, 0);
+            list[c] = nearest(route, 0);
+        });
+
+        listStart = new int[numLists + 1];
+        for (int c = 0; c < numCandidates; c++) listStart[list[c] + 1]++;
+        for (int l = 0; l < numLists; l++) listStart[l + 1] += listStart[l];
+        listRows = new int[numCandidates];
+        int[] fill = listStart.clone();
+        for (int c = 0; c < numCandidates; c++) listRows[fill[list[c]]++] = c;
+    }
+
+    private int nearest(float[] route, int offset) {
+        float[] scores = new float[numLists];
+        KERNEL.dots(centroids, routeSize, 0, numLists, route, offset, scores, 0);
+        int best = 0;
+        for (int l = 1; l < numLists; l++) if (scores[l] > scores[best]) best = l;
+        return best;
+    }
+
+    //block sums of a row, normalized, so only its shape decides the list
+    private void route(float[] src, int srcOff, float[] dst, int dstOff) {
+        for (int j = 0; j < routeSize; j++) {
+            float sum = 0.0f;
+            int base = srcOff + j * routeFactor;
+            for (int i = 0; i < routeFactor; i++) sum += src[base + i];
+            dst[dstOff + j] = sum;
+        }
+        normalize(dst, dstOff, routeSize);
+    }
+
+    private static void normalize(float[] v, int off, int length) {
+        double energy = 0.0;
+        for (int i = 0; i < length; i++) energy += v[off + i] * v[off + i];
+        if (energy <= 1e-30) return;
+        float scale = (float) (1.0 / Math.sqrt(energy));
+        for (int i = 0; i < length; i++) v[off + i] *= scale;
+    }
+
+    @Override
+    public SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim) {
+        if (!ready) return null;
+
+        float residualNorm = (float) Math.sqrt(residualEnergy);
+        if (residualNorm <= 1e-20f) return null;
+
+        int[] probed = probe(residual);
+
+        float bestSim = minSim;
+        int bestIdx = -1;
+        float bestVol = 0.0f;
+        float[] dot = new float[1];
+        long scored = 0;
+        for (int l : probed) {
+            for (int p = listStart[l]; p < listStart[l + 1]; p++) {
+                int k = listRows[p];
+                float n = norms[k];
+                if (n <= bestSim) break;
+                if (n <= 1e-20f) continue;
+
+                KERNEL.dots(matrix, frameSize, k, k + 1, residual, 0, dot, 0);
+                scored++;
+                float cs = dot[0] / (n * residualNorm);
+                if (cs < 0.0f) cs = 0.0f;
+                float sim = cs * n;
+                if (sim <= bestSim) continue;
+
+                float vol = dot[0] / (n * n + 1e-10f);
+                if (vol < 0.0f) vol = 0.0f;
+                if (vol > 1.0f) vol = 1.0f;
+
+                bestSim = sim;
+                bestIdx = k;
+                bestVol = vol;
+            }
+        }
+        Counter.CANDIDATES_SCORED.add(scored + numLists);
+
+        SingleSoundResult result = bestIdx < 0 ? null : toResult(bestIdx, bestVol, bestSim);
+        if (reference != null) {
+            SingleSoundResult exact = reference.findBestMatch(ctx, residual, residualEnergy, minSim);
+            recall.record(result == null ? -1 : result.candidate(), result == null ? 0.0f : (float) result.similarity(),
+                    exact == null ? -1 : exact.candidate(), exact == null ? 0.0f : (float) exact.similarity());
+        }
+        return result;
+    }
+
+    /**
+     * The k best rows of the probed lists, best first, scored like findBestMatch. Once k rows are kept a list is
+     * left at the first row whose norm cannot beat the weakest of them.
+     */
+    @Override
+    public List<SingleSoundResult> findTopMatches(ConverterContext ctx, float[] residual, double residualEnergy, float minSim, int k) {
+        if (!ready || k <= 0) return List.of();
+        float residualNorm = (float) Math.sqrt(residualEnergy);
+        if (residualNorm <= 1e-20f) return List.of();
+
+        int[] probed = probe(residual);
+
+        int[] top = new int[k];
+        float[] topSim = new float[k];
+        float[] topVol = new float[k];
+        int size = 0;
+        float[] dot = new float[1];
+        long scored = 0;
+        for (int l : probed) {
+            for (int p = listStart[l]; p < listStart[l + 1]; p++) {
+                int r = listRows[p];
+                float n = norms[r];
+                if (n <= (size == k ? topSim[k - 1] : minSim)) break;
+                if (n <= 1e-20f) continue;
+
+                KERNEL.dots(matrix, frameSize, r, r + 1, residual, 0, dot, 0);
+                scored++;
+                float sim = Math.max(0.0f, dot[0]) / residualNorm;
+                if (sim <= minSim || (size == k && sim <= topSim[k - 1])) continue;
+                float vol = Math.max(0.0f, Math.min(1.0f, dot[0] / (n * n + 1e-10f)));
+
+                int at = size < k ? size++ : k - 1;
+                while (at > 0 && topSim[at - 1] < sim) {
+                    top[at] = top[at - 1];
+                    topSim[at] = topSim[at - 1];
+                    topVol[at] = topVol[at - 1];
+                    at--;
+                }
+                top[at] = r;
+                topSim[at] = sim;
+                topVol[at] = vol;
+            }
+        }
+        Counter.CANDIDATES_SCORED.add(scored + numLists);
+
+        SingleSoundResult[] results = new SingleSoundResult[size];
+        for (int i = 0; i < size; i++) results[i] = toResult(top[i], topVol[i], topSim[i]);
+        return List.of(results);
+    }
+
+    //the lists whose centroids point most like residual
+    private int[] probe(float[] residual) {
+        float[] route = new float[routeSize];
+        route(residual, 0, route, 0);
+        float[] listScores = new float[numLists];
+        KERNEL.dots(centroids, routeSize, 0, numLists, route, 0, listScores, 0);
+        return topLists(listScores);
+    }
+
+    //the probes best scoring lists, best first
+    private int[] topLists(float[] scores) {
+        int[] top = new int[probes];
+        int size = 0;
+        for (int l = 0; l < numLists; l++) {
+            if (size == probes && scores[l] <= scores[top[size - 1]]) continue;
+            int i = size < probes ? size++ : size - 1;
+            while (i > 0 && scores[top[i - 1]] < scores[l]) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = l;
+        }
+        return top;
+    }
+
+    public String recallReport() {
+        return recall != null ? recall.describe() : null;
+    }
+
+    public int numLists() {
+        return numLists;
+    }
+
+    private SingleSoundResult toResult(int idx, float vol, float sim) {
+        int id = candidates.id(idx);
+        return new SingleSoundResult(db.name(id), db.pitch(id), vol, sim, id);
+    }
+}
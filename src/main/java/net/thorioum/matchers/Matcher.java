@@ -10,4 +10,19 @@ public interface Matcher {
     boolean isReady();
     void buildFromDatabase(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds);
     SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim);
+
+    //one greedy step for several frames at once, entries are null where nothing beat minSim
+    default SingleSoundResult[] findBestMatches(ConverterContext ctx, float[][] residuals, double[] residualEnergies, float minSim) {
+        SingleSoundResult[] out = new SingleSoundResult[residuals.length];
+        for (int r = 0; r < residuals.length; r++) {
+            out[r] = findBestMatch(ctx, residuals[r], residualEnergies[r], minSim);
+        }
+        return out;
+    }
+
+    //the k best candidates for one residual in one pass, best first. matchers without a ranked scan only give their best match
+    default List<SingleSoundResult> findTopMatches(ConverterContext ctx, float[] residual, double residualEnergy, float minSim, int k) {
+        SingleSoundResult best = findBestMatch(ctx, residual, residualEnergy, minSim);
+        return best == null ? List.of() : List.of(best);
+    }
 }
@@ -0,0 +1,268 @@
+package net.thorioum.matchers;
+
+import net.thorioum.Stats.Counter;
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+import net.thorioum.sound.Util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.IntStream;
+
+import static net.thorioum.Eidolon.info;
+import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
+
+/**
+ * Lets a candidate start partway into the frame. A sound delayed by t samples only ever plays its first
+ * frameSize - t samples inside the frame, so the rows the database already stores are all the prefix this needs.
+ *
+ * Correlating one row against the residual at every lag is one fft product, so a query first shortlists the
+ * offsetShortlist rows whose mel band magnitudes (which do not care where in the frame a sound is) fit the
+ * residual best, adds the exhaustive zero lag winner, and cross-correlates each of them with the residual through
+ * one zero padded fft. Two rows share every inverse transform, one in the real part and one in the imaginary part.
+ * Row spectra are kept in an offsetCacheSize entry LRU, like the gram columns of the cpu matcher.
+ *
+ * Lags stay on multiples of tickSamples, the finest delay the output can give a sound (a datapack only delays by whole
+ * ticks), so a pick is never scored at a start it will not be played at.
+ */
+public class OffsetMatcher implements Matcher {
+
+    private final MatchSettings settings;
+    private final int tickSamples;
+    private final SpectralMatcher spectral;
+    private final GreedySubCpuMatcher zeroLag;
+
+    private int frameSize;
+    private SoundEffectDatabase db;
+    private CandidateSet candidates;
+    private float[] matrix;
+    //database id -> row, null when they are the same
+    private int[] rowOf;
+
+    private int fftSize;
+    private int maxOffset;
+    private int step;
+    private int shortlist;
+    //bins 0 .. fftSize / 2 of a row's spectrum, re and im interleaved, the other half is their conjugate
+    private final Map<Integer, float[]> spectra;
+
+    private volatile boolean ready = false;
+
+    public OffsetMatcher(MatchSettings settings, int tickSamples) {
+        this.settings = settings;
+        this.tickSamples = Math.max(1, tickSamples);
+        this.spectral = new SpectralMatcher(settings);
+        this.zeroLag = new GreedySubCpuMatcher();
+        int cacheSize = Math.max(1, settings.offsetCacheSize);
+        this.spectra = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void buildFromDatabase(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds) {
+        ready = false;
+        this.frameSize = frameSize;
+        this.db = db;
+        this.candidates = CandidateSet.of(db, frameSize, blacklistedSounds);
+        this.matrix = candidates.matrix;
+        if (candidates.size == 0) return;
+
+        rowOf = null;
+        if (candidates.ids != null) {
+            rowOf = new int[db.size()];
+            for (int c = 0; c < candidates.size; c++) rowOf[candidates.ids[c]] = c;
+        }
+
+        //linear, not circular, correlation over every lag needs room for both signals
+        fftSize = Util.nextPow2(2 * frameSize);
+        int limit = settings.maxOffset > 0 ? settings.maxOffset * SAMPLE_RATE / 1000 : frameSize;
+        maxOffset = Math.max(0, Math.min(frameSize - 1, limit));
+        //offsetStep rounded up to whole ticks
+        step = (Math.max(1, settings.offsetStep) + tickSamples - 1) / tickSamples * tickSamples;
+        shortlist = Math.max(1, settings.offsetShortlist);
+        synchronized (spectra) {
+            spectra.clear();
+        }
+
+        spectral.buildFromDatabase(db, frameSize, blacklistedSounds);
+        zeroLag.buildFromDatabase(db, frameSize, blacklistedSounds);
+
+        info(String.format("Offset matcher over %d candidates, offsets up to %d samples in steps of %d, %d rows correlated per step",
+                candidates.size, maxOffset, step, shortlist));
+        if (step > maxOffset) info("Offset matcher steps are a whole tick of %d samples, which leaves no offset but 0 within a frame", tickSamples);
+        ready = true;
+    }
+
+    @Override
+    public SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim) {
+        if (!ready) return null;
+        float residualNorm = (float) Math.sqrt(residualEnergy);
+        if (residualNorm <= 1e-20f) return null;
+
+        SingleSoundResult zeroLagBest = zeroLag.findBestMatch(ctx, residual, residualEnergy, minSim);
+        int[] rows = rows(residual, zeroLagBest == null ? List.of() : List.of(zeroLagBest));
+        if (rows.length == 0) return zeroLagBest;
+
+        SingleSoundResult[] best = {zeroLagBest};
+        double[] tailEnergy = new double[frameSize + 1];
+        correlateRows(residual, rows, (corr, row) -> {
+            float floor = best[0] != null ? (float) best[0].similarity() : minSim;
+            SingleSoundResult match = bestLag(row, corr, residualNorm, floor, tailEnergy);
+            if (match != null) best[0] = match;
+        });
+        Counter.CANDIDATES_SCORED.add(rows.length);
+        return best[0];
+    }
+
+    /**
+     * The k rows that fit best at their best lag, best first, one result per row. The exact zero lag leaders are
+     * correlated along with the shortlist, so a row they rank is tried at every other lag too.
+     */
+    @Override
+    public List<SingleSoundResult> findTopMatches(ConverterContext ctx, float[] residual, double residualEnergy, float minSim, int k) {
+        if (!ready || k <= 0) return List.of();
+        float residualNorm = (float) Math.sqrt(residualEnergy);
+        if (residualNorm <= 1e-20f) return List.of();
+
+        int[] rows = rows(residual, zeroLag.findTopMatches(ctx, residual, residualEnergy, minSim, k));
+        SingleSoundResult[] top = new SingleSoundResult[k];
+        int[] size = {0};
+        double[] tailEnergy = new double[frameSize + 1];
+        correlateRows(residual, rows, (corr, row) -> {
+            float floor = size[0] == k ? (float) top[k - 1].similarity() : minSim;
+            SingleSoundResult match = bestLag(row, corr, residualNorm, floor, tailEnergy);
+            if (match == null) return;
+            int at = size[0] < k ? size[0]++ : k - 1;
+            while (at > 0 && top[at - 1].similarity() < match.similarity()) {
+                top[at] = top[at - 1];
+                at--;
+            }
+            top[at] = match;
+        });
+        Counter.CANDIDATES_SCORED.add(rows.length);
+        return List.of(Arrays.copyOf(top, size[0]));
+    }
+
+    //the spectral shortlist plus the rows of extra, each once
+    private int[] rows(float[] residual, List<SingleSoundResult> extra) {
+        IntStream extraRows = extra.stream().mapToInt(m -> rowOf == null ? m.candidate() : rowOf[m.candidate()]);
+        return IntStream.concat(Arrays.stream(spectral.shortlist(residual, shortlist)), extraRows).distinct().toArray();
+    }
+
+    //the residual cross-correlated with every row, two rows per transform. visit gets each row's lags, corr[t] being
+    //the row against the residual with the row starting t samples in. corr is reused once visit returns
+    private void correlateRows(float[] residual, int[] rows, ObjIntConsumer<double[]> visit) {
+        double[] resRe = new double[fftSize];
+        double[] resIm = new double[fftSize];
+        for (int i = 0; i < frameSize; i++) resRe[i] = residual[i];
+        Util.fft(resRe, resIm);
+
+        double[] re = new double[fftSize];
+        double[] im = new double[fftSize];
+        for (int p = 0; p < rows.length; p += 2) {
+            int a = rows[p];
+            int b = p + 1 < rows.length ? rows[p + 1] : -1;
+            correlate(resRe, resIm, spectrum(a), b >= 0 ? spectrum(b) : null, re, im);
+            //re is row a, im row b
+            visit.accept(re, a);
+            if (b >= 0) visit.accept(im, b);
+        }
+    }
+
+    //row at the lag on the grid where it scores best, null unless that beats floor
+    private SingleSoundResult bestLag(int row, double[] corr, float residualNorm, float floor, double[] tailEnergy) {
+        //energy of the first frameSize - t samples of the row, the part of it a delay of t leaves in the frame
+        int off = row * frameSize;
+        tailEnergy[0] = 0.0;
+        for (int i = 0; i < frameSize; i++) tailEnergy[i + 1] = tailEnergy[i] + (double) matrix[off + i] * matrix[off + i];
+
+        float bestSim = floor;
+        int bestLag = -1;
+        float bestVol = 0.0f;
+        for (int t = 0; t <= maxOffset; t += step) {
+            float dot = (float) corr[t];
+            float sim = dot / residualNorm;
+            if (sim <= bestSim) continue;
+            double n2 = tailEnergy[frameSize - t];
+            if (n2 <= 1e-20) continue;
+
+            float vol = (float) (dot / (n2 + 1e-10));
+            if (vol > 1.0f) vol = 1.0f;
+            bestSim = sim;
+            bestLag = t;
+            bestVol = vol;
+        }
+        if (bestLag < 0) return null;
+        int id = candidates.id(row);
+        return new SingleSoundResult(db.name(id), db.pitch(id), bestVol, bestSim, id, bestLag);
+    }
+
+    //inverse transform of R conj(A) + i R conj(B), whose real and imaginary parts are the two cross-correlations
+    private void correlate(double[] resRe, double[] resIm, float[] a, float[] b, double[] re, double[] im) {
+        int half = fftSize / 2;
+        for (int k = 0; k <= half; k++) {
+            double rr = resRe[k], ri = resIm[k];
+            double ar = a[2 * k], ai = a[2 * k + 1];
+            //R conj(A)
+            double pr = rr * ar + ri * ai;
+            double pi = ri * ar - rr * ai;
+            double qr = 0.0, qi = 0.0;
+            if (b != null) {
+                double br = b[2 * k], bi = b[2 * k + 1];
+                qr = rr * br + ri * bi;
+                qi = ri * br - rr * bi;
+            }
+            //P + iQ at k, conj(P) + i conj(Q) at fftSize - k since both correlations are real.
+            //the imaginary part is negated for the forward transform that stands in for the inverse
+            re[k] = pr - qi;
+            im[k] = -(pi + qr);
+            if (k > 0 && k < half) {
+                re[fftSize - k] = pr + qi;
+                im[fftSize - k] = -(qr - pi);
+            }
+        }
+        Util.fft(re, im);
+        double scale = 1.0 / fftSize;
+        for (int i = 0; i < fftSize; i++) {
+            re[i] *= scale;
+            im[i] *= -scale;
+        }
+    }
+
+    private float[] spectrum(int row) {
+        synchronized (spectra) {
+            float[] cached = spectra.get(row);
+            if (cached != null) return cached;
+        }
+
+        double[] re = new double[fftSize];
+        double[] im = new double[fftSize];
+        int off = row * frameSize;
+        for (int i = 0; i < frameSize; i++) re[i] = matrix[off + i];
+        Util.fft(re, im);
+        float[] spectrum = new float[fftSize + 2];
+        for (int k = 0; k <= fftSize / 2; k++) {
+            spectrum[2 * k] = (float) re[k];
+            spectrum[2 * k + 1] = (float) im[k];
+        }
+
+        synchronized (spectra) {
+            spectra.put(row, spectrum);
+        }
+        return spectrum;
+    }
+}
@@ -0,0 +1,37 @@
+package net.thorioum.matchers;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+//how often an approximate search picks the same candidate exhaustive search does, and how much similarity it keeps when it does not
+final class RecallStats {
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder missed = new LongAdder();
+    private final DoubleAdder keptSimilarity = new DoubleAdder();
+
+    //approximate and exact are candidate rows, -1 when that search found nothing above minSim
+    void record(int approximate, float approximateSim, int exact, float exactSim) {
+        if (exact < 0) return;
+        queries.increment();
+        if (approximate == exact) hits.increment();
+        if (approximate < 0) missed.increment();
+        keptSimilarity.add(approximate < 0 ? 0.0 : Math.min(1.0, approximateSim / exactSim));
+    }
+
+    long queries() {
+        return queries.sum();
+    }
+
+    double recall() {
+        long n = queries.sum();
+        return n == 0 ? 1.0 : (double) hits.sum() / n;
+    }
+
+    String describe() {
+        long n = queries.sum();
+        if (n == 0) return "no scans measured";
+        return String.format("found the exhaustive winner in %.1f%% of %d scans, kept %.1f%% of its similarity (%d found nothing)",
+                100.0 * hits.sum() / n, n, 100.0 * keptSimilarity.sum() / n, missed.sum());
+    }
+}
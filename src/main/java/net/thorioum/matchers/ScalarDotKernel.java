@@ -0,0 +1,35 @@
+package net.thorioum.matchers;
+
+class ScalarDotKernel implements DotKernel {
+
+    @Override
+    public void dots(float[] matrix, int frameSize, int from, int to, float[] vec, int vecOff, float[] out, int outOff) {
+        int offset = from * frameSize;
+        for (int c = from; c < to; c++) {
+            float dot = 0.0f;
+            for (int i = 0; i < frameSize; i++) {
+                dot += matrix[offset + i] * vec[vecOff + i];
+            }
+            offset += frameSize;
+            out[outOff + (c - from)] = dot;
+        }
+    }
+
+    @Override
+    public void dots(byte[] matrix, int frameSize, int from, int to, float[] vec, int vecOff, float[] out, int outOff) {
+        int offset = from * frameSize;
+        for (int c = from; c < to; c++) {
+            float dot = 0.0f;
+            for (int i = 0; i < frameSize; i++) {
+                dot += matrix[offset + i] * vec[vecOff + i];
+            }
+            offset += frameSize;
+            out[outOff + (c - from)] = dot;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,244 @@
+package net.thorioum.matchers;
+
+import net.thorioum.Stats.Counter;
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+import net.thorioum.sound.Util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static net.thorioum.Eidolon.info;
+import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
+
+/**
+ * Scores candidates on band magnitudes instead of samples. Every row's power spectrum is summed into
+ * spectralBands mel spaced bands once at build time, a score is then a dot product of a hundred or so band
+ * magnitudes, and a candidate that is only out of phase with the residual still matches it.
+ *
+ * Features are scaled so a row's feature norm is about its sample norm, so similarities, volumes and the
+ * minSim thresholds mean what they mean in the time domain. A {@link Search} keeps the band powers of one
+ * frame's residual and takes each pick out of them, since subtracting an out of phase sound in the time
+ * domain would not remove it from the spectrum.
+ */
+public class SpectralMatcher implements Matcher {
+
+    private static final DotKernel KERNEL = DotKernel.select();
+
+    private final int numBands;
+
+    private int frameSize;
+    private int numCandidates;
+    private SoundEffectDatabase db;
+    private CandidateSet candidates;
+
+    private int fftSize;
+    private double scale;
+    //fft bin -> band, -1 for the dc bin
+    private int[] bandOf;
+    //per candidate band powers and their square roots (the features), scaled like the samples
+    private float[] powers;
+    private float[] features;
+    private float[] featureNorms;
+
+    private volatile boolean ready = false;
+
+    public SpectralMatcher(MatchSettings settings) {
+        this.numBands = Math.max(4, settings.spectralBands);
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void buildFromDatabase(SoundEffectDatabase db, int frameSize, List<String> blacklistedSounds) {
+        ready = false;
+        this.frameSize = frameSize;
+        this.db = db;
+        this.candidates = CandidateSet.of(db, frameSize, blacklistedSounds);
+        this.numCandidates = candidates.size;
+        if (numCandidates == 0) return;
+
+        long start = System.nanoTime();
+        fftSize = Util.powerSpectrum(new double[frameSize]).length * 2 - 2;
+        //one sided bins of a hann windowed fft sum to about fftSize / 2 * 3 / 8 times the frame energy
+        scale = 16.0 / (3.0 * fftSize);
+        bandOf = bands(fftSize / 2 + 1, numBands);
+
+        powers = new float[numCandidates * numBands];
+        features = new float[numCandidates * numBands];
+        featureNorms = new float[numCandidates];
+        float[] matrix = candidates.matrix;
+        IntStream.range(0, numCandidates).parallel().forEach(c -> {
+            double[] row = new double[frameSize];
+            for (int i = 0; i < frameSize; i++) row[i] = matrix[c * frameSize + i];
+            bandPowers(row, powers, c * numBands);
+            double energy = 0.0;
+            for (int b = 0; b < numBands; b++) {
+                int k = c * numBands + b;
+                features[k] = (float) Math.sqrt(powers[k]);
+                energy += powers[k];
+            }
+            featureNorms[c] = (float) Math.sqrt(energy);
+        });
+
+        info(String.format("Spectral matcher over %d candidates in %d bands (built in %.1fs)",
+                numCandidates, numBands, (System.nanoTime() - start) / 1e9));
+        ready = true;
+    }
+
+    //mel spaced bands over bins 1 .. bins - 1, a band narrower than a bin would just stay empty
+    private static int[] bands(int bins, int numBands) {
+        int[] bandOf = new int[bins];
+        bandOf[0] = -1;
+        double maxMel = mel(SAMPLE_RATE / 2.0);
+        for (int k = 1; k < bins; k++) {
+            double hz = (double) k * SAMPLE_RATE / (2.0 * (bins - 1));
+            bandOf[k] = (int) Math.min(numBands - 1, mel(hz) / maxMel * numBands);
+        }
+        return bandOf;
+    }
+
+    private static double mel(double hz) {
+        return 2595.0 * Math.log10(1.0 + hz / 700.0);
+    }
+
+    private void bandPowers(double[] samples, float[] out, int off) {
+        double[] power = Util.powerSpectrum(samples);
+        double[] sums = new double[numBands];
+        for (int k = 0; k < power.length; k++) {
+            if (bandOf[k] >= 0) sums[bandOf[k]] += power[k];
+        }
+        for (int b = 0; b < numBands; b++) out[off + b] = (float) (sums[b] * scale);
+    }
+
+    @Override
+    public SingleSoundResult findBestMatch(ConverterContext ctx, float[] residual, double residualEnergy, float minSim) {
+        Search search = begin(residual);
+        return search == null ? null : search.next(ctx, minSim);
+    }
+
+    //the band powers of a frame's residual, each pick is taken out of them before the next one is scored
+    public Search begin(float[] residual) {
+        if (!ready) return null;
+        double[] samples = new double[frameSize];
+        for (int i = 0; i < frameSize; i++) samples[i] = residual[i];
+        float[] bandPowers = new float[numBands];
+        bandPowers(samples, bandPowers, 0);
+        return new Search(bandPowers);
+    }
+
+    //the k rows whose band magnitudes would take the most energy out of residual's, a shift invariant shortlist
+    int[] shortlist(float[] residual, int k) {
+        Search search = begin(residual);
+        if (search == null) return new int[0];
+        return search.rank(k);
+    }
+
+    public class Search {
+        private final float[] residualPowers;
+        private final float[] residualFeatures;
+        private final float[] dots;
+
+        private Search(float[] residualPowers) {
+            this.residualPowers = residualPowers;
+            this.residualFeatures = new float[numBands];
+            this.dots = new float[numCandidates];
+        }
+
+        /**
+         * The candidate whose band magnitudes best explain what is left, scored like the time domain matcher
+         * (sim = dot / |residual|, volume = dot / |candidate|^2). Its powers times volume^2 are then subtracted
+         * from the residual's bands, clamped at zero.
+         */
+        public SingleSoundResult next(ConverterContext ctx, float minSim) {
+            float residualNorm = score();
+            if (residualNorm <= 1e-20f) return null;
+
+            float bestGain = 0.0f;
+            float bestSim = 0.0f;
+            int bestIdx = -1;
+            float bestVol = 0.0f;
+            for (int c = 0; c < numCandidates; c++) {
+                float n = featureNorms[c];
+                if (n <= 1e-20f) continue;
+                float dot = dots[c];
+                float sim = dot / residualNorm;
+                if (sim < minSim) continue;
+
+                float vol = dot / (n * n + 1e-10f);
+                if (vol > 1.0f) vol = 1.0f;
+                //band energy this pick takes out, every magnitude correlates with every other so plain sim would favour loud rows
+                float gain = vol * (2.0f * dot - vol * n * n);
+                if (gain <= bestGain) continue;
+
+                bestGain = gain;
+                bestSim = sim;
+                bestIdx = c;
+                bestVol = vol;
+            }
+            if (bestIdx < 0) return null;
+
+            float gain = bestVol * bestVol;
+            int off = bestIdx * numBands;
+            for (int b = 0; b < numBands; b++) {
+                residualPowers[b] = Math.max(0.0f, residualPowers[b] - gain * powers[off + b]);
+            }
+
+            int id = candidates.id(bestIdx);
+            return new SingleSoundResult(db.name(id), db.pitch(id), bestVol, bestSim, id);
+        }
+
+        //best k rows by the energy they would take out, best first
+        private int[] rank(int k) {
+            if (score() <= 1e-20f) return new int[0];
+
+            k = Math.min(k, numCandidates);
+            int[] top = new int[k];
+            float[] gains = new float[k];
+            int size = 0;
+            for (int c = 0; c < numCandidates; c++) {
+                float n = featureNorms[c];
+                if (n <= 1e-20f) continue;
+                float vol = Math.min(1.0f, dots[c] / (n * n + 1e-10f));
+                float gain = vol * (2.0f * dots[c] - vol * n * n);
+                if (size == k && gain <= gains[size - 1]) continue;
+                int at = size < k ? size++ : size - 1;
+                while (at > 0 && gains[at - 1] < gain) {
+                    top[at] = top[at - 1];
+                    gains[at] = gains[at - 1];
+                    at--;
+                }
+                top[at] = c;
+                gains[at] = gain;
+            }
+            return size == k ? top : Arrays.copyOf(top, size);
+        }
+
+        //dots of every row's features against the residual's, returns the residual's feature norm
+        private float score() {
+            double energy = 0.0;
+            for (int b = 0; b < numBands; b++) {
+                residualFeatures[b] = (float) Math.sqrt(residualPowers[b]);
+                energy += residualPowers[b];
+            }
+            float residualNorm = (float) Math.sqrt(energy);
+            if (residualNorm <= 1e-20f) return residualNorm;
+            KERNEL.dots(features, numBands, 0, numCandidates, residualFeatures, 0, dots, 0);
+            Counter.CANDIDATES_SCORED.add(numCandidates);
+            return residualNorm;
+        }
+
+        //what is left of the residual's energy by its bands
+        public double energy() {
+            double energy = 0.0;
+            for (float p : residualPowers) energy += p;
+            return energy;
+        }
+    }
+}
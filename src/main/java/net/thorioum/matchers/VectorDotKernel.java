@@ -0,0 +1,156 @@
+package net.thorioum.matchers;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scores four candidate rows per pass so every residual load feeds four independent fma chains.
+ * Only loaded when jdk.incubator.vector is present, see {@link DotKernel#select()}.
+ */
+class VectorDotKernel implements DotKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    //as many bytes as SPECIES has floats, widened to floats on load. there is no byte vector below 64 bits, so on
+    //128 bit hardware one load of 8 bytes is widened in PARTS halves
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, SPECIES.vectorBitSize() / 4)));
+    private static final int PARTS = BYTES.length() / SPECIES.length();
+
+    @Override
+    public void dots(float[] matrix, int frameSize, int from, int to, float[] vec, int vecOff, float[] out, int outOff) {
+        int bound = SPECIES.loopBound(frameSize);
+        int step = SPECIES.length();
+
+        int c = from;
+        for (; c + 4 <= to; c += 4) {
+            int r0 = c * frameSize;
+            int r1 = r0 + frameSize;
+            int r2 = r1 + frameSize;
+            int r3 = r2 + frameSize;
+
+            FloatVector acc0 = FloatVector.zero(SPECIES);
+            FloatVector acc1 = FloatVector.zero(SPECIES);
+            FloatVector acc2 = FloatVector.zero(SPECIES);
+            FloatVector acc3 = FloatVector.zero(SPECIES);
+            int i = 0;
+            for (; i < bound; i += step) {
+                FloatVector v = FloatVector.fromArray(SPECIES, vec, vecOff + i);
+                acc0 = FloatVector.fromArray(SPECIES, matrix, r0 + i).fma(v, acc0);
+                acc1 = FloatVector.fromArray(SPECIES, matrix, r1 + i).fma(v, acc1);
+                acc2 = FloatVector.fromArray(SPECIES, matrix, r2 + i).fma(v, acc2);
+                acc3 = FloatVector.fromArray(SPECIES, matrix, r3 + i).fma(v, acc3);
+            }
+            float d0 = acc0.reduceLanes(VectorOperators.ADD);
+            float d1 = acc1.reduceLanes(VectorOperators.ADD);
+            float d2 = acc2.reduceLanes(VectorOperators.ADD);
+            float d3 = acc3.reduceLanes(VectorOperators.ADD);
+            for (; i < frameSize; i++) {
+                float v = vec[vecOff + i];
+                d0 += matrix[r0 + i] * v;
+                d1 += matrix[r1 + i] * v;
+                d2 += matrix[r2 + i] * v;
+                d3 += matrix[r3 + i] * v;
+            }
+
+            int o = outOff + (c - from);
+            out[o] = d0;
+            out[o + 1] = d1;
+            out[o + 2] = d2;
+            out[o + 3] = d3;
+        }
+
+        for (; c < to; c++) {
+            int r = c * frameSize;
+            FloatVector acc = FloatVector.zero(SPECIES);
+            int i = 0;
+            for (; i < bound; i += step) {
+                acc = FloatVector.fromArray(SPECIES, matrix, r + i).fma(FloatVector.fromArray(SPECIES, vec, vecOff + i), acc);
+            }
+            float d = acc.reduceLanes(VectorOperators.ADD);
+            for (; i < frameSize; i++) {
+                d += matrix[r + i] * vec[vecOff + i];
+            }
+            out[outOff + (c - from)] = d;
+        }
+    }
+
+    @Override
+    public void dots(byte[] matrix, int frameSize, int from, int to, float[] vec, int vecOff, float[] out, int outOff) {
+        int bound = BYTES.loopBound(frameSize);
+        int step = BYTES.length();
+        int lanes = SPECIES.length();
+
+        int c = from;
+        for (; c + 4 <= to; c += 4) {
+            int r0 = c * frameSize;
+            int r1 = r0 + frameSize;
+            int r2 = r1 + frameSize;
+            int r3 = r2 + frameSize;
+
+            FloatVector acc0 = FloatVector.zero(SPECIES);
+            FloatVector acc1 = FloatVector.zero(SPECIES);
+            FloatVector acc2 = FloatVector.zero(SPECIES);
+            FloatVector acc3 = FloatVector.zero(SPECIES);
+            int i = 0;
+            for (; i < bound; i += step) {
+                ByteVector b0 = ByteVector.fromArray(BYTES, matrix, r0 + i);
+                ByteVector b1 = ByteVector.fromArray(BYTES, matrix, r1 + i);
+                ByteVector b2 = ByteVector.fromArray(BYTES, matrix, r2 + i);
+                ByteVector b3 = ByteVector.fromArray(BYTES, matrix, r3 + i);
+                for (int part = 0; part < PARTS; part++) {
+                    FloatVector v = FloatVector.fromArray(SPECIES, vec, vecOff + i + part * lanes);
+                    acc0 = widen(b0, part).fma(v, acc0);
+                    acc1 = widen(b1, part).fma(v, acc1);
+                    acc2 = widen(b2, part).fma(v, acc2);
+                    acc3 = widen(b3, part).fma(v, acc3);
+                }
+            }
+            float d0 = acc0.reduceLanes(VectorOperators.ADD);
+            float d1 = acc1.reduceLanes(VectorOperators.ADD);
+            float d2 = acc2.reduceLanes(VectorOperators.ADD);
+            float d3 = acc3.reduceLanes(VectorOperators.ADD);
+            for (; i < frameSize; i++) {
+                float v = vec[vecOff + i];
+                d0 += matrix[r0 + i] * v;
+                d1 += matrix[r1 + i] * v;
+                d2 += matrix[r2 + i] * v;
+                d3 += matrix[r3 + i] * v;
+            }
+
+            int o = outOff + (c - from);
+            out[o] = d0;
+            out[o + 1] = d1;
+            out[o + 2] = d2;
+            out[o + 3] = d3;
+        }
+
+        for (; c < to; c++) {
+            int r = c * frameSize;
+            FloatVector acc = FloatVector.zero(SPECIES);
+            int i = 0;
+            for (; i < bound; i += step) {
+                ByteVector b = ByteVector.fromArray(BYTES, matrix, r + i);
+                for (int part = 0; part < PARTS; part++) {
+                    acc = widen(b, part).fma(FloatVector.fromArray(SPECIES, vec, vecOff + i + part * lanes), acc);
+                }
+            }
+            float d = acc.reduceLanes(VectorOperators.ADD);
+            for (; i < frameSize; i++) {
+                d += matrix[r + i] * vec[vecOff + i];
+            }
+            out[outOff + (c - from)] = d;
+        }
+    }
+
+    //floats part * SPECIES.length() onwards of a byte vector
+    private static FloatVector widen(ByteVector bytes, int part) {
+        return (FloatVector) bytes.convertShape(VectorOperators.B2F, SPECIES, part);
+    }
+
+    @Override
+    public String name() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+}
@@ -1,28 +1,95 @@
 package net.thorioum.result;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class CompleteAudioResult {
-    private final List<SingleFrameResult> compositions = new ArrayList<>();
+//frames are stored by frame number in lazily created chunks, so adding, looking up and counting are all O(1) without locks
+public class CompleteAudioResult implements Iterable<SingleFrameResult> {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    //4096 frames per chunk * 65536 chunks, about 62 days of audio at 20ms frames
+    private static final int MAX_CHUNKS = 1 << 16;
 
-    public int expectedFrames = -1;
+    private volatile AtomicReferenceArray<AtomicReferenceArray<SingleFrameResult>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public volatile int expectedFrames = -1;
     public void addFrame(SingleFrameResult match) {
-        synchronized (compositions) {
-            compositions.add(match);
-            compositions.sort(Comparator.comparingInt(o -> o.frame));
-        }
+        int frame = match.frame;
+        if (frame < 0 || (frame >>> CHUNK_BITS) >= MAX_CHUNKS) throw new IndexOutOfBoundsException("Frame " + frame);
+
+        AtomicReferenceArray<SingleFrameResult> chunk = chunk(frame >>> CHUNK_BITS, true);
+        if (chunk.getAndSet(frame & (CHUNK_SIZE - 1), match) == null) completed.incrementAndGet();
+        size.accumulateAndGet(frame + 1, Math::max);
     }
     public boolean complete() {
-        return compositions.size() >= expectedFrames;
+        return completed.get() >= expectedFrames;
     }
-    public List<SingleFrameResult> composition() {
-        return new ArrayList<>(compositions);
+
+    //frames that have been added so far
+    public int completedFrames() {
+        return completed.get();
+    }
+
+    //one past the highest frame added, frames below it that are not done yet are null
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return completed.get() == 0;
+    }
+
+    public SingleFrameResult get(int frame) {
+        if (frame < 0 || (frame >>> CHUNK_BITS) >= MAX_CHUNKS) return null;
+        AtomicReferenceArray<SingleFrameResult> chunk = chunk(frame >>> CHUNK_BITS, false);
+        return chunk == null ? null : chunk.get(frame & (CHUNK_SIZE - 1));
+    }
+
+    //frames in frame order, skipping frames that are not done yet. reads the store directly, nothing is copied
+    @Override
+    public Iterator<SingleFrameResult> iterator() {
+        int end = size();
+        return new Iterator<>() {
+            int frame = advance(0);
+
+            private int advance(int from) {
+                while (from < end && get(from) == null) from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return frame < end;
+            }
+
+            @Override
+            public SingleFrameResult next() {
+                if (frame >= end) throw new NoSuchElementException();
+                SingleFrameResult result = get(frame);
+                frame = advance(frame + 1);
+                return result;
+            }
+        };
+    }
+
+    private AtomicReferenceArray<SingleFrameResult> chunk(int index, boolean create) {
+        AtomicReferenceArray<AtomicReferenceArray<SingleFrameResult>> chunks = this.chunks;
+        AtomicReferenceArray<SingleFrameResult> chunk = chunks.get(index);
+        if (chunk != null || !create) return chunk;
+
+        AtomicReferenceArray<SingleFrameResult> created = new AtomicReferenceArray<>(CHUNK_SIZE);
+        return chunks.compareAndSet(index, null, created) ? created : chunks.get(index);
     }
 
+    //not safe against concurrent addFrame, only called between runs
     public void clear() {
         expectedFrames = -1;
-        compositions.clear();
+        chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+        completed.set(0);
+        size.set(0);
     }
 }
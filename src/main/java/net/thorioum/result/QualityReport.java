@@ -0,0 +1,70 @@
+package net.thorioum.result;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Objective comparison of a rendered result against its source, one value per frame:
+ * snrDb - signal to noise ratio of the rendered frame against the source frame,
+ * spectralDistanceDb - rms difference of the two log power spectra,
+ * residualRatio - energy the greedy match left unexplained, relative to the highpassed frame it was matching.
+ * Frames where a metric is undefined (silent source) hold NaN and are left out of the averages.
+ */
+public record QualityReport(double[] snrDb, double[] spectralDistanceDb, double[] residualRatio) {
+
+    public int frames() {
+        return snrDb.length;
+    }
+
+    public double meanSnrDb() {
+        return mean(snrDb);
+    }
+
+    public double medianSnrDb() {
+        return median(snrDb);
+    }
+
+    public double meanSpectralDistanceDb() {
+        return mean(spectralDistanceDb);
+    }
+
+    public double meanResidualRatio() {
+        return mean(residualRatio);
+    }
+
+    public String summary() {
+        return String.format(Locale.ROOT, "%d frames, SNR %.2f dB mean / %.2f dB median, spectral distance %.2f dB, residual energy %.1f%%",
+                frames(), meanSnrDb(), medianSnrDb(), meanSpectralDistanceDb(), meanResidualRatio() * 100.0);
+    }
+
+    public void writeCsv(Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            out.write("frame,snr_db,spectral_distance_db,residual_ratio\n");
+            for (int i = 0; i < frames(); i++) {
+                out.write(i + "," + snrDb[i] + "," + spectralDistanceDb[i] + "," + residualRatio[i] + "\n");
+            }
+        }
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0.0;
+        int n = 0;
+        for (double v : values) {
+            if (Double.isNaN(v)) continue;
+            sum += v;
+            n++;
+        }
+        return n == 0 ? Double.NaN : sum / n;
+    }
+
+    private static double median(double[] values) {
+        double[] defined = Arrays.stream(values).filter(v -> !Double.isNaN(v)).sorted().toArray();
+        if (defined.length == 0) return Double.NaN;
+        int mid = defined.length / 2;
+        return defined.length % 2 == 1 ? defined[mid] : 0.5 * (defined[mid - 1] + defined[mid]);
+    }
+}
@@ -1,11 +1,50 @@
 package net.thorioum.result;
 
-public record SingleSoundResult(String name, double pitch, double volume, double similarity, double[] audioData) {
+import java.util.Locale;
+
+//candidate is the id of the matched row in the SoundEffectDatabase the result was produced from,
+//offset is how many samples after the start of its frame the sound starts
+public record SingleSoundResult(String name, double pitch, double volume, double similarity, int candidate, int offset) {
+
+    private static final long SCALE = 100_000_000L;
+
+    public SingleSoundResult(String name, double pitch, double volume, double similarity, int candidate) {
+        this(name, pitch, volume, similarity, candidate, 0);
+    }
 
     public String asCommand() {
-        String p = String.format("%.8f", pitch);
-        String v = String.format("%.8f", volume);
-        return "/playsound " + name + " record @a[tag=!nomusic,tag=!nm] ~ -9999 ~ 1 " + p + " " + v;
+        return appendCommand(new StringBuilder(96).append('/')).toString();
+    }
+
+    //the command without its leading slash, as it is written into a function file
+    public StringBuilder appendCommand(StringBuilder sb) {
+        sb.append("playsound ").append(name).append(" record @a[tag=!nomusic,tag=!nm] ~ -9999 ~ 1 ");
+        appendFixed(sb, pitch);
+        sb.append(' ');
+        appendFixed(sb, volume);
+        return sb;
+    }
+
+    //same text as String.format(Locale.ROOT, "%.8f", value) without going through Formatter. Formatter rounds the
+    //shortest decimal form of value half up, which a product by 1e8 cannot tell apart from the exact value near a tie,
+    //so those go through Formatter
+    static void appendFixed(StringBuilder sb, double value) {
+        double scaledValue = Math.abs(value) * SCALE;
+        double half = scaledValue - Math.floor(scaledValue) - 0.5;
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e9
+                || Math.abs(half) <= 4 * Math.ulp(scaledValue)) {
+            sb.append(String.format(Locale.ROOT, "%.8f", value));
+            return;
+        }
+
+        long scaled = Math.round(scaledValue);
+        //the sign stays even when nothing but zeros is left, -0.0 included
+        if (Double.doubleToRawLongBits(value) < 0) sb.append('-');
+        sb.append(scaled / SCALE).append('.');
+
+        long fraction = scaled % SCALE;
+        for (long digit = SCALE / 10; digit > fraction && digit > 1; digit /= 10) sb.append('0');
+        sb.append(fraction);
     }
 
 }
@@ -0,0 +1,191 @@
+package net.thorioum.sound;
+
+import net.thorioum.Stats;
+import net.thorioum.Stats.Stage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store for minecraft assets, shared by every version. An asset is kept once under
+ * root/<first two hex digits>/<sha1> (the launcher's own layout) and per version data only records its hash.
+ *
+ * Downloads run on a fixed number of threads over one HTTP/2 client. Each one is checked against the size and
+ * SHA-1 from the asset index before it is moved into place, so anything in the store is known good. Failed
+ * transfers, 5xx and 429 responses and corrupt bodies are retried with exponential backoff, other 4xx are not.
+ * Two requests for the same hash share one download.
+ */
+public class AssetStore {
+    public static final String DEFAULT_URL = "https://resources.download.minecraft.net/";
+    private static final Pattern SHA1 = Pattern.compile("[0-9a-f]{40}");
+    private static final int ATTEMPTS = 4;
+    private static final long BACKOFF_MILLIS = 500;
+
+    private static AssetStore shared;
+
+    //sounds/objects, from -Deidolon.assets.url (the official server by default) with -Deidolon.downloads threads
+    public static synchronized AssetStore shared() {
+        if (shared == null) {
+            shared = new AssetStore(Paths.get("sounds", "objects"),
+                    URI.create(System.getProperty("eidolon.assets.url", DEFAULT_URL)),
+                    Util.httpClient(),
+                    Integer.getInteger("eidolon.downloads", 8));
+        }
+        return shared;
+    }
+
+    private final Path root;
+    private final URI baseUrl;
+    private final HttpClient client;
+    private final ExecutorService pool;
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    public AssetStore(Path root, URI baseUrl, HttpClient client, int parallelism) {
+        this.root = root;
+        this.baseUrl = baseUrl.toString().endsWith("/") ? baseUrl : URI.create(baseUrl + "/");
+        this.client = client;
+        AtomicInteger threads = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread thread = new Thread(r, "eidolon-download-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Path path(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public boolean contains(String hash) {
+        return SHA1.matcher(hash).matches() && Files.isRegularFile(path(hash));
+    }
+
+    /**
+     * The stored file for hash, downloading it first when it is not in the store yet. size is the byte count
+     * from the asset index, or -1 to only check the hash. Completes exceptionally once every attempt failed.
+     */
+    public CompletableFuture<Path> fetch(String hash, long size) {
+        if (!SHA1.matcher(hash).matches()) return CompletableFuture.failedFuture(new IOException("Not a SHA-1 hash: " + hash));
+        Path path = path(hash);
+        if (Files.isRegularFile(path)) return CompletableFuture.completedFuture(path);
+
+        CompletableFuture<Path> future = inFlight.computeIfAbsent(hash, h -> CompletableFuture.supplyAsync(() -> download(h, size), pool));
+        future.whenComplete((p, t) -> inFlight.remove(hash, future));
+        return future;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private Path download(String hash, long size) {
+        IOException last = null;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) {
+                    long backoff = BACKOFF_MILLIS << (attempt - 1);
+                    Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                }
+                return tryDownload(hash, size);
+            } catch (StatusException e) {
+                last = e;
+                if (!e.retryable()) break;
+            } catch (IOException e) {
+                last = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }
+        throw new CompletionException(new IOException("Failed to download " + hash + ": " + last.getMessage(), last));
+    }
+
+    private Path tryDownload(String hash, long size) throws IOException, InterruptedException {
+        long start = Stats.now();
+        Path path = path(hash);
+        Files.createDirectories(path.getParent());
+
+        HttpRequest request = HttpRequest.newBuilder(baseUrl.resolve(hash.substring(0, 2) + "/" + hash))
+                .timeout(Duration.ofSeconds(60))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new StatusException(response.statusCode(), hash);
+        }
+
+        //written next to its final place and only moved in once verified, a reader never sees a partial object
+        Path tmp = Files.createTempFile(path.getParent(), hash, ".part");
+        try {
+            MessageDigest sha1 = sha1();
+            long length = 0;
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = response.body(); OutputStream out = Files.newOutputStream(tmp)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    sha1.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    length += n;
+                }
+            }
+            if (size >= 0 && length != size) throw new IOException("Expected " + size + " bytes for " + hash + " but got " + length);
+            String actual = HexFormat.of().formatHex(sha1.digest());
+            if (!actual.equals(hash)) throw new IOException("SHA-1 mismatch for " + hash + ", got " + actual);
+
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Stage.DOWNLOAD.record(start, length);
+            return path;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class StatusException extends IOException {
+        private final int status;
+
+        StatusException(int status, String hash) {
+            super("HTTP " + status + " for " + hash);
+            this.status = status;
+        }
+
+        boolean retryable() {
+            return status >= 500 || status == 429 || status == 408;
+        }
+    }
+}
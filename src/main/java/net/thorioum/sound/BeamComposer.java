@@ -0,0 +1,130 @@
+package net.thorioum.sound;
+
+import net.thorioum.matchers.Matcher;
+import net.thorioum.result.SingleSoundResult;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Beam search over a frame's composition. Every step each of the beamWidth best partial compositions is extended by
+ * the beamBranch best candidates of one top-k scan of its residual, and the beamWidth children with the least
+ * residual energy left (a composition that already stopped competes as it is) become the next beam. Children are
+ * scored without copying their residual, only the survivors get one.
+ *
+ * Stops like the greedy loop: at 5% of the highpassed energy, at totalSounds picks, or when no candidate reaches a
+ * similarity of 0.1. Once beamBudget ms have gone into the frame the beam narrows to its best composition and
+ * finishes it greedily, so a frame never costs much more than the budget plus a greedy tail.
+ */
+final class BeamComposer {
+    private final Matcher matcher;
+    private final SoundEffectDatabase db;
+    private final int width;
+    private final int branching;
+    private final long budgetNanos;
+
+    BeamComposer(Matcher matcher, SoundEffectDatabase db, MatchSettings settings) {
+        this.matcher = matcher;
+        this.db = db;
+        this.width = Math.max(1, settings.beamWidth);
+        this.branching = Math.max(1, settings.beamBranch > 0 ? settings.beamBranch : settings.beamWidth);
+        this.budgetNanos = settings.beamBudget > 0 ? settings.beamBudget * 1_000_000L : Long.MAX_VALUE;
+    }
+
+    //picks of the best composition found for a highpassed frame, residual is left as what that composition does not cover
+    List<SingleSoundResult> compose(ConverterContext ctx, double[] residual, int totalSounds) {
+        long start = System.nanoTime();
+        double original = Util.calculateEnergy(residual);
+        List<State> beam = new ArrayList<>();
+        beam.add(new State(residual.clone(), original, null, 0, 0L, false));
+
+        for (int step = 0; step < totalSounds; step++) {
+            boolean overBudget = System.nanoTime() - start > budgetNanos;
+            if (overBudget && beam.size() > 1) beam = new ArrayList<>(beam.subList(0, 1));
+            int k = overBudget ? 1 : branching;
+
+            List<Child> children = new ArrayList<>();
+            boolean extended = false;
+            for (State state : beam) {
+                if (state.done || state.energy < original * 0.05) {
+                    children.add(new Child(state, null, state.energy, state.key));
+                    continue;
+                }
+                List<SingleSoundResult> matches = matcher.findTopMatches(ctx, SoundMatcher.toFloat(state.residual), state.energy, 0.1f, k);
+                int added = 0;
+                for (SingleSoundResult match : matches) {
+                    if (match.similarity() < 0.1) continue;
+                    children.add(new Child(state, match, energyAfter(state.residual, match), state.key + key(match)));
+                    added++;
+                }
+                if (added == 0) children.add(new Child(state, null, state.energy, state.key));
+                else extended = true;
+            }
+
+            beam = select(children);
+            if (!extended) break;
+        }
+
+        State best = beam.get(0);
+        System.arraycopy(best.residual, 0, residual, 0, residual.length);
+        SingleSoundResult[] picks = new SingleSoundResult[best.count];
+        int i = best.count;
+        for (Pick pick = best.picks; pick != null; pick = pick.previous) picks[--i] = pick.match;
+        return List.of(picks);
+    }
+
+    //the width best children, a set of picks reached in two orders only once
+    private List<State> select(List<Child> children) {
+        children.sort(Comparator.comparingDouble(Child::energy));
+        List<State> beam = new ArrayList<>(width);
+        Set<Long> seen = new HashSet<>();
+        for (Child child : children) {
+            if (beam.size() == width) break;
+            if (!seen.add(child.key)) continue;
+            beam.add(child.materialize(db));
+        }
+        return beam;
+    }
+
+    //residual energy once match is subtracted, without changing residual
+    private double energyAfter(double[] residual, SingleSoundResult match) {
+        float[] samples = db.samples();
+        int delay = match.offset();
+        int off = match.candidate() * residual.length - delay;
+        double volume = match.volume();
+        double energy = 0.0;
+        for (int j = 0; j < delay; j++) energy += residual[j] * residual[j];
+        for (int j = delay; j < residual.length; j++) {
+            double r = residual[j] - samples[off + j] * volume;
+            energy += r * r;
+        }
+        return energy;
+    }
+
+    //order independent identity of a composition's picks, summed over them
+    private static long key(SingleSoundResult match) {
+        long h = match.candidate() * 0x9e3779b97f4a7c15L + match.offset();
+        h ^= h >>> 31;
+        h *= 0xbf58476d1ce4e5b9L;
+        return h ^ (h >>> 29);
+    }
+
+    private record Pick(SingleSoundResult match, Pick previous) {
+    }
+
+    private record State(double[] residual, double energy, Pick picks, int count, long key, boolean done) {
+    }
+
+    //a state extended by match, or carried over as it is (and then done) when match is null
+    private record Child(State parent, SingleSoundResult match, double energy, long key) {
+        State materialize(SoundEffectDatabase db) {
+            if (match == null) return new State(parent.residual, parent.energy, parent.picks, parent.count, parent.key, true);
+            double[] residual = parent.residual.clone();
+            SoundMatcher.subtract(residual, db, match);
+            return new State(residual, energy, new Pick(match, parent.picks), parent.count + 1, key, false);
+        }
+    }
+}
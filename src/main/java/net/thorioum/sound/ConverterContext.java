@@ -34,6 +34,16 @@ public record ConverterContext(
         return (int) (SAMPLE_RATE * (frameLength / 1000.0f));
     }
 
+    //game ticks a datapack waits between two frames. frames that are not a whole number of 50 ms ticks need the tick rate set to 100
+    public int delayTicks() {
+        return frameLength % 50 != 0 ? frameLength / 10 : frameLength / 50;
+    }
+
+    //samples in one of those ticks, the finest delay a datapack can give a sound within its frame
+    public int tickSamples() {
+        return frameSize() / Math.max(1, delayTicks());
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
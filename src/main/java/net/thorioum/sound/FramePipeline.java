@@ -0,0 +1,84 @@
+package net.thorioum.sound;
+
+import net.thorioum.result.SingleFrameResult;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a fixed window of frames between the decoder and the result. The decoder blocks in acquire() once
+ * the window is full, frames are decoded into a ring of reused buffers, and finished frames are handed on
+ * in frame order, so memory stays the same however long the input is.
+ */
+final class FramePipeline {
+    private static final long POLL_MILLIS = 100;
+
+    private final int window;
+    private final Semaphore permits;
+    private final BlockingQueue<double[]> buffers;
+    private final Consumer<SingleFrameResult> sink;
+    private final BooleanSupplier cancelled;
+
+    //frames that finished ahead of an earlier one, slot = frame % window
+    private final SingleFrameResult[] pending;
+    private int nextFrame = 0;
+
+    FramePipeline(int window, int frameSize, Consumer<SingleFrameResult> sink, BooleanSupplier cancelled) {
+        this.window = window;
+        this.permits = new Semaphore(window);
+        this.buffers = new ArrayBlockingQueue<>(window);
+        this.pending = new SingleFrameResult[window];
+        this.sink = sink;
+        this.cancelled = cancelled;
+        for (int i = 0; i < window; i++) buffers.add(new double[frameSize]);
+    }
+
+    //a free frame buffer, blocking while the window is full. null once cancelled
+    double[] acquire() {
+        try {
+            while (!permits.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancelled.getAsBoolean()) return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        //a permit is only given back after its buffer, so one is always free here
+        return buffers.poll();
+    }
+
+    void release(double[] buffer) {
+        buffers.add(buffer);
+    }
+
+    synchronized void complete(SingleFrameResult frame) {
+        pending[frame.frame % window] = frame;
+        int emitted = 0;
+        SingleFrameResult next;
+        while ((next = pending[nextFrame % window]) != null && next.frame == nextFrame) {
+            pending[nextFrame % window] = null;
+            sink.accept(next);
+            nextFrame++;
+            emitted++;
+        }
+        permits.release(emitted);
+    }
+
+    //waits until every acquired frame has been completed, false if cancelled first
+    boolean awaitDrained() {
+        try {
+            while (!permits.tryAcquire(window, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancelled.getAsBoolean()) return false;
+            }
+            permits.release(window);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
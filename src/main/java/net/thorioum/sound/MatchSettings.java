@@ -0,0 +1,47 @@
+package net.thorioum.sound;
+
+public class MatchSettings {
+
+    //reuse candidate/candidate inner products to update scores after each pick instead of rescanning the matrix
+    public boolean incremental = true;
+    //how many gram matrix columns (one per picked candidate) are kept around between frames
+    public int gramCacheColumns = 256;
+    //frames matched together per task, above 1 every greedy step scores all of them in one candidates x residuals pass
+    public int batchSize = 1;
+    //run the whole greedy loop of a frame on the gpu and only read back the picks (single frame tasks only)
+    public boolean gpuResident = true;
+    //command queues (each with its own scratch buffers) that matching threads can use on the gpu at the same time
+    public int gpuQueues = 4;
+    //frames decoded but not yet handed to the result, decoding waits when this many are outstanding
+    public int framesInFlight = 512;
+    //cpu coarse-to-fine search: rank every candidate on a copy decimated by this factor (1 = off), then rescore the best coarseTopK exactly
+    public int coarseFactor = 1;
+    public int coarseTopK = 64;
+    //cpu inverted file index: cluster the candidates into annLists lists (0 = sqrt of the candidate count) and only score the annProbes closest ones
+    public boolean ann = false;
+    public int annLists = 0;
+    public int annProbes = 8;
+    //bits per candidate sample the search ranks on: 32 (full precision), 16 (half floats, gpu only) or 8 (per row scaled bytes)
+    //below 32 the best rerankTopK of the ranking are rescored in full precision, on the gpu the compressed rows are what gets uploaded
+    public int candidateBits = 32;
+    public int rerankTopK = 16;
+    //score candidates on spectralBands mel band magnitudes precomputed per candidate instead of on samples, picks are still subtracted from the samples
+    public boolean spectral = false;
+    public int spectralBands = 128;
+    //let a sound start up to maxOffset ms (0 = the whole frame) into its frame, on a grid of offsetStep samples. each step cross-correlates
+    //the offsetShortlist candidates that fit best by band magnitudes, and offsetCacheSize candidate spectra are kept around between frames.
+    //datapacks can only delay a sound by whole ticks, so the grid is offsetStep rounded up to a multiple of one
+    public boolean offsets = false;
+    public int maxOffset = 0;
+    public int offsetStep = 1;
+    public int offsetShortlist = 32;
+    public int offsetCacheSize = 1024;
+    //beam search instead of greedy picks when beamWidth is above 1: keep the beamWidth best partial compositions of a frame, each extended by
+    //its beamBranch best candidates (0 = beamWidth). after beamBudget ms (0 = no limit) a frame is finished greedily from its best composition
+    public int beamWidth = 1;
+    public int beamBranch = 0;
+    public int beamBudget = 100;
+    //run an exhaustive search next to every approximate one and report how often they pick the same candidate
+    public boolean measureRecall = false;
+
+}
@@ -0,0 +1,173 @@
+package net.thorioum.sound;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+import net.thorioum.result.CompleteAudioResult;
+import net.thorioum.result.QualityReport;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
+
+/**
+ * Mixes a CompleteAudioResult the same way SoundPlaybackDevice plays it, but into a file as fast as it can,
+ * and measures it against the source audio so settings and matchers can be compared without listening.
+ */
+public class OfflineRenderer {
+    private static final int WAV_HEADER_BYTES = 44;
+
+    //16 bit signed little endian mono pcm at SAMPLE_RATE, one frameSize block per frame
+    public static void writePcm(ConverterContext ctx, CompleteAudioResult result, OutputStream out) throws IOException {
+        SoundEffectDatabase db = SoundMatcher.getDatabase(ctx);
+        int frameCount = frameCount(result);
+        double[] mix = new double[ctx.frameSize()];
+        byte[] pcm = new byte[ctx.frameSize() * 2];
+        byte[] silence = new byte[pcm.length];
+
+        for (int frameIndex = 0; frameIndex < frameCount; frameIndex++) {
+            if (!SoundPlaybackDevice.mixFrame(db, result.get(frameIndex), frameIndex, mix)) {
+                out.write(silence);
+                continue;
+            }
+            SoundPlaybackDevice.toPcm(mix, pcm);
+            out.write(pcm);
+        }
+    }
+
+    public static void writeWav(ConverterContext ctx, CompleteAudioResult result, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16)) {
+            out.write(new byte[WAV_HEADER_BYTES]);
+            writePcm(ctx, result, out);
+        }
+
+        //the header goes in last, once the data length is known
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long dataBytes = raf.length() - WAV_HEADER_BYTES;
+            if (dataBytes + 36 > 0xFFFFFFFFL) throw new IOException("Rendered audio is too long for a WAV file, use writePcm");
+
+            byte[] header = new byte[WAV_HEADER_BYTES];
+            putAscii(header, 0, "RIFF");
+            putInt(header, 4, (int) (dataBytes + 36));
+            putAscii(header, 8, "WAVE");
+            putAscii(header, 12, "fmt ");
+            putInt(header, 16, 16);
+            putShort(header, 20, 1);
+            putShort(header, 22, 1);
+            putInt(header, 24, SAMPLE_RATE);
+            putInt(header, 28, SAMPLE_RATE * 2);
+            putShort(header, 32, 2);
+            putShort(header, 34, 16);
+            putAscii(header, 36, "data");
+            putInt(header, 40, (int) dataBytes);
+            raf.seek(0);
+            raf.write(header);
+        }
+    }
+
+    /**
+     * Decodes source with the same framing processAudioFile used and compares every frame of result against it.
+     * SNR and spectral distance are taken on what would actually be heard (after the anti-clip gain), the residual
+     * ratio on the raw mix against the highpassed frame, which is what the greedy loop was minimising.
+     */
+    public static QualityReport measure(ConverterContext ctx, CompleteAudioResult result, File source) throws Exception {
+        SoundEffectDatabase db = SoundMatcher.getDatabase(ctx);
+        int frameSize = ctx.frameSize();
+        int frameCount = frameCount(result);
+
+        double[] snr = new double[frameCount];
+        double[] spectral = new double[frameCount];
+        double[] residual = new double[frameCount];
+        Arrays.fill(snr, Double.NaN);
+        Arrays.fill(spectral, Double.NaN);
+        Arrays.fill(residual, Double.NaN);
+
+        AudioDispatcher dispatcher = AudioDispatcherFactory.fromPipe(source.getAbsolutePath(), SAMPLE_RATE, frameSize, 0);
+        dispatcher.addAudioProcessor(new AudioProcessor() {
+            final double[] target = new double[frameSize];
+            final double[] highpassed = new double[frameSize];
+            final double[] mix = new double[frameSize];
+            final double[] heard = new double[frameSize];
+            final double[] error = new double[frameSize];
+            final byte[] pcm = new byte[frameSize * 2];
+            int frame = 0;
+
+            @Override
+            public boolean process(AudioEvent audioEvent) {
+                int f = frame++;
+                if (f >= frameCount) return true;
+
+                float[] buffer = audioEvent.getFloatBuffer();
+                Arrays.fill(target, 0.0);
+                for (int i = 0; i < Math.min(buffer.length, frameSize); i++) target[i] = buffer[i];
+
+                double gain = 0.0;
+                if (SoundPlaybackDevice.mixFrame(db, result.get(f), f, mix)) {
+                    gain = SoundPlaybackDevice.toPcm(mix, pcm);
+                } else {
+                    Arrays.fill(mix, 0.0);
+                }
+                for (int i = 0; i < frameSize; i++) heard[i] = Math.max(-1.0, Math.min(1.0, mix[i] * gain));
+
+                double signal = Util.calculateEnergy(target);
+                if (signal > 1e-12) {
+                    for (int i = 0; i < frameSize; i++) error[i] = target[i] - heard[i];
+                    snr[f] = 10.0 * Math.log10(signal / (Util.calculateEnergy(error) + 1e-20));
+                    spectral[f] = spectralDistance(target, heard);
+                }
+
+                System.arraycopy(target, 0, highpassed, 0, frameSize);
+                Util.highPassInPlace(highpassed, ctx.highpass_cutoff());
+                double hpEnergy = Util.calculateEnergy(highpassed);
+                if (hpEnergy > 1e-12) {
+                    for (int i = 0; i < frameSize; i++) highpassed[i] -= mix[i];
+                    residual[f] = Util.calculateEnergy(highpassed) / hpEnergy;
+                }
+                return true;
+            }
+
+            @Override
+            public void processingFinished() {}
+        });
+        dispatcher.run();
+
+        return new QualityReport(snr, spectral, residual);
+    }
+
+    //rms difference of the two log power spectra in dB, with a floor so silent bins do not dominate
+    private static double spectralDistance(double[] a, double[] b) {
+        double[] pa = Util.powerSpectrum(a);
+        double[] pb = Util.powerSpectrum(b);
+        double sum = 0.0;
+        for (int k = 0; k < pa.length; k++) {
+            double d = 10.0 * Math.log10((pa[k] + 1e-10) / (pb[k] + 1e-10));
+            sum += d * d;
+        }
+        return Math.sqrt(sum / pa.length);
+    }
+
+    private static int frameCount(CompleteAudioResult result) {
+        return Math.max(result.size(), result.expectedFrames);
+    }
+
+    private static void putAscii(byte[] b, int off, String s) {
+        for (int i = 0; i < s.length(); i++) b[off + i] = (byte) s.charAt(i);
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        putShort(b, off, v);
+        putShort(b, off + 2, v >>> 16);
+    }
+}
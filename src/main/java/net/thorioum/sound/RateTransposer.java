@@ -11,7 +11,16 @@ public class RateTransposer {
         this.r = new Resampler(true, 0.1, 4.0);
     }
 
-    public void process(float[] src, float[] out) {
-        this.r.process(this.factor, src, 0, src.length, false, out, 0, out.length);
+    //one streaming pass over src[0, srcLength) until out is full or the input runs dry, returns samples written
+    public int process(float[] src, int srcLength, float[] out) {
+        int consumed = 0;
+        int produced = 0;
+        while (produced < out.length) {
+            Resampler.Result result = this.r.process(this.factor, src, consumed, srcLength - consumed, true, out, produced, out.length - produced);
+            if (result.inputSamplesConsumed == 0 && result.outputSamplesGenerated == 0) break;
+            consumed += result.inputSamplesConsumed;
+            produced += result.outputSamplesGenerated;
+        }
+        return produced;
     }
 }
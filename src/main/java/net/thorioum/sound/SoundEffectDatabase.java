@@ -4,57 +4,91 @@ import be.tarsos.dsp.AudioDispatcher;
 import be.tarsos.dsp.AudioEvent;
 import be.tarsos.dsp.AudioProcessor;
 import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
-import net.thorioum.Pair;
+import net.thorioum.Stats;
+import net.thorioum.Stats.Counter;
+import net.thorioum.Stats.Stage;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 import static net.thorioum.Eidolon.*;
 
 public class SoundEffectDatabase {
     public static final int SAMPLE_RATE = 48000;
-
-    public final Map<String, Map<Double, double[]>> pitchShiftedEffects = new ConcurrentHashMap<>(); // raw
-    public final Map<String, Map<Double, Double>> effectNorms = new ConcurrentHashMap<>();
+    private static final int DECODE_BUFFER = 2048;
+    //extra decoded samples so the resampling filter has lookahead at the end of the longest pitch
+    private static final int RESAMPLER_MARGIN = 256;
+
+    //every candidate (one sound at one pitch) is a row of frameSize samples in one packed array, referenced by its int id.
+    //after a build rows are sorted loudest first, so matchers can use the store as is and stop scanning early
+    private final int frameSize;
+    private float[] samples = new float[0];
+    private float[] norms = new float[0];
+    private double[] pitches = new double[0];
+    private int[] nameIds = new int[0];
+    private int size = 0;
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+
+    public SoundEffectDatabase(int frameSize) {
+        this.frameSize = frameSize;
+    }
 
     public int metaExpectedSounds = -1;
-    public int metaProcessedSounds() {
-        return effectNorms.size();
+    public synchronized int metaProcessedSounds() {
+        return names.size();
     }
 
     public void processSounds(ConverterContext ctx) {
         List<Future<?>> futures = new ArrayList<>();
         metaExpectedSounds = ctx.soundFilesMap().size();
 
+        Path indexFile = SoundIndexFile.pathFor(ctx);
+        if (size == 0 && SoundIndexFile.load(indexFile, ctx, this)) {
+            info("Loaded sound index from " + indexFile + " (" + soundCount() + " sounds, " + size + " candidates)");
+            return;
+        }
+        boolean built = false;
+
         for (Map.Entry<String, File> entry : ctx.soundFilesMap().entrySet()) {
-            if(effectNorms.containsKey(entry.getKey())) continue;
+            if(hasSound(entry.getKey())) continue;
+            built = true;
             futures.add(executor.submit(() -> {
 
                 String name = entry.getKey();
 
-                if(!pitchShiftedEffects.containsKey(name)) {
-                    File file = entry.getValue();
-                    loadSoundAndPitches(ctx,name, file);
-                }
+                File file = entry.getValue();
+                loadSoundAndPitches(ctx,name, file);
             }));
         }
+        boolean failed = false;
         for (Future<?> future : futures) {
             try {
                 future.get();
             } catch (Exception e) {
+                failed = true;
                 if(!(e instanceof InterruptedException)) {
                     error(e.toString());
                     e.printStackTrace();
                 }
             }
         }
-        info("Processed all sound files! (" + this.pitchShiftedEffects.size() + " sounds)");
+        if (built) sortByNorm();
+        info("Processed all sound files! (" + soundCount() + " sounds, " + size + " candidates)");
         info("Ignored sounds are either blacklisted, or are multi-channel/stereo");
+
+        //only keep complete builds, a cancelled run would otherwise be cached with sounds missing
+        if (built && !failed && processingStatus != Status.IDLE) {
+            SoundIndexFile.write(indexFile, ctx, this);
+            info("Saved sound index to " + indexFile);
+        }
     }
 
 
@@ -66,105 +100,209 @@ public class SoundEffectDatabase {
                 }
             } catch (Exception ignored) {}
 
+            int frameSize = ctx.frameSize();
+            long decodeStart = Stats.now();
+            //the lowest resampling factor is 0.5, so no pitch reads further than twice a frame into the sound
+            float[] source = new float[2 * frameSize + RESAMPLER_MARGIN];
 
             AudioDispatcher dispatcher = AudioDispatcherFactory.fromPipe(
                     audioFile.getAbsolutePath(),
                     SAMPLE_RATE,
-                    2048,
-                    0
+                    DECODE_BUFFER,
+                    0,
+                    0.0,
+                    (double) source.length / SAMPLE_RATE
             );
 
             if(dispatcher.getFormat().getChannels() != 1) return;
 
-            int pitchIntensity = ctx.pitchesPerSound();
-
-            final List<Pair<Double,List<Double>>> pitchMap = new ArrayList<>();
-
-            for (int i = 0; i < (pitchIntensity+1); i++) {
-                double pitch = Util.pitchFunc(i,pitchIntensity);
-                pitchMap.add(new Pair<>(pitch, new ArrayList<>()));
-            }
-
+            int[] decoded = {0};
             dispatcher.addAudioProcessor(new AudioProcessor() {
-
                 @Override
                 public boolean process(AudioEvent audioEvent) {
+                    float[] buffer = audioEvent.getFloatBuffer();
+                    int n = Math.min(buffer.length, source.length - decoded[0]);
+                    System.arraycopy(buffer, 0, source, decoded[0], n);
+                    decoded[0] += n;
+                    if (decoded[0] >= source.length) dispatcher.stop();
+                    return true;
+                }
 
-                    float[] buffer = audioEvent.getFloatBuffer().clone();
-
-                    int samplesInBuffer = buffer.length;
+                @Override
+                public void processingFinished() {}
+            });
+            dispatcher.run();
+            Stage.DECODE.record(decodeStart);
+            Counter.SOUNDS_INDEXED.increment();
 
-                    boolean full = true;
-                    for (int i = 0; i < (pitchIntensity+1); i++) {
-                        List<Double> audioBuffer = pitchMap.get(i).right;
-                        if (audioBuffer.size() < ctx.frameSize()) {
-                            full = false;
-                            break;
-                        }
-                    }
-                    if(full) return false;
+            int pitchIntensity = ctx.pitchesPerSound();
+            float ingameSoundPitch = ctx.soundPitchesMap().get(name);
+            float ingameVolume = ctx.soundVolumesMap().get(name);
+            float[] shifted = new float[frameSize];
+            double[] audio = new double[frameSize];
 
+            for (int i = 0; i < (pitchIntensity+1); i++) {
+                double factor = Util.pitchFunc(i, pitchIntensity);
+
+                double pitch = 1.0 / factor;
+                double adjustedPitch = (pitch * (1.0/(ingameSoundPitch+1e-10)));
+                if(adjustedPitch > 2 || adjustedPitch < 0.5) continue;
+                //a pitch the sound is too short to fill a whole frame at is left out, factor is output over input rate
+                if(decoded[0] * factor < frameSize) continue;
+
+                long resampleStart = Stats.now();
+                Arrays.fill(shifted, 0.0f);
+                int produced = new RateTransposer(factor).process(source, decoded[0], shifted);
+                Stage.RESAMPLE.record(resampleStart);
+                if(produced < frameSize) continue;
+
+                for(int j = 0; j < frameSize; j++) {
+                    audio[j] = shifted[j] * ingameVolume;
+                }
 
-                    for (int i = 0; i < (pitchIntensity+1); i++) {
+                long brightnessStart = Stats.now();
+                double brightness = Util.brightness(audio);
+                Stage.BRIGHTNESS.record(brightnessStart);
+                if(brightness > ctx.brightnessThreshold()) return;
+                double norm = Math.sqrt(Util.calculateEnergy(audio));
 
-                        List<Double> audioBuffer = pitchMap.get(i).right;
-                        if(audioBuffer.size() >= ctx.frameSize()) continue;
+                if (norm <= 0) continue;
 
-                        double pitch = Util.pitchFunc(i,pitchIntensity);
-                        RateTransposer rateTransposer = new RateTransposer(pitch);
+                add(name, pitch, audio, (float) norm);
+            }
 
-                        float[] outputBuffer = new float[(int) (samplesInBuffer / pitch)];
-                        rateTransposer.process(buffer, outputBuffer);
+        } catch (Exception e) {
+            error(e.toString());
+            e.printStackTrace();
+        }
+    }
 
-                        for (float sample : outputBuffer) {
-                            if (audioBuffer.size() < ctx.frameSize()) {
-                                audioBuffer.add((double) sample);
-                            } else {
-                                break;
-                            }
-                        }
+    public int size() {
+        return size;
+    }
 
-                    }
+    public int frameSize() {
+        return frameSize;
+    }
 
-                    return true;
-                }
+    //the packed rows, candidate id occupies [id * frameSize, (id + 1) * frameSize). only valid until the next build
+    public float[] samples() {
+        return samples;
+    }
 
-                @Override
-                public void processingFinished() {
-                    for(Pair<Double, List<Double>> audioBuffer : pitchMap) {
-                        if(audioBuffer.right.size() != ctx.frameSize()) continue;
+    public float[] norms() {
+        return norms;
+    }
 
-                        Double pitch = 1.0 / audioBuffer.left;
+    public String name(int id) {
+        return names.get(nameIds[id]);
+    }
 
-                        float ingameSoundPitch = ctx.soundPitchesMap().get(name);
+    public double pitch(int id) {
+        return pitches[id];
+    }
 
-                        double adjustedPitch = (pitch * (1.0/(ingameSoundPitch+1e-10)));
-                        if(adjustedPitch > 2 || adjustedPitch < 0.5) continue;
+    public float norm(int id) {
+        return norms[id];
+    }
 
-                        double[] audio = audioBuffer.right.stream()
-                                .mapToDouble(Double::doubleValue)
-                                .toArray();
+    public synchronized int soundCount() {
+        return names.size();
+    }
 
-                        float ingameVolume = ctx.soundVolumesMap().get(name);
-                        for(int i = 0; i < audio.length; i++) {
-                            audio[i] = audio[i] * ingameVolume;
-                        }
+    public synchronized boolean hasSound(String name) {
+        return nameIndex.containsKey(name);
+    }
 
-                        if(Util.brightness(audio) > ctx.brightnessThreshold()) return;
-                        double norm = Math.sqrt(Util.calculateEnergy(audio));
+    private synchronized void add(String name, double pitch, double[] audio, float norm) {
+        if (size * frameSize == samples.length) grow();
+
+        int off = size * frameSize;
+        for (int i = 0; i < frameSize; i++) samples[off + i] = (float) audio[i];
+        norms[size] = norm;
+        pitches[size] = pitch;
+        Counter.CANDIDATES_INDEXED.increment();
+        nameIds[size] = nameIndex.computeIfAbsent(name, k -> {
+            names.add(k);
+            return names.size() - 1;
+        });
+        size++;
+    }
 
-                        pitchShiftedEffects.computeIfAbsent(name, k->new HashMap<>()).put(pitch,audio);
-                        effectNorms.computeIfAbsent(name, k -> new HashMap<>()).put(pitch, norm);
+    private void grow() {
+        int rows = Math.max(1024, size + (size >> 1));
+        long length = (long) rows * frameSize;
+        if (length > Integer.MAX_VALUE - 8) {
+            rows = (Integer.MAX_VALUE - 8) / frameSize;
+            if (rows <= size) throw new IllegalStateException("Sound index does not fit in one array, lower the pitches per sound");
+        }
+        samples = Arrays.copyOf(samples, rows * frameSize);
+        norms = Arrays.copyOf(norms, rows);
+        pitches = Arrays.copyOf(pitches, rows);
+        nameIds = Arrays.copyOf(nameIds, rows);
+    }
 
-                    }
+    //trims spare capacity and reorders rows loudest first, moving rows in place along permutation cycles
+    private synchronized void sortByNorm() {
+        Integer[] boxed = new Integer[size];
+        for (int i = 0; i < size; i++) boxed[i] = i;
+        float[] n = norms;
+        Arrays.sort(boxed, (a, b) -> Float.compare(n[b], n[a]));
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[i] = boxed[i];
+
+        float[] row = new float[frameSize];
+        boolean[] placed = new boolean[size];
+        for (int start = 0; start < size; start++) {
+            if (placed[start] || order[start] == start) continue;
+            System.arraycopy(samples, start * frameSize, row, 0, frameSize);
+            int dst = start;
+            while (true) {
+                placed[dst] = true;
+                int src = order[dst];
+                if (src == start) {
+                    System.arraycopy(row, 0, samples, dst * frameSize, frameSize);
+                    break;
                 }
-            });
+                System.arraycopy(samples, src * frameSize, samples, dst * frameSize, frameSize);
+                dst = src;
+            }
+        }
 
-            dispatcher.run();
+        float[] sortedNorms = new float[size];
+        double[] sortedPitches = new double[size];
+        int[] sortedNameIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedNorms[i] = norms[order[i]];
+            sortedPitches[i] = pitches[order[i]];
+            sortedNameIds[i] = nameIds[order[i]];
+        }
+        if (samples.length != size * frameSize) samples = Arrays.copyOf(samples, size * frameSize);
+        norms = sortedNorms;
+        pitches = sortedPitches;
+        nameIds = sortedNameIds;
+    }
 
-        } catch (Exception e) {
-            error(e.toString());
-            e.printStackTrace();
+    //replaces the contents with rows read back from a SoundIndexFile, which are already sorted
+    synchronized void load(List<String> names, int[] nameIds, double[] pitches, float[] norms, float[] samples) {
+        this.names.clear();
+        this.nameIndex.clear();
+        for (String name : names) {
+            this.nameIndex.put(name, this.names.size());
+            this.names.add(name);
         }
+        this.nameIds = nameIds;
+        this.pitches = pitches;
+        this.norms = norms;
+        this.samples = samples;
+        this.size = norms.length;
+    }
+
+    synchronized List<String> names() {
+        return new ArrayList<>(names);
+    }
+
+    int nameId(int id) {
+        return nameIds[id];
     }
 }
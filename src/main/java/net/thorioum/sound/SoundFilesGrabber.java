@@ -17,6 +17,8 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
@@ -64,23 +66,37 @@ public class SoundFilesGrabber {
                 final Map<String, Float> pitches = soundMap.get(version).soundPitchesMap;
                 fileMap();
 
-                JsonObject soundsJson = getResourceJson(soundsJsonHash);
+                //sound files live once in the shared store, a version only keeps each sound's config and hash
+                AssetStore store = AssetStore.shared();
+                JsonObject soundsJson;
+                try (BufferedReader reader = Files.newBufferedReader(store.fetch(soundsJsonHash, assetSize(soundsJsonObject)).join())) {
+                    soundsJson = JsonParser.parseReader(reader).getAsJsonObject();
+                }
+
+                List<PendingSound> pending = new ArrayList<>();
+                int downloads = 0;
                 for (String sound : soundsJson.keySet()) {
-                    File destinationFile = Paths.get("sounds",version.str(),sound + ".ogg").toFile();
+                    File legacyFile = Paths.get("sounds",version.str(),sound + ".ogg").toFile();
                     File soundConfigFile = Paths.get("sounds",version.str(),sound + ".json").toFile();
 
-                    if(destinationFile.exists() && soundConfigFile.exists() && soundConfigFile.length() > 0) {
-                        fileMap().put(sound, destinationFile);
-
+                    if(soundConfigFile.exists() && soundConfigFile.length() > 0) {
                         try (BufferedReader reader = Files.newBufferedReader(soundConfigFile.toPath())) {
                             JsonObject config = JsonParser.parseReader(reader).getAsJsonObject();
-                            volumes.put(sound, config.get("volume").getAsFloat());
-                            pitches.put(sound, config.get("pitch").getAsFloat());
+                            //configs from before the store point at a copy next to them instead of a hash
+                            File cached = config.has("hash")
+                                    ? (store.contains(config.get("hash").getAsString()) ? store.path(config.get("hash").getAsString()).toFile() : null)
+                                    : (legacyFile.exists() ? legacyFile : null);
+                            if (cached != null) {
+                                fileMap().put(sound, cached);
+                                volumes.put(sound, config.get("volume").getAsFloat());
+                                pitches.put(sound, config.get("pitch").getAsFloat());
+                                continue;
+                            }
                         } catch (Exception e) {
                             error(e.getMessage());
                             e.printStackTrace();
+                            continue;
                         }
-                        continue;
                     }
 
 
@@ -103,33 +119,42 @@ public class SoundFilesGrabber {
                         soundFileName = soundElement.getAsString();
                     }
 
+                    JsonObject asset = versionAssetsJson.getAsJsonObject("minecraft/sounds/" + soundFileName + ".ogg");
+                    if (asset == null) continue;
+
                     volumes.put(sound, volume);
                     pitches.put(sound, pitch);
-                    soundFileName = "minecraft/sounds/" + soundFileName + ".ogg";
 
-                    try {
-                        String soundFileHash = versionAssetsJson
-                                .getAsJsonObject(soundFileName)
-                                .get("hash").getAsString();
-
-                        downloadResource(soundFileHash,destinationFile);
-                        fileMap().put(sound,destinationFile);
-
-                        JsonObject config = new JsonObject();
-                        config.addProperty("volume",volume);
-                        config.addProperty("pitch",pitch);
+                    String hash = asset.get("hash").getAsString();
+                    if (!store.contains(hash)) downloads++;
+                    pending.add(new PendingSound(sound, hash, volume, pitch, soundConfigFile, store.fetch(hash, assetSize(asset))));
+                }
+                if (downloads > 0) info("Downloading " + downloads + " sound files for " + version.str() + ". . .");
 
-                        try (FileWriter writer = new FileWriter(soundConfigFile)) {
-                            new Gson().toJson(config, writer);
-                        } catch (IOException e) {
-                            error(e.getMessage());
-                            e.printStackTrace();
-                        }
+                int failed = 0;
+                String failure = null;
+                for (PendingSound sound : pending) {
+                    try {
+                        fileMap().put(sound.name(), sound.file().join().toFile());
+                    } catch (CompletionException e) {
+                        failed++;
+                        if (failure == null) failure = e.getCause().getMessage();
+                        continue;
+                    }
 
-                    } catch (Exception ignored) {
+                    JsonObject config = new JsonObject();
+                    config.addProperty("volume",sound.volume());
+                    config.addProperty("pitch",sound.pitch());
+                    config.addProperty("hash",sound.hash());
 
+                    try (FileWriter writer = new FileWriter(sound.configFile())) {
+                        new Gson().toJson(config, writer);
+                    } catch (IOException e) {
+                        error(e.getMessage());
+                        e.printStackTrace();
                     }
                 }
+                if (failed > 0) error(failed + " sound files could not be downloaded, first error: " + failure);
                 resolved = true;
             } catch (Exception e) {
                 error(e.getMessage());
@@ -138,6 +163,12 @@ public class SoundFilesGrabber {
         }
     }
 
+    private record PendingSound(String name, String hash, float volume, float pitch, File configFile, CompletableFuture<Path> file) {}
+
+    private static long assetSize(JsonObject asset) {
+        return asset.has("size") ? asset.get("size").getAsLong() : -1;
+    }
+
     public record SoundFilesEntry(
             Map<String, Float> soundVolumesMap,
             Map<String, Float> soundPitchesMap,
@@ -158,7 +189,8 @@ public class SoundFilesGrabber {
         return null;
     }
 
-    private static final String VERSION_MANIFEST = "https://piston-meta.mojang.com/mc/game/version_manifest_v2.json";
+    //-Deidolon.manifest.url points version resolution somewhere else, a local mirror or a stand-in server
+    private static final String VERSION_MANIFEST = System.getProperty("eidolon.manifest.url", "https://piston-meta.mojang.com/mc/game/version_manifest_v2.json");
 
 
     public static void init() {
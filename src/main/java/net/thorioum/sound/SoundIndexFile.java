@@ -0,0 +1,144 @@
+package net.thorioum.sound;
+
+import net.thorioum.Stats;
+import net.thorioum.Stats.Stage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static net.thorioum.Eidolon.error;
+
+/**
+ * On-disk copy of a built {@link SoundEffectDatabase}, one file per (version, frame length, pitches per sound, brightness).
+ *
+ * Layout (big endian, as written by DataOutputStream):
+ * magic, format version, frameSize, pitchesPerSound, brightnessThreshold, name count, names,
+ * row count, rows of (name index, pitch, norm), padding to 4 bytes, then rowCount * frameSize floats.
+ * Rows are stored in database order (loudest first), so loading is a straight copy into the packed store.
+ */
+public class SoundIndexFile {
+    private static final int MAGIC = 0x45494458; // "EIDX"
+    private static final int FORMAT_VERSION = 5;
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    public static Path pathFor(ConverterContext ctx) {
+        return Paths.get("sounds", ctx.version().str(), "index",
+                "f" + ctx.frameLength() + "-p" + ctx.pitchesPerSound() + "-b" + ctx.brightnessThreshold() + ".idx");
+    }
+
+    public static void write(Path path, ConverterContext ctx, SoundEffectDatabase db) {
+        int frameSize = ctx.frameSize();
+        List<String> names = db.names();
+        int rows = db.size();
+        float[] samples = db.samples();
+        long start = Stats.now();
+
+        try {
+            Files.createDirectories(path.getParent());
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(frameSize);
+                out.writeInt(ctx.pitchesPerSound());
+                out.writeDouble(ctx.brightnessThreshold());
+
+                out.writeInt(names.size());
+                for (String name : names) {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                out.writeInt(rows);
+                for (int r = 0; r < rows; r++) {
+                    out.writeInt(db.nameId(r));
+                    out.writeDouble(db.pitch(r));
+                    out.writeDouble(db.norm(r));
+                }
+
+                while (out.size() % Float.BYTES != 0) out.writeByte(0);
+                for (int i = 0; i < rows * frameSize; i++) out.writeFloat(samples[i]);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            Stage.INDEX_IO.record(start, rows);
+        } catch (IOException e) {
+            error("Failed to write sound index " + path + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps the index at path and fills db with it. Returns false (leaving db untouched) when there is no
+     * usable index for ctx, so the caller can fall back to decoding the sound files.
+     */
+    public static boolean load(Path path, ConverterContext ctx, SoundEffectDatabase db) {
+        if (!Files.isRegularFile(path)) return false;
+        int frameSize = ctx.frameSize();
+        long loadStart = Stats.now();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+            map.order(ByteOrder.BIG_ENDIAN);
+
+            if (map.getInt() != MAGIC || map.getInt() != FORMAT_VERSION) return false;
+            if (map.getInt() != frameSize || map.getInt() != ctx.pitchesPerSound()) return false;
+            if (Double.compare(map.getDouble(), ctx.brightnessThreshold()) != 0) return false;
+
+            String[] names = new String[map.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                byte[] bytes = new byte[map.getInt()];
+                map.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int rows = map.getInt();
+            int[] rowNames = new int[rows];
+            double[] rowPitches = new double[rows];
+            float[] rowNorms = new float[rows];
+            for (int r = 0; r < rows; r++) {
+                rowNames[r] = map.getInt();
+                rowPitches[r] = map.getDouble();
+                rowNorms[r] = (float) map.getDouble();
+                if (rowNames[r] < 0 || rowNames[r] >= names.length) return false;
+            }
+
+            while (map.position() % Float.BYTES != 0) map.get();
+            long matrixStart = map.position();
+            long rowBytes = (long) frameSize * Float.BYTES;
+            if (channel.size() - matrixStart < rows * rowBytes) return false;
+
+            if ((long) rows * frameSize > Integer.MAX_VALUE - 8) return false;
+            float[] samples = new float[rows * frameSize];
+
+            //a single mapping is capped at 2GB, so the matrix is mapped a run of whole rows at a time
+            int rowsPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / rowBytes);
+            for (int start = 0; start < rows; start += rowsPerChunk) {
+                int count = Math.min(rowsPerChunk, rows - start);
+                channel.map(FileChannel.MapMode.READ_ONLY, matrixStart + start * rowBytes, count * rowBytes)
+                        .order(ByteOrder.BIG_ENDIAN)
+                        .asFloatBuffer()
+                        .get(samples, start * frameSize, count * frameSize);
+            }
+
+            db.load(List.of(names), rowNames, rowPitches, rowNorms, samples);
+            Stage.INDEX_IO.record(loadStart, rows);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            error("Failed to read sound index " + path + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
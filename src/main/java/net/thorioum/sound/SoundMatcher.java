@@ -3,16 +3,23 @@ package net.thorioum.sound;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import be.tarsos.dsp.AudioDispatcher;
 import be.tarsos.dsp.AudioEvent;
 import be.tarsos.dsp.AudioProcessor;
 import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+import com.google.gson.GsonBuilder;
 import net.thorioum.Eidolon;
+import net.thorioum.Stats;
+import net.thorioum.Stats.Counter;
+import net.thorioum.Stats.Stage;
 import net.thorioum.matchers.GreedySubCpuMatcher;
 import net.thorioum.matchers.GreedySubGpuMatcher;
+import net.thorioum.matchers.IvfMatcher;
+import net.thorioum.matchers.Matcher;
+import net.thorioum.matchers.OffsetMatcher;
+import net.thorioum.matchers.SpectralMatcher;
 import net.thorioum.result.CompleteAudioResult;
 import net.thorioum.result.SingleFrameResult;
 import net.thorioum.result.SingleSoundResult;
@@ -24,26 +31,36 @@ import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
 public class SoundMatcher {
     public final CompleteAudioResult result;
     private final boolean useGpu;
+    private final MatchSettings settings;
 
     public SoundMatcher(CompleteAudioResult buffer, boolean useGpu) {
+        this(buffer, useGpu, new MatchSettings());
+    }
+
+    public SoundMatcher(CompleteAudioResult buffer, boolean useGpu, MatchSettings settings) {
         this.result = buffer;
         this.useGpu = useGpu;
+        this.settings = settings;
     }
 
-    private boolean ended = false;
+    private volatile boolean ended = false;
 
     //different database for different contexts are cached
     private static final Map<ConverterContext, SoundEffectDatabase> soundEffectDatabaseMap = new ConcurrentHashMap<>();
 
     public static SoundEffectDatabase getDatabase(ConverterContext ctx) {
         synchronized (soundEffectDatabaseMap) {
-            return soundEffectDatabaseMap.computeIfAbsent(ctx, f-> new SoundEffectDatabase());
+            return soundEffectDatabaseMap.computeIfAbsent(ctx, f-> new SoundEffectDatabase(ctx.frameSize()));
         }
     }
 
 
     private static volatile GreedySubGpuMatcher GPU;
     private static volatile GreedySubCpuMatcher CPU;
+    private static volatile IvfMatcher ANN;
+    private static volatile SpectralMatcher SPECTRAL;
+    private static volatile OffsetMatcher OFFSETS;
+    private static BuiltFor cpuBuiltFor;
 
     public static synchronized void freeCurrentGPU() {
         if (GPU != null) {
@@ -54,7 +71,7 @@ public class SoundMatcher {
     public synchronized void initializeGpuMatcher(ConverterContext ctx, List<String> blacklistedSounds) {
         if(!useGpu) return;
         freeCurrentGPU();
-        if (GPU == null) GPU = new GreedySubGpuMatcher();
+        if (GPU == null) GPU = new GreedySubGpuMatcher(settings);
         try {
             GPU.buildFromDatabase(getDatabase(ctx), ctx.frameSize(), blacklistedSounds);
         } catch (Throwable t) {
@@ -65,11 +82,41 @@ public class SoundMatcher {
 
     }
     public synchronized void initializeCpuMatcher(ConverterContext ctx, List<String> blacklistedSounds) {
-        if (CPU != null) return;
+        SoundEffectDatabase db = getDatabase(ctx);
+        BuiltFor builtFor = new BuiltFor(db, db.size(), ctx.frameSize(), List.copyOf(blacklistedSounds),
+                new GsonBuilder().create().toJson(settings));
+        if (builtFor.equals(cpuBuiltFor)) return;
+        //built for another database, blacklist or settings, so nothing of the old matchers is kept
+        cpuBuiltFor = null;
+        CPU = null;
+        ANN = null;
+        SPECTRAL = null;
+        OFFSETS = null;
+
+        GreedySubCpuMatcher cpu = new GreedySubCpuMatcher(settings);
+        cpu.buildFromDatabase(db, ctx.frameSize(), blacklistedSounds);
+        CPU = cpu;
+        //the cpu matcher stays around for anything the index is not ready for
+        if (settings.ann) {
+            IvfMatcher matcher = new IvfMatcher(settings);
+            matcher.buildFromDatabase(db, ctx.frameSize(), blacklistedSounds);
+            ANN = matcher;
+        }
+        if (settings.spectral) {
+            SpectralMatcher matcher = new SpectralMatcher(settings);
+            matcher.buildFromDatabase(db, ctx.frameSize(), blacklistedSounds);
+            SPECTRAL = matcher;
+        }
+        if (settings.offsets) {
+            OffsetMatcher matcher = new OffsetMatcher(settings, ctx.tickSamples());
+            matcher.buildFromDatabase(db, ctx.frameSize(), blacklistedSounds);
+            OFFSETS = matcher;
+        }
+        cpuBuiltFor = builtFor;
+    }
 
-        GreedySubCpuMatcher matcher = new GreedySubCpuMatcher();
-        matcher.buildFromDatabase(getDatabase(ctx), ctx.frameSize(), blacklistedSounds);
-        CPU = matcher;
+    //what the cpu side matchers were last built for, settings as their json
+    private record BuiltFor(SoundEffectDatabase db, int rows, int frameSize, List<String> blacklist, String settings) {
     }
 
 
@@ -84,50 +131,114 @@ public class SoundMatcher {
                     0
             );
 
-            List<Future<?>> futures = new ArrayList<>();
+            int window = Math.max(settings.framesInFlight, 2 * settings.batchSize);
+            FramePipeline pipeline = new FramePipeline(window, ctx.frameSize(), result::addFrame,
+                    () -> ended || processingStatus == Status.IDLE);
 
             SoundMatcher this$0 = this;
             dispatcher.addAudioProcessor(new AudioProcessor() {
 
                 int frame = 0;
+                List<double[]> batch = new ArrayList<>();
+                //whatever happens between two calls is ffmpeg decoding the next frame
+                long lastReturn = Stats.now();
 
                 @Override
                 public boolean process(AudioEvent audioEvent) {
+                    long entered = Stats.now();
+                    Stage.DECODE.add(entered - lastReturn, 1);
+                    //blocks while the window is full, so decoding never runs far ahead of matching
+                    double[] audioBuffer = pipeline.acquire();
+                    Stage.PIPELINE_WAIT.record(entered);
+                    if (audioBuffer == null) {
+                        this$0.ended = true;
+                        dispatcher.stop();
+                        return false;
+                    }
                     final int frame = this.frame++;
-                    double[] audioBuffer = new double[audioEvent.getFloatBuffer().length];
-                    for (int i = 0; i < audioEvent.getFloatBuffer().length; i++) {
-                        audioBuffer[i] = audioEvent.getFloatBuffer()[i];
+                    float[] floatBuffer = audioEvent.getFloatBuffer();
+                    int n = Math.min(floatBuffer.length, audioBuffer.length);
+                    for (int i = 0; i < n; i++) {
+                        audioBuffer[i] = floatBuffer[i];
                     }
+                    Arrays.fill(audioBuffer, n, audioBuffer.length, 0.0);
 
-                    futures.add(executor.submit(() -> {
-                        if(this$0.ended) return;
-                        SingleFrameResult composition = findBestComposition(ctx,audioBuffer, frame,soundsPerFrame);
-
-                        result.addFrame(composition);
+                    if (settings.batchSize > 1) {
+                        batch.add(audioBuffer);
+                        if (batch.size() >= settings.batchSize) submitBatch();
+                        lastReturn = Stats.now();
+                        return true;
+                    }
 
-                    }));
+                    executor.submit(() -> {
+                        SingleFrameResult composition = new SingleFrameResult(frame);
+                        try {
+                            if(!this$0.ended) {
+                                long start = Stats.now();
+                                composition = findBestComposition(ctx,audioBuffer, frame,soundsPerFrame);
+                                Stage.MATCH.record(start);
+                                Counter.FRAMES.increment();
+                            }
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            error("Matching frame %d failed: %s", frame, t);
+                        } finally {
+                            pipeline.release(audioBuffer);
+                            pipeline.complete(composition);
+                        }
+                    });
+                    lastReturn = Stats.now();
                     return true;
                 }
 
-                @Override
-                public void processingFinished() {
-                    result.expectedFrames = futures.size();
-                    for (Future<?> future : futures) {
+                private void submitBatch() {
+                    final List<double[]> frames = batch;
+                    final int firstFrame = this.frame - frames.size();
+                    batch = new ArrayList<>();
+
+                    executor.submit(() -> {
+                        List<SingleFrameResult> compositions = null;
                         try {
-                            if(this$0.ended) {
-                                Eidolon.resetExecutor();
-                                return;
+                            if(!this$0.ended) {
+                                long start = Stats.now();
+                                compositions = findBestCompositions(ctx, frames, firstFrame, soundsPerFrame);
+                                Stage.MATCH.record(start, frames.size());
+                                Counter.FRAMES.add(frames.size());
+                            }
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            error("Matching frames %d to %d failed: %s", firstFrame, firstFrame + frames.size() - 1, t);
+                        } finally {
+                            for (int f = 0; f < frames.size(); f++) {
+                                pipeline.release(frames.get(f));
+                                pipeline.complete(compositions != null ? compositions.get(f) : new SingleFrameResult(firstFrame + f));
                             }
-                            future.get();
-                        } catch (Exception e) {
-                            e.printStackTrace();
                         }
+                    });
+                }
+
+                @Override
+                public void processingFinished() {
+                    if (!batch.isEmpty() && !this$0.ended) submitBatch();
+                    result.expectedFrames = frame;
+                    if (!pipeline.awaitDrained()) {
+                        ended = true;
+                        Eidolon.resetExecutor();
+                        return;
                     }
                     if(!ended) {
                         ended = true;
+                        if (CPU != null && CPU.scans() > 0) {
+                            info("CPU matcher pruned %.1f of %d rows per scan", CPU.averagePrunedRows(), CPU.numCandidates());
+                        }
+                        String recall = CPU != null ? CPU.recallReport() : null;
+                        if (recall != null) info("CPU matcher %s", recall);
+                        String annRecall = ANN != null ? ANN.recallReport() : null;
+                        if (annRecall != null) info("IVF matcher %s", annRecall);
+                        String gpuRecall = GPU != null ? GPU.recallReport() : null;
+                        if (gpuRecall != null) info("GPU matcher %s", gpuRecall);
                         soundsConsumer.accept(result);
                     }
-                    Eidolon.resetExecutor();
                 }
             });
 
@@ -152,37 +263,221 @@ public class SoundMatcher {
         }
     }
 
+    //targetFrame is a pipeline buffer and is used as the residual, so it is overwritten
     private SingleFrameResult findBestComposition(ConverterContext ctx, double[] targetFrame, int frameNum, int totalSounds) {
-        double[] residual  = Arrays.copyOf(targetFrame, targetFrame.length);
+        double[] residual  = targetFrame;
         Util.highPassInPlace(residual, ctx.highpass_cutoff());
 
         double originalEnergyHP = Util.calculateEnergy(residual);
         SingleFrameResult composition = new SingleFrameResult(frameNum);
+        SoundEffectDatabase db = getDatabase(ctx);
+
+        SpectralMatcher.Search spectral = spectralActive() ? SPECTRAL.begin(toFloat(residual)) : null;
+        if (spectral != null) {
+            //subtracting in the time domain does not take an out of phase pick out of the spectrum, so the stop rule
+            //looks at the band energy the search has left
+            double originalBandEnergy = spectral.energy();
+            for (int i = 0; i < totalSounds; i++) {
+                if (spectral.energy() < originalBandEnergy * 0.05) break;
+                SingleSoundResult match = spectral.next(ctx, 0.1f);
+                if (match == null) break;
+
+                composition.addEffect(match);
+                subtract(residual, db, match);
+            }
+            return composition;
+        }
+
+        //the gpu has no top-k scan, a beam always runs on the cpu
+        if (beamActive()) {
+            for (SingleSoundResult match : new BeamComposer(beamMatcher(), db, settings).compose(ctx, residual, totalSounds)) {
+                composition.addEffect(match);
+            }
+            return composition;
+        }
+
+        //picks that start partway into the frame are matched one at a time on the cpu
+        if (settings.gpuResident && gpuActive() && !offsetsActive()) {
+            List<SingleSoundResult> picks = GPU.findBestComposition(ctx, toFloat(residual), totalSounds, 0.05f, 0.1f);
+            if (picks != null) {
+                for (SingleSoundResult match : picks) composition.addEffect(match);
+                return composition;
+            }
+        }
+
+        GreedySubCpuMatcher.Pursuit pursuit = null;
+        if (settings.incremental && !gpuActive() && CPU != null && CPU.isReady() && !CPU.approximate() && !annActive() && !offsetsActive()) {
+            pursuit = CPU.beginPursuit(toFloat(residual));
+        }
 
         for (int i = 0; i < totalSounds; i++) {
             double residualEnergy = Util.calculateEnergy(residual);
             if (residualEnergy < originalEnergyHP * 0.05) break;
 
-            SingleSoundResult match = findBestMatch(ctx, residual, residualEnergy);
+            SingleSoundResult match = pursuit != null
+                    ? pursuit.next(ctx, residualEnergy, 0.1f)
+                    : findBestMatch(ctx, residual, residualEnergy);
             if (match == null || match.similarity() < 0.1) break;
 
-            composition.addEffect(new SingleSoundResult(match.name(), match.pitch(), match.volume(),match.similarity(),match.audioData()));
+            composition.addEffect(match);
+            subtract(residual, db, match);
+        }
+        return composition;
+    }
+    //same greedy loop as findBestComposition, but every step is taken for all frames of the batch together (also in place)
+    private List<SingleFrameResult> findBestCompositions(ConverterContext ctx, List<double[]> targetFrames, int firstFrame, int totalSounds) {
+        int count = targetFrames.size();
+        if (spectralActive() || offsetsActive() || beamActive()) {
+            List<SingleFrameResult> compositions = new ArrayList<>(count);
+            for (int f = 0; f < count; f++) compositions.add(findBestComposition(ctx, targetFrames.get(f), firstFrame + f, totalSounds));
+            return compositions;
+        }
+        double[][] residuals = new double[count][];
+        double[] originalEnergyHP = new double[count];
+        boolean[] done = new boolean[count];
+        List<SingleFrameResult> compositions = new ArrayList<>(count);
+        SoundEffectDatabase db = getDatabase(ctx);
+
+        for (int f = 0; f < count; f++) {
+            double[] targetFrame = targetFrames.get(f);
+            residuals[f] = targetFrame;
+            Util.highPassInPlace(residuals[f], ctx.highpass_cutoff());
+            originalEnergyHP[f] = Util.calculateEnergy(residuals[f]);
+            compositions.add(new SingleFrameResult(firstFrame + f));
+        }
+
+        GreedySubCpuMatcher.Pursuit[] pursuits = null;
+        if (settings.incremental && !gpuActive() && CPU != null && CPU.isReady() && !CPU.approximate() && !annActive()) {
+            float[][] resF = new float[count][];
+            for (int f = 0; f < count; f++) resF[f] = toFloat(residuals[f]);
+            pursuits = CPU.beginPursuits(resF);
+        }
 
-            for (int j = 0; j < residual.length; j++) {
-                residual[j]  -= match.audioData()[j]  * match.volume();
+        int[] active = new int[count];
+        double[] activeEnergies = new double[count];
+        for (int i = 0; i < totalSounds; i++) {
+            int numActive = 0;
+            for (int f = 0; f < count; f++) {
+                if (done[f]) continue;
+                double residualEnergy = Util.calculateEnergy(residuals[f]);
+                if (residualEnergy < originalEnergyHP[f] * 0.05) {
+                    done[f] = true;
+                    continue;
+                }
+                active[numActive] = f;
+                activeEnergies[numActive] = residualEnergy;
+                numActive++;
+            }
+            if (numActive == 0) break;
+
+            SingleSoundResult[] matches = new SingleSoundResult[numActive];
+            if (pursuits != null) {
+                for (int k = 0; k < numActive; k++) {
+                    matches[k] = pursuits[active[k]].next(ctx, activeEnergies[k], 0.1f);
+                }
+            } else {
+                float[][] resF = new float[numActive][];
+                for (int k = 0; k < numActive; k++) resF[k] = toFloat(residuals[active[k]]);
+                matches = findBestMatches(ctx, resF, Arrays.copyOf(activeEnergies, numActive));
+            }
+
+            for (int k = 0; k < numActive; k++) {
+                int f = active[k];
+                SingleSoundResult match = matches[k];
+                if (match == null || match.similarity() < 0.1) {
+                    done[f] = true;
+                    continue;
+                }
+
+                compositions.get(f).addEffect(match);
+                subtract(residuals[f], db, match);
             }
         }
-        return composition;
+        return compositions;
     }
-    private SingleSoundResult findBestMatch(ConverterContext ctx, double[] residual, double residualEnergy) {
+
+    private SingleSoundResult[] findBestMatches(ConverterContext ctx, float[][] residuals, double[] residualEnergies) {
+        SingleSoundResult[] matches = new SingleSoundResult[residuals.length];
+        if (gpuActive()) {
+            matches = GPU.findBestMatches(ctx, residuals, residualEnergies, 0.1f);
+        }
+
+        if (annActive()) {
+            for (int k = 0; k < residuals.length; k++) {
+                if (matches[k] == null) matches[k] = ANN.findBestMatch(ctx, residuals[k], residualEnergies[k], 0.1f);
+            }
+        } else if (CPU != null && CPU.isReady()) {
+            //whatever the gpu could not place gets another try on the cpu, like findBestMatch
+            int missing = 0;
+            for (SingleSoundResult match : matches) if (match == null) missing++;
+            if (missing == residuals.length) {
+                return CPU.findBestMatches(ctx, residuals, residualEnergies, 0.1f);
+            }
+            for (int k = 0; k < residuals.length && missing > 0; k++) {
+                if (matches[k] != null) continue;
+                matches[k] = CPU.findBestMatch(ctx, residuals[k], residualEnergies[k], 0.1f);
+                missing--;
+            }
+        }
+        return matches;
+    }
+
+    static void subtract(double[] residual, SoundEffectDatabase db, SingleSoundResult match) {
+        float[] samples = db.samples();
+        int delay = match.offset();
+        int off = match.candidate() * residual.length - delay;
+        double volume = match.volume();
+        for (int j = delay; j < residual.length; j++) {
+            residual[j]  -= samples[off + j]  * volume;
+        }
+    }
+
+    private boolean gpuActive() {
+        return useGpu && GPU != null && GPU.isReady();
+    }
+
+    private boolean spectralActive() {
+        return settings.spectral && SPECTRAL != null && SPECTRAL.isReady();
+    }
+
+    private boolean beamActive() {
+        return settings.beamWidth > 1 && beamMatcher() != null;
+    }
+
+    //the matcher findBestMatch would end up on without a gpu
+    private Matcher beamMatcher() {
+        if (offsetsActive()) return OFFSETS;
+        if (annActive()) return ANN;
+        return CPU != null && CPU.isReady() ? CPU : null;
+    }
+
+    private boolean offsetsActive() {
+        return settings.offsets && OFFSETS != null && OFFSETS.isReady();
+    }
+
+    private boolean annActive() {
+        return settings.ann && ANN != null && ANN.isReady();
+    }
+
+    static float[] toFloat(double[] residual) {
         float[] resF = new float[residual.length];
         for (int i = 0; i < residual.length; i++) resF[i] = (float) residual[i];
+        return resF;
+    }
 
-        if (useGpu && GPU != null && GPU.isReady()) {
+    private SingleSoundResult findBestMatch(ConverterContext ctx, double[] residual, double residualEnergy) {
+        float[] resF = toFloat(residual);
+
+        if (offsetsActive()) return OFFSETS.findBestMatch(ctx, resF, residualEnergy, 0.1f);
+
+        if (gpuActive()) {
             SingleSoundResult gm = GPU.findBestMatch(ctx, resF, residualEnergy, 0.1f);
             if (gm != null) return gm;
         }
 
+        //a miss on the index is final, falling back to a full scan would cost that scan on every frame's last step
+        if (annActive()) return ANN.findBestMatch(ctx, resF, residualEnergy, 0.1f);
+
         if (CPU != null && CPU.isReady()) {
             SingleSoundResult cm = CPU.findBestMatch(ctx, resF, residualEnergy, 0.1f);
             if (cm != null) return cm;
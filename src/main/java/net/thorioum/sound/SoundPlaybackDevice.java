@@ -6,9 +6,7 @@ import net.thorioum.result.SingleSoundResult;
 
 import javax.sound.sampled.*;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static net.thorioum.Eidolon.error;
 import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
@@ -30,24 +28,17 @@ public class SoundPlaybackDevice {
     public static void play(ConverterContext ctx, CompleteAudioResult result) {
         stopPlaybackNow();
 
-        if(result.composition().isEmpty()) return;
-
-        List<SingleFrameResult> frames = result.composition();
-
-        Map<Integer, SingleFrameResult> byFrame = new HashMap<>();
-        for (SingleFrameResult fr : frames) {
-            byFrame.put(fr.frame, fr);
-        }
+        if(result.isEmpty()) return;
 
         try {
-            playRange(ctx, byFrame, frames.size());
+            playRange(ctx, result, result.size());
         } catch (Exception e) {
             error(e.getMessage());
             e.printStackTrace();
         }
     }
 
-    private static void playRange(ConverterContext ctx, Map<Integer, SingleFrameResult> byFrame, int frameCount) throws LineUnavailableException {
+    private static void playRange(ConverterContext ctx, CompleteAudioResult result, int frameCount) throws LineUnavailableException {
 
         int bytesPerFrame = ctx.frameSize()*2;
 
@@ -68,56 +59,18 @@ public class SoundPlaybackDevice {
         activeLine = line;
         try {
 
+            SoundEffectDatabase db = SoundMatcher.getDatabase(ctx);
             double[] mix = new double[ctx.frameSize()];
             byte[] pcm = new byte[bytesPerFrame];
             byte[] silence = new byte[bytesPerFrame];
             for (int frameIndex = 0; frameIndex < frameCount; frameIndex++) {
-                SingleFrameResult frame = byFrame.get(frameIndex);
+                SingleFrameResult frame = result.get(frameIndex);
 
-                if (frame == null || frame.getComposition().isEmpty()) {
+                if (!mixFrame(db, frame, frameIndex, mix)) {
                     line.write(silence, 0, silence.length);
                     continue;
                 }
-
-                List<SingleSoundResult> sounds = frame.getComposition();
-
-                Arrays.fill(mix, 0.0);
-
-                for (SingleSoundResult s : sounds) {
-                    if (s == null) continue;
-                    double[] data = s.audioData();
-                    if (data == null) continue;
-                    if (data.length != ctx.frameSize()) {
-                        throw new IllegalArgumentException(
-                                "Frame " + frameIndex + " sound '" + s.name() + "' has audioData length "
-                                        + data.length + " but expected " + ctx.frameSize()
-                        );
-                    }
-
-                    double vol = s.volume();
-                    for (int i = 0; i < ctx.frameSize(); i++) {
-                        mix[i] += data[i] * vol;
-                    }
-                }
-
-                double peak = 0.0;
-                for (int i = 0; i < ctx.frameSize(); i++) {
-                    double a = Math.abs(mix[i]);
-                    if (a > peak) peak = a;
-                }
-                double gain = (peak > 1.0) ? (0.99 / peak) : 1.0;
-
-                int idx = 0;
-                for (int i = 0; i < ctx.frameSize(); i++) {
-                    double v = mix[i] * gain;
-
-                    if (v > 1.0) v = 1.0;
-                    if (v < -1.0) v = -1.0;
-
-                    short s16 = (short) Math.round(v * 32767.0);
-                    pcm[idx++] = (byte) (s16 & 0xFF);
-                    pcm[idx++] = (byte) ((s16 >> 8) & 0xFF);
-                }
+                toPcm(mix, pcm);
 
                 if(Thread.currentThread().isInterrupted())
                     return;
@@ -131,4 +84,57 @@ public class SoundPlaybackDevice {
             line.close();
         }
     }
+
+    //sums the frame's sounds at their volumes into mix, false (and mix untouched) when the frame plays nothing
+    static boolean mixFrame(SoundEffectDatabase db, SingleFrameResult frame, int frameIndex, double[] mix) {
+        if (frame == null) return false;
+        List<SingleSoundResult> sounds = frame.getComposition();
+        if (sounds.isEmpty()) return false;
+
+        int frameSize = mix.length;
+        float[] samples = db.samples();
+        Arrays.fill(mix, 0.0);
+
+        for (SingleSoundResult s : sounds) {
+            if (s == null) continue;
+            if (s.candidate() < 0 || s.candidate() >= db.size()) {
+                throw new IllegalArgumentException(
+                        "Frame " + frameIndex + " sound '" + s.name() + "' has candidate id "
+                                + s.candidate() + " but the database only has " + db.size()
+                );
+            }
+
+            //a sound with an offset starts that many samples into the frame
+            int delay = Math.max(0, Math.min(frameSize, s.offset()));
+            int off = s.candidate() * frameSize - delay;
+            double vol = s.volume();
+            for (int i = delay; i < frameSize; i++) {
+                mix[i] += samples[off + i] * vol;
+            }
+        }
+        return true;
+    }
+
+    //16 bit little endian pcm of mix, scaled down when it would clip. returns the gain that was applied
+    static double toPcm(double[] mix, byte[] pcm) {
+        double peak = 0.0;
+        for (int i = 0; i < mix.length; i++) {
+            double a = Math.abs(mix[i]);
+            if (a > peak) peak = a;
+        }
+        double gain = (peak > 1.0) ? (0.99 / peak) : 1.0;
+
+        int idx = 0;
+        for (int i = 0; i < mix.length; i++) {
+            double v = mix[i] * gain;
+
+            if (v > 1.0) v = 1.0;
+            if (v < -1.0) v = -1.0;
+
+            short s16 = (short) Math.round(v * 32767.0);
+            pcm[idx++] = (byte) (s16 & 0xFF);
+            pcm[idx++] = (byte) ((s16 >> 8) & 0xFF);
+        }
+        return gain;
+    }
 }
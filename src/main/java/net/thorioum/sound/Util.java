@@ -6,28 +6,27 @@ import com.google.gson.JsonParser;
 import javax.sound.sampled.*;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
-import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.*;
 import java.util.regex.Pattern;
 
-import static net.thorioum.Eidolon.error;
 import static net.thorioum.sound.SoundEffectDatabase.SAMPLE_RATE;
 
 public class Util {
     private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
             .connectTimeout(Duration.ofSeconds(20))
             .followRedirects(HttpClient.Redirect.NORMAL)
             .build();
 
+    static HttpClient httpClient() {
+        return client;
+    }
+
     public static int getChannelCount(File audioFile) throws UnsupportedAudioFileException, IOException {
         try (AudioInputStream in = AudioSystem.getAudioInputStream(audioFile)) {
             AudioFormat fmt = in.getFormat();
@@ -68,18 +67,8 @@ public class Util {
 
         if (samples == null || samples.length == 0) return 0.0;
 
-        int nOrig = samples.length;
-        int n = nextPow2(Math.max(2, nOrig));
-
-        double[] re = new double[n];
-        double[] im = new double[n];
-
-        for (int i = 0; i < nOrig; i++) {
-            double w = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / Math.max(1, (nOrig - 1)));
-            re[i] = samples[i] * w;
-        }
-
-        fft(re, im);
+        double[] power = powerSpectrum(samples);
+        int n = (power.length - 1) * 2;
 
         int kStart = 1;
         int kEnd = n / 2;
@@ -87,15 +76,13 @@ public class Util {
 
         double totalPower = 0.0;
         for (int k = kStart; k <= kEnd; k++) {
-            double pk = re[k] * re[k] + im[k] * im[k];
-            totalPower += pk;
+            totalPower += power[k];
         }
         if (totalPower <= 1e-20) return 0.0;
 
         double H = 0.0;
         for (int k = kStart; k <= kEnd; k++) {
-            double pk = re[k] * re[k] + im[k] * im[k];
-            double p = pk / totalPower;
+            double p = power[k] / totalPower;
             if (p > 0.0) H += -p * Math.log(p);
         }
         double Hmax = Math.log(bins);
@@ -106,9 +93,31 @@ public class Util {
         return brightness;
     }
 
+    //hann windowed power spectrum, bins 0..n/2 of an fft zero padded to the next power of two
+    public static double[] powerSpectrum(double[] samples) {
+        int nOrig = samples.length;
+        int n = nextPow2(Math.max(2, nOrig));
 
+        double[] re = new double[n];
+        double[] im = new double[n];
 
-    private static void fft(double[] re, double[] im) {
+        for (int i = 0; i < nOrig; i++) {
+            double w = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / Math.max(1, (nOrig - 1)));
+            re[i] = samples[i] * w;
+        }
+
+        fft(re, im);
+
+        double[] power = new double[n / 2 + 1];
+        for (int k = 0; k <= n / 2; k++) {
+            power[k] = re[k] * re[k] + im[k] * im[k];
+        }
+        return power;
+    }
+
+
+    //in place radix 2 fft, re.length must be a power of two
+    public static void fft(double[] re, double[] im) {
         int n = re.length;
 
         for (int i = 1, j = 0; i < n; i++) {
@@ -147,7 +156,7 @@ public class Util {
         }
     }
 
-    private static int nextPow2(int x) {
+    public static int nextPow2(int x) {
         int n = 1;
         while (n < x) n <<= 1;
         return n;
@@ -180,31 +189,6 @@ public class Util {
     }
 
 
-    public static void downloadResource(String hash, File destination) {
-        try {
-            URL url = new URL("https://resources.download.minecraft.net/" + hash.substring(0,2) + "/" + hash);
-            try (InputStream in = url.openStream()) {
-                Files.copy(in, Paths.get(destination.toURI()), StandardCopyOption.REPLACE_EXISTING);
-            }
-        } catch (Exception e) {
-            error(e.getMessage());
-            e.printStackTrace();
-        }
-    }
-
-    public static JsonObject getResourceJson(String hash) throws IOException, InterruptedException {
-        HttpRequest req = HttpRequest.newBuilder(URI.create("https://resources.download.minecraft.net/" + hash.substring(0,2) + "/" + hash))
-                .timeout(Duration.ofSeconds(5))
-                .GET()
-                .build();
-
-        HttpResponse<String> resp = client.send(req, HttpResponse.BodyHandlers.ofString());
-        if (resp.statusCode() != 200) {
-            throw new IOException("HTTP " + resp.statusCode() + " for " + hash);
-        }
-        return JsonParser.parseString(resp.body()).getAsJsonObject();
-    }
-
     public static JsonObject getJson(String url) throws IOException, InterruptedException {
         HttpRequest req = HttpRequest.newBuilder(URI.create(url))
                 .timeout(Duration.ofSeconds(5))
@@ -0,0 +1,118 @@
+package net.thorioum.matchers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The vector kernel against the scalar one. Both sum in float but in a different order, so each result can be off
+ * from the exact dot product by at most about frameSize float roundings of the sum of |row[i] * vec[i]|, and the two
+ * are held to that bound. Byte rows against small integer vectors have exact float sums, so those have to match bit for bit.
+ */
+class DotKernelTest {
+
+    private static final DotKernel SCALAR = new ScalarDotKernel();
+    private static final DotKernel VECTOR = new VectorDotKernel();
+
+    //odd sizes, sizes either side of every lane count, and a real frame
+    private static final int[] FRAME_SIZES = {1, 3, 7, 8, 9, 15, 16, 17, 31, 33, 63, 65, 257, 2400, 2403};
+    //row counts around the four row unroll
+    private static final int[] ROW_COUNTS = {1, 2, 3, 4, 5, 6, 7, 9, 13};
+
+    @Test
+    void floatRowsMatchScalar() {
+        Random random = new Random(1);
+        for (int frameSize : FRAME_SIZES) {
+            for (int rows : ROW_COUNTS) {
+                int from = rows % 3;
+                int vecOff = frameSize % 5 + 1;
+                int outOff = rows % 4 + 2;
+                float[] matrix = new float[(from + rows) * frameSize];
+                float[] vec = new float[vecOff + frameSize + 3];
+                for (int i = 0; i < matrix.length; i++) matrix[i] = (float) random.nextGaussian();
+                for (int i = 0; i < vec.length; i++) vec[i] = (float) random.nextGaussian();
+
+                float[] expected = sentinel(outOff + rows + 2);
+                float[] actual = sentinel(outOff + rows + 2);
+                SCALAR.dots(matrix, frameSize, from, from + rows, vec, vecOff, expected, outOff);
+                VECTOR.dots(matrix, frameSize, from, from + rows, vec, vecOff, actual, outOff);
+
+                for (int c = 0; c < rows; c++) {
+                    double scale = 0.0;
+                    for (int i = 0; i < frameSize; i++) scale += Math.abs(matrix[(from + c) * frameSize + i] * vec[vecOff + i]);
+                    double tolerance = frameSize * Math.ulp(1.0f) * scale;
+                    String where = "frameSize " + frameSize + ", rows " + rows + ", row " + c;
+                    assertEquals(expected[outOff + c], actual[outOff + c], tolerance, where);
+                }
+                assertUntouched(actual, outOff, rows);
+            }
+        }
+    }
+
+    @Test
+    void byteRowsMatchScalar() {
+        Random random = new Random(2);
+        for (int frameSize : FRAME_SIZES) {
+            for (int rows : ROW_COUNTS) {
+                int from = rows % 3;
+                int vecOff = frameSize % 5 + 1;
+                int outOff = rows % 4 + 2;
+                byte[] matrix = new byte[(from + rows) * frameSize];
+                random.nextBytes(matrix);
+                float[] vec = new float[vecOff + frameSize + 3];
+                //|sum| <= 128 * 8 * 2403 < 2^24, so every partial sum is exact whatever the order
+                for (int i = 0; i < vec.length; i++) vec[i] = random.nextInt(17) - 8;
+
+                float[] expected = sentinel(outOff + rows + 2);
+                float[] actual = sentinel(outOff + rows + 2);
+                SCALAR.dots(matrix, frameSize, from, from + rows, vec, vecOff, expected, outOff);
+                VECTOR.dots(matrix, frameSize, from, from + rows, vec, vecOff, actual, outOff);
+
+                for (int c = 0; c < rows; c++) {
+                    String where = "frameSize " + frameSize + ", rows " + rows + ", row " + c;
+                    assertEquals(expected[outOff + c], actual[outOff + c], where);
+                }
+                assertUntouched(actual, outOff, rows);
+            }
+        }
+    }
+
+    @Test
+    void byteRowsWithRealVectorsMatchScalar() {
+        Random random = new Random(3);
+        int frameSize = 2403;
+        int rows = 7;
+        byte[] matrix = new byte[rows * frameSize];
+        random.nextBytes(matrix);
+        float[] vec = new float[frameSize];
+        for (int i = 0; i < vec.length; i++) vec[i] = (float) random.nextGaussian();
+
+        float[] expected = new float[rows];
+        float[] actual = new float[rows];
+        SCALAR.dots(matrix, frameSize, 0, rows, vec, 0, expected, 0);
+        VECTOR.dots(matrix, frameSize, 0, rows, vec, 0, actual, 0);
+        for (int c = 0; c < rows; c++) {
+            double scale = 0.0;
+            for (int i = 0; i < frameSize; i++) scale += Math.abs(matrix[c * frameSize + i] * vec[i]);
+            assertEquals(expected[c], actual[c], frameSize * Math.ulp(1.0f) * scale, "row " + c);
+        }
+    }
+
+    private static float[] sentinel(int length) {
+        float[] out = new float[length];
+        Arrays.fill(out, Float.NaN);
+        return out;
+    }
+
+    //nothing outside [outOff, outOff + rows) is written
+    private static void assertUntouched(float[] out, int outOff, int rows) {
+        for (int i = 0; i < out.length; i++) {
+            if (i >= outOff && i < outOff + rows) continue;
+            assertTrue(Float.isNaN(out[i]), "slot " + i + " outside the output range was written");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package net.thorioum.matchers;
+
+import net.thorioum.result.SingleSoundResult;
+import net.thorioum.sound.ConverterContext;
+import net.thorioum.sound.MatchSettings;
+import net.thorioum.sound.SoundEffectDatabase;
+import net.thorioum.sound.TestDatabases;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The gpu matcher against the cpu one on an OpenCL cpu device (POCL or a vendor cpu runtime), skipped where there is
+ * none. Both score in float but sum in a different order, so a pick may only differ from the cpu's where the row it
+ * took scores within the tolerance of the cpu's. The threaded test runs more threads than lanes, so calls wait for a
+ * lane and take over its queue and buffers from the call before.
+ */
+class GreedySubGpuMatcherTest {
+
+    private static final int FRAME_SIZE = 480;
+    private static final int CANDIDATES = 600;
+    private static final int LANES = 2;
+    private static final int THREADS = 4 * LANES;
+    private static final int SOUNDS = 8;
+    private static final float MIN_SIM = 0.1f;
+    private static final float MIN_ENERGY_RATIO = 0.05f;
+    private static final double TOLERANCE = 1e-3;
+
+    //the matchers only read the frame size from the database, a context is just passed through to the results
+    private static final ConverterContext CTX = new ConverterContext(null, 10, 1, 0.0, 1.0);
+
+    private String previousDevice;
+    private SoundEffectDatabase db;
+    private GreedySubCpuMatcher cpu;
+    private GreedySubGpuMatcher gpu;
+
+    @BeforeEach
+    void build() {
+        previousDevice = System.getProperty("eidolon.opencl.device");
+        System.setProperty("eidolon.opencl.device", "cpu");
+        assumeTrue(cpuDeviceAvailable(), "no OpenCL cpu device");
+
+        db = TestDatabases.noise(FRAME_SIZE, CANDIDATES, 1);
+        cpu = new GreedySubCpuMatcher();
+        cpu.buildFromDatabase(db, FRAME_SIZE, List.of());
+        MatchSettings settings = new MatchSettings();
+        settings.gpuQueues = LANES;
+        gpu = new GreedySubGpuMatcher(settings);
+        gpu.buildFromDatabase(db, FRAME_SIZE, List.of());
+        assertTrue(gpu.isReady(), "gpu matcher built");
+    }
+
+    @AfterEach
+    void release() {
+        if (gpu != null) gpu.release();
+        if (previousDevice == null) System.clearProperty("eidolon.opencl.device");
+        else System.setProperty("eidolon.opencl.device", previousDevice);
+    }
+
+    @Test
+    void bestMatchAgreesWithCpu() {
+        Random random = new Random(2);
+        for (int q = 0; q < 20; q++) {
+            float[] residual = target(random);
+            double energy = energy(residual);
+            assertSameMatch(cpu.findBestMatch(CTX, residual, energy, MIN_SIM), gpu.findBestMatch(CTX, residual, energy, MIN_SIM), residual);
+        }
+    }
+
+    @Test
+    void bestMatchesAgreeWithCpu() {
+        Random random = new Random(3);
+        float[][] residuals = new float[13][];
+        double[] energies = new double[residuals.length];
+        for (int r = 0; r < residuals.length; r++) {
+            residuals[r] = target(random);
+            energies[r] = energy(residuals[r]);
+        }
+        SingleSoundResult[] matches = gpu.findBestMatches(CTX, residuals, energies, MIN_SIM);
+        assertEquals(residuals.length, matches.length, "one result per residual");
+        for (int r = 0; r < residuals.length; r++) {
+            assertSameMatch(cpu.findBestMatch(CTX, residuals[r], energies[r], MIN_SIM), matches[r], residuals[r]);
+        }
+    }
+
+    @Test
+    void compositionAgreesWithCpu() {
+        Random random = new Random(4);
+        for (int q = 0; q < 10; q++) {
+            float[] target = target(random);
+            assertSameComposition(target, gpu.findBestComposition(CTX, target, SOUNDS, MIN_ENERGY_RATIO, MIN_SIM));
+        }
+    }
+
+    @Test
+    void threadsSharingLanesAgreeWithCpu() throws Exception {
+        Random random = new Random(5);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            float[][] targets = new float[6][];
+            for (int q = 0; q < targets.length; q++) targets[q] = target(random);
+            SingleSoundResult[] expected = new SingleSoundResult[targets.length];
+            double[] energies = new double[targets.length];
+            for (int q = 0; q < targets.length; q++) {
+                energies[q] = energy(targets[q]);
+                expected[q] = cpu.findBestMatch(CTX, targets[q], energies[q], MIN_SIM);
+            }
+
+            tasks.add(() -> {
+                for (int round = 0; round < 5; round++) {
+                    for (int q = 0; q < targets.length; q++) {
+                        assertSameMatch(expected[q], gpu.findBestMatch(CTX, targets[q], energies[q], MIN_SIM), targets[q]);
+                    }
+                    SingleSoundResult[] matches = gpu.findBestMatches(CTX, targets, energies, MIN_SIM);
+                    for (int q = 0; q < targets.length; q++) assertSameMatch(expected[q], matches[q], targets[q]);
+                    assertSameComposition(targets[round], gpu.findBestComposition(CTX, targets[round], SOUNDS, MIN_ENERGY_RATIO, MIN_SIM));
+                }
+                return null;
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            //get() rethrows whatever assertion failed on a worker
+            for (Future<Void> future : pool.invokeAll(tasks, 5, TimeUnit.MINUTES)) future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static boolean cpuDeviceAvailable() {
+        try {
+            return GreedySubGpuMatcher.deviceAvailable();
+        } catch (LinkageError e) {
+            //no OpenCL library to load JOCL's natives against
+            return false;
+        }
+    }
+
+    //the cpu's greedy loop with the stop rules of the device one, compared pick by pick up to the first near tie
+    private void assertSameComposition(float[] target, List<SingleSoundResult> picks) {
+        assertNotNull(picks, "composition");
+        float[] residual = target.clone();
+        double original = energy(residual);
+        for (int step = 0; step < SOUNDS; step++) {
+            double energy = energy(residual);
+            SingleSoundResult expected = energy < original * MIN_ENERGY_RATIO ? null : cpu.findBestMatch(CTX, residual, energy, MIN_SIM);
+            if (expected == null) {
+                assertEquals(step, picks.size(), "picks before the cpu stopped");
+                return;
+            }
+            assertTrue(step < picks.size(), "gpu stopped after " + picks.size() + " picks, the cpu found another");
+            SingleSoundResult actual = picks.get(step);
+            assertSameMatch(expected, actual, residual);
+            //past a near tie the two residuals are no longer the same
+            if (actual.candidate() != expected.candidate()) return;
+            subtract(residual, expected);
+        }
+        assertEquals(SOUNDS, picks.size(), "picks");
+    }
+
+    private void assertSameMatch(SingleSoundResult expected, SingleSoundResult actual, float[] residual) {
+        assertNotNull(expected, "the targets are made to have a match");
+        assertNotNull(actual, "gpu match");
+        double tolerance = TOLERANCE * expected.similarity();
+        if (actual.candidate() != expected.candidate()) {
+            double taken = similarity(actual.candidate(), residual);
+            assertEquals(expected.similarity(), taken, tolerance,
+                    "gpu took " + actual.candidate() + " over " + expected.candidate() + " without a near tie");
+            return;
+        }
+        assertEquals(expected.similarity(), actual.similarity(), tolerance, "similarity of " + expected.candidate());
+        assertEquals(expected.volume(), actual.volume(), TOLERANCE * Math.max(expected.volume(), 1e-3), "volume of " + expected.candidate());
+    }
+
+    //a few rows at random volumes over a little noise
+    private float[] target(Random random) {
+        float[] samples = db.samples();
+        float[] target = new float[FRAME_SIZE];
+        for (int s = 0; s < 4; s++) {
+            int id = random.nextInt(db.size());
+            float volume = (float) (0.2 + 0.8 * random.nextDouble());
+            for (int i = 0; i < FRAME_SIZE; i++) target[i] += samples[id * FRAME_SIZE + i] * volume;
+        }
+        for (int i = 0; i < FRAME_SIZE; i++) target[i] += (float) (0.01 * random.nextGaussian());
+        return target;
+    }
+
+    private double similarity(int id, float[] residual) {
+        float[] samples = db.samples();
+        double dot = 0.0;
+        for (int i = 0; i < FRAME_SIZE; i++) dot += (double) samples[id * FRAME_SIZE + i] * residual[i];
+        return Math.max(dot, 0.0) / Math.sqrt(energy(residual));
+    }
+
+    private void subtract(float[] residual, SingleSoundResult match) {
+        float[] samples = db.samples();
+        int off = match.candidate() * FRAME_SIZE;
+        for (int i = 0; i < FRAME_SIZE; i++) residual[i] -= (float) (samples[off + i] * match.volume());
+    }
+
+    private static double energy(float[] v) {
+        double energy = 0.0;
+        for (float x : v) energy += (double) x * x;
+        return energy;
+    }
+}
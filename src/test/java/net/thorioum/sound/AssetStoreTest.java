@@ -0,0 +1,194 @@
+package net.thorioum.sound;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The store against a local HTTP server that answers each request through whatever respond is set to, and counts
+ * the requests it gets. Failed downloads are retried with the store's real backoff, so the rejection tests take a
+ * few seconds each.
+ */
+class AssetStoreTest {
+
+    private static final byte[] BODY = "not really an ogg file".getBytes(StandardCharsets.UTF_8);
+    private static final String HASH = sha1(BODY);
+
+    @TempDir
+    Path root;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private AssetStore store;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Responder respond;
+
+    private interface Responder {
+        void respond(HttpExchange exchange, int request) throws IOException, InterruptedException;
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                respond.respond(exchange, requests.incrementAndGet());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+
+        URI baseUrl = URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        store = new AssetStore(root, baseUrl, client, 4);
+    }
+
+    @AfterEach
+    void stop() {
+        store.shutdown();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    void retriesServerErrors() throws IOException {
+        respond = (exchange, request) -> {
+            if (request == 1) send(exchange, 503, new byte[0]);
+            else send(exchange, 200, BODY);
+        };
+
+        Path path = store.fetch(HASH, BODY.length).join();
+
+        assertEquals(2, requests.get());
+        assertEquals(store.path(HASH), path);
+        assertArrayEquals(BODY, Files.readAllBytes(path));
+        assertTrue(store.contains(HASH));
+    }
+
+    @Test
+    void doesNotRetryNotFound() {
+        respond = (exchange, request) -> send(exchange, 404, new byte[0]);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> store.fetch(HASH, BODY.length).join());
+
+        assertTrue(e.getCause() instanceof IOException, "cause " + e.getCause());
+        assertEquals(1, requests.get());
+        assertFalse(store.contains(HASH));
+    }
+
+    @Test
+    void rejectsSha1Mismatch() throws IOException {
+        byte[] other = BODY.clone();
+        other[0] ^= 1;
+        respond = (exchange, request) -> send(exchange, 200, other);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> store.fetch(HASH, BODY.length).join());
+
+        assertTrue(e.getCause().getMessage().contains("SHA-1 mismatch"), e.getCause().getMessage());
+        assertTrue(requests.get() > 1, "a corrupt body is retried");
+        assertStoreEmpty();
+    }
+
+    @Test
+    void rejectsSizeMismatch() throws IOException {
+        respond = (exchange, request) -> send(exchange, 200, BODY);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> store.fetch(HASH, BODY.length + 1).join());
+
+        assertTrue(e.getCause().getMessage().contains("Expected " + (BODY.length + 1) + " bytes"), e.getCause().getMessage());
+        assertStoreEmpty();
+    }
+
+    @Test
+    void concurrentFetchesShareOneDownload() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        respond = (exchange, request) -> {
+            //held until every fetch has been made, so they all find the download still running
+            gate.await(10, TimeUnit.SECONDS);
+            send(exchange, 200, BODY);
+        };
+
+        int fetchers = 8;
+        CountDownLatch fetched = new CountDownLatch(fetchers);
+        List<CompletableFuture<Path>> futures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < fetchers; i++) {
+            CompletableFuture<Path> result = new CompletableFuture<>();
+            futures.add(result);
+            Thread thread = new Thread(() -> {
+                store.fetch(HASH, BODY.length).whenComplete((p, t) -> {
+                    if (t != null) result.completeExceptionally(t);
+                    else result.complete(p);
+                });
+                fetched.countDown();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        assertTrue(fetched.await(10, TimeUnit.SECONDS), "every fetch was made");
+        gate.countDown();
+
+        for (CompletableFuture<Path> future : futures) assertEquals(store.path(HASH), future.get(10, TimeUnit.SECONDS));
+        for (Thread thread : threads) thread.join();
+        assertEquals(1, requests.get());
+        assertArrayEquals(BODY, Files.readAllBytes(store.path(HASH)));
+    }
+
+    //nothing under root, not even a leftover partial file
+    private void assertStoreEmpty() throws IOException {
+        assertFalse(store.contains(HASH));
+        try (Stream<Path> files = Files.walk(root)) {
+            assertEquals(0L, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length == 0) return;
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String sha1(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package net.thorioum.sound;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Small seeded databases for tests that need real rows without decoding any sound files.
+ */
+public final class TestDatabases {
+
+    private TestDatabases() {
+    }
+
+    //candidates rows of lowpassed noise at spread out gains, sorted loudest first like a real build
+    public static SoundEffectDatabase noise(int frameSize, int candidates, long seed) {
+        Random random = new Random(seed);
+        float[] rows = new float[candidates * frameSize];
+        float[] rowNorms = new float[candidates];
+        for (int c = 0; c < candidates; c++) {
+            double a = 0.2 + 0.75 * random.nextDouble();
+            double gain = 0.05 + random.nextDouble();
+            double y = 0.0;
+            double energy = 0.0;
+            for (int i = 0; i < frameSize; i++) {
+                y = a * y + (1 - a) * random.nextGaussian();
+                float v = (float) (0.5 * y * gain);
+                rows[c * frameSize + i] = v;
+                energy += v * v;
+            }
+            rowNorms[c] = (float) Math.sqrt(energy);
+        }
+
+        Integer[] order = new Integer[candidates];
+        for (int c = 0; c < candidates; c++) order[c] = c;
+        Arrays.sort(order, (x, y) -> Float.compare(rowNorms[y], rowNorms[x]));
+
+        float[] samples = new float[candidates * frameSize];
+        float[] norms = new float[candidates];
+        double[] pitches = new double[candidates];
+        int[] nameIds = new int[candidates];
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < candidates; c++) {
+            System.arraycopy(rows, order[c] * frameSize, samples, c * frameSize, frameSize);
+            norms[c] = rowNorms[order[c]];
+            pitches[c] = 1.0;
+            nameIds[c] = c;
+            names.add("test.sound_" + order[c]);
+        }
+
+        SoundEffectDatabase db = new SoundEffectDatabase(frameSize);
+        db.load(names, nameIds, pitches, norms, samples);
+        return db;
+    }
+}